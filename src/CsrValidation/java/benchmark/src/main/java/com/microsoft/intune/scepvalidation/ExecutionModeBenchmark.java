@@ -0,0 +1,135 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares the throughput of blocking ValidateRequest calls made by many concurrent callers on platform threads and 
+ * on virtual threads, against a local service with a fixed latency.
+ * 
+ * The virtual mode needs Java 21 and the multi-release jar of the client:
+ * java -jar benchmark/target/benchmarks.jar ExecutionModeBenchmark
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class ExecutionModeBenchmark
+{
+    private static final int CALLS = 2000;
+    
+    @Param({"platform", "virtual"})
+    public String mode;
+    
+    @Param({"200", "2000"})
+    public int concurrency;
+    
+    @Param({"20"})
+    public long serviceLatencyMillis;
+    
+    private StubIntuneService service;
+    private IntuneScepServiceClient client;
+    private ExecutorService callers;
+    
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        boolean virtual = "virtual".equals(this.mode);
+        if(virtual && !VirtualThreads.isSupported())
+        {
+            throw new IllegalStateException("Virtual threads require Java 21 and the multi-release jar.");
+        }
+        
+        this.service = new StubIntuneService(this.serviceLatencyMillis);
+        Properties props = this.service.getClientProperties();
+        props.setProperty("VIRTUAL_THREADS_ENABLED", String.valueOf(virtual));
+        props.setProperty("BULKHEAD_VALIDATION_MAX_CONCURRENT", String.valueOf(this.concurrency));
+        props.setProperty("BULKHEAD_VALIDATION_MAX_WAIT_MS", "60000");
+        
+        HttpClientBuilder builder = HttpClientBuilder.create()
+                .setMaxConnTotal(this.concurrency)
+                .setMaxConnPerRoute(this.concurrency);
+        this.client = new IntuneScepServiceClient(props, this.service.getMsalClient(props), null, builder, true, null);
+        
+        this.callers = virtual ? 
+                Executors.newCachedThreadPool(ThreadFactories.create("caller-", true)) :
+                Executors.newFixedThreadPool(this.concurrency, ThreadFactories.create("caller-", false));
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.callers.shutdownNow();
+        this.service.close();
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(CALLS)
+    public void validateRequest() throws Exception
+    {
+        List<Future<Void>> results = new ArrayList<Future<Void>>(CALLS);
+        for(int i = 0; i < CALLS; i++)
+        {
+            results.add(this.callers.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception
+                {
+                    client.ValidateRequest(UUID.randomUUID().toString(), "csr");
+                    return null;
+                }
+            }));
+        }
+        
+        for(Future<Void> result : results)
+        {
+            result.get();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what reporting a failed validation costs when it is thrown as an exception with a stack trace, thrown as 
+ * a stackless exception, or returned as a ValidationOutcome.  The stack is a few frames deeper than the benchmark 
+ * method, a caller in a SCEP server is usually much deeper which makes the stack trace more expensive.
+ * 
+ * java -jar benchmark/target/benchmarks.jar FailurePathBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class FailurePathBenchmark
+{
+    private static final String TRANSACTION_ID = "00000000-0000-0000-0000-000000000000";
+    
+    private JSONObject result;
+    private UUID activityId;
+    
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        this.result = new JSONObject("{code:" + IntuneScepServiceException.ErrorCode.ChallengeExpired.name() + ",errorDescription:'The challenge has expired.'}");
+        this.activityId = UUID.randomUUID();
+    }
+    
+    @Benchmark
+    public Object exception()
+    {
+        return Report(true);
+    }
+    
+    @Benchmark
+    public Object stacklessException()
+    {
+        return Report(false);
+    }
+    
+    @Benchmark
+    public Object outcome()
+    {
+        return ValidationOutcome.fromResponse(this.result, TRANSACTION_ID, this.activityId);
+    }
+    
+    private Object Report(boolean withStackTrace)
+    {
+        try
+        {
+            throw ValidationOutcome.fromResponse(this.result, TRANSACTION_ID, this.activityId).toException(!withStackTrace);
+        }
+        catch(IntuneScepServiceException e)
+        {
+            return e.getParsedErrorCode();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the cost the notification journal adds to accepting a notification, with and without forcing every 
+ * append to disk.  With several threads the forced appends share fsync calls.
+ * 
+ * java -jar benchmark/target/benchmarks.jar NotificationJournalBenchmark
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class NotificationJournalBenchmark
+{
+    @Param({"false", "true"})
+    public boolean fsync;
+    
+    @Param({"1048576"})
+    public int segmentSize;
+    
+    private File directory;
+    private NotificationJournal journal;
+    private byte[] body;
+    
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        this.directory = Files.createTempDirectory("journal-benchmark").toFile();
+        this.journal = NotificationJournal.open(this.directory, this.segmentSize, this.fsync);
+        
+        // About the size of a success notification for a typical CSR
+        StringBuilder csr = new StringBuilder();
+        for(int i = 0; i < 1400; i++)
+        {
+            csr.append((char)('A' + i % 26));
+        }
+        JSONObject notification = new JSONObject();
+        notification.put("transactionId", "00000000-0000-0000-0000-000000000000");
+        notification.put("certificateRequest", csr.toString());
+        notification.put("certThumbprint", "thumbprint");
+        notification.put("certSerialNumber", "serial");
+        notification.put("certExpirationDate", "2025-01-01T00:00:00.000Z");
+        notification.put("certIssuingAuthority", "authority");
+        this.body = new JSONObject().put("notification", notification).toString().getBytes(StandardCharsets.UTF_8);
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException
+    {
+        this.journal.close();
+        File[] files = this.directory.listFiles();
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                file.delete();
+            }
+        }
+        this.directory.delete();
+    }
+    
+    @Benchmark
+    public long appendAndAcknowledge() throws IOException
+    {
+        long id = this.journal.append(true, "00000000-0000-0000-0000-000000000000", this.body);
+        this.journal.acknowledge(id);
+        return id;
+    }
+    
+    @Benchmark
+    @Threads(8)
+    public long appendAndAcknowledgeConcurrently() throws IOException
+    {
+        return appendAndAcknowledge();
+    }
+}
@@ -0,0 +1,144 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares building request bodies with JSONObject against writing them from pre-encoded fragments.  Run with the 
+ * gc profiler to see the bytes allocated per body.
+ * 
+ * java -jar benchmark/target/benchmarks.jar RequestBodyBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class RequestBodyBenchmark
+{
+    private static final String TRANSACTION_ID = "00000000-0000-0000-0000-000000000000";
+    private static final String CALLER_INFO = "BenchmarkProvider 1.0";
+    
+    private static final byte[] VALIDATION_REQUEST = RequestWriter.fragment("{\"request\":{\"transactionId\":");
+    private static final byte[] NOTIFICATION = RequestWriter.fragment("{\"notification\":{\"transactionId\":");
+    private static final byte[] CERTIFICATE_REQUEST = RequestWriter.fragment(",\"certificateRequest\":");
+    private static final byte[] CERTIFICATE_THUMBPRINT = RequestWriter.fragment(",\"certificateThumbprint\":");
+    private static final byte[] CERTIFICATE_SERIAL_NUMBER = RequestWriter.fragment(",\"certificateSerialNumber\":");
+    private static final byte[] CERTIFICATE_EXPIRATION_DATE = RequestWriter.fragment(",\"certificateExpirationDateUtc\":");
+    private static final byte[] ISSUING_CERTIFICATE_AUTHORITY = RequestWriter.fragment(",\"issuingCertificateAuthority\":");
+    private static final byte[] END = RequestWriter.fragment("}}");
+    
+    private String csr;
+    private byte[] callerInfo;
+    
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        // About the size of a typical base 64 encoded CSR
+        StringBuilder csr = new StringBuilder();
+        for(int i = 0; i < 1400; i++)
+        {
+            csr.append((char)('A' + i % 26));
+        }
+        this.csr = csr.toString();
+        this.callerInfo = new RequestWriter(64).append(RequestWriter.fragment(",\"callerInfo\":")).appendString(CALLER_INFO).toByteArray();
+    }
+    
+    @Benchmark
+    public byte[] validationJsonObject()
+    {
+        JSONObject requestBody = new JSONObject().put(
+                "request", (new JSONObject())
+                    .put("transactionId", TRANSACTION_ID)
+                    .put("certificateRequest", this.csr)
+                    .put("callerInfo", CALLER_INFO));
+        return requestBody.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    @Benchmark
+    public byte[] validationRequestWriter()
+    {
+        return new RequestWriter(64 + TRANSACTION_ID.length() + this.csr.length() + this.callerInfo.length)
+                .append(VALIDATION_REQUEST)
+                .appendString(TRANSACTION_ID)
+                .append(CERTIFICATE_REQUEST)
+                .appendCertificateRequest(this.csr)
+                .append(this.callerInfo)
+                .append(END)
+                .toByteArray();
+    }
+    
+    @Benchmark
+    public byte[] successNotificationJsonObject()
+    {
+        JSONObject requestBody = new JSONObject().put(
+                "notification", (new JSONObject())
+                    .put("transactionId", TRANSACTION_ID)
+                    .put("certificateRequest", this.csr)
+                    .put("certificateThumbprint", "0123456789abcdef0123456789abcdef01234567")
+                    .put("certificateSerialNumber", "1234567890")
+                    .put("certificateExpirationDateUtc", "2027-01-01T00:00:00.000Z")
+                    .put("issuingCertificateAuthority", "CN=Issuing CA")
+                    .put("callerInfo", CALLER_INFO));
+        return requestBody.toString().getBytes(StandardCharsets.ISO_8859_1);
+    }
+    
+    @Benchmark
+    public byte[] successNotificationRequestWriter()
+    {
+        return new RequestWriter(384 + TRANSACTION_ID.length() + this.csr.length() + this.callerInfo.length)
+                .append(NOTIFICATION)
+                .appendString(TRANSACTION_ID)
+                .append(CERTIFICATE_REQUEST)
+                .appendCertificateRequest(this.csr)
+                .append(CERTIFICATE_THUMBPRINT)
+                .appendString("0123456789abcdef0123456789abcdef01234567")
+                .append(CERTIFICATE_SERIAL_NUMBER)
+                .appendString("1234567890")
+                .append(CERTIFICATE_EXPIRATION_DATE)
+                .appendString("2027-01-01T00:00:00.000Z")
+                .append(ISSUING_CERTIFICATE_AUTHORITY)
+                .appendString("CN=Issuing CA")
+                .append(this.callerInfo)
+                .append(END)
+                .toByteArray();
+    }
+}
@@ -0,0 +1,160 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.naming.ServiceUnavailableException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A local stand-in for Graph service discovery and the Intune SCEP service so that benchmarks measure the client and 
+ * not the network.  Every POST is answered with a success after a fixed latency.
+ */
+class StubIntuneService implements AutoCloseable
+{
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final long latencyMillis;
+    
+    StubIntuneService(long latencyMillis) throws IOException
+    {
+        this.latencyMillis = latencyMillis;
+        this.executor = Executors.newCachedThreadPool();
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        this.server.setExecutor(this.executor);
+        this.server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                Respond(exchange);
+            }
+        });
+        this.server.start();
+    }
+    
+    /**
+     * The base URL of the service.
+     */
+    String getUrl()
+    {
+        return "http://" + this.server.getAddress().getHostString() + ":" + this.server.getAddress().getPort() + "/";
+    }
+    
+    /**
+     * Creates a client configuration that discovers the endpoints of this service.
+     */
+    Properties getClientProperties()
+    {
+        Properties props = new Properties();
+        props.setProperty("AAD_APP_ID", "benchmark");
+        props.setProperty("AAD_APP_KEY", "benchmark");
+        props.setProperty("TENANT", "benchmark");
+        props.setProperty("PROVIDER_NAME_AND_VERSION", "benchmark");
+        props.setProperty("MS_GRAPH_RESOURCE_URL", getUrl());
+        return props;
+    }
+    
+    /**
+     * Creates an MSAL client that returns a token without calling Azure Active Directory.
+     */
+    MSALClientWrapper getMsalClient(Properties props)
+    {
+        return new MSALClientWrapper("benchmark", props) {
+            @Override
+            public String getAccessToken(Set<String> scopes) throws ServiceUnavailableException
+            {
+                return "token";
+            }
+            
+            @Override
+            public String getAccessToken(Set<String> scopes, long timeoutMillis) throws ServiceUnavailableException
+            {
+                return "token";
+            }
+        };
+    }
+    
+    private void Respond(HttpExchange exchange) throws IOException
+    {
+        try
+        {
+            InputStream body = exchange.getRequestBody();
+            byte[] buffer = new byte[4096];
+            while(body.read(buffer) >= 0)
+            {
+            }
+            
+            String response;
+            if("GET".equals(exchange.getRequestMethod()))
+            {
+                response = "{value:["
+                        + "{providerName:" + IntuneScepServiceClient.VALIDATION_SERVICE_NAME + ",uri:'" + getUrl() + "scep'},"
+                        + "{providerName:" + IntuneRevocationClient.CONNECTOR_SERVICE_NAME + ",uri:'" + getUrl() + "pki'}"
+                        + "]}";
+            }
+            else
+            {
+                if(this.latencyMillis > 0)
+                {
+                    Thread.sleep(this.latencyMillis);
+                }
+                response = "{code:" + IntuneScepServiceException.ErrorCode.Success.name() + ",errorDescription:''}";
+            }
+            
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(200, bytes.length);
+            OutputStream out = exchange.getResponseBody();
+            out.write(bytes);
+            out.close();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            exchange.close();
+        }
+    }
+    
+    @Override
+    public void close()
+    {
+        this.server.stop(0);
+        this.executor.shutdownNow();
+    }
+}
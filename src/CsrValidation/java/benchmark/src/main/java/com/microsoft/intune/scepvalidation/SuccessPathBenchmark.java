@@ -0,0 +1,102 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures what a successful validation allocates.  checkResultWithException is how a success response used to be 
+ * recognized, by creating an exception and looking at its error code.  validateRequest is a whole call against a 
+ * local service without latency.  Run with the gc profiler to see the bytes allocated per call.
+ * 
+ * java -jar benchmark/target/benchmarks.jar SuccessPathBenchmark -prof gc
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+public class SuccessPathBenchmark
+{
+    private static final String TRANSACTION_ID = "00000000-0000-0000-0000-000000000000";
+    
+    private StubIntuneService service;
+    private IntuneScepServiceClient client;
+    private JSONObject result;
+    private UUID activityId;
+    
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        this.service = new StubIntuneService(0);
+        Properties props = this.service.getClientProperties();
+        this.client = new IntuneScepServiceClient(props, this.service.getMsalClient(props), null, HttpClientBuilder.create(), true, null);
+        this.result = new JSONObject("{code:" + IntuneScepServiceException.ErrorCode.Success.name() + ",errorDescription:''}");
+        this.activityId = UUID.randomUUID();
+    }
+    
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        this.service.close();
+    }
+    
+    @Benchmark
+    public boolean checkResultWithException()
+    {
+        IntuneScepServiceException e = new IntuneScepServiceException(this.result.getString("code"), this.result.getString("errorDescription"), TRANSACTION_ID, this.activityId);
+        return e.getParsedErrorCode() == IntuneScepServiceException.ErrorCode.Success;
+    }
+    
+    @Benchmark
+    public boolean checkResult()
+    {
+        return ValidationOutcome.fromResponse(this.result, TRANSACTION_ID, this.activityId).isSuccess();
+    }
+    
+    @Benchmark
+    public void validateRequest() throws Exception
+    {
+        this.client.ValidateRequest(TRANSACTION_ID, "csr");
+    }
+}
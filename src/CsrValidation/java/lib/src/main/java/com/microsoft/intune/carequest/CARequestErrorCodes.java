@@ -63,4 +63,35 @@ public enum CARequestErrorCodes
 	{
 		this.Value = value;
 	}
+	
+	/**
+	 * Whether the error is transient and the request may be retried.
+	 */
+	public boolean isRetryable()
+	{
+		return this.Value.startsWith("41");
+	}
+	
+	/**
+	 * Finds the error code matching either the numeric value or the name of an error code.
+	 * @param code Error code as returned by the service
+	 * @return The matching error code or null if there is none.
+	 */
+	public static CARequestErrorCodes fromString(String code)
+	{
+		if (code == null)
+		{
+			return null;
+		}
+		
+		for (CARequestErrorCodes errorCode : values())
+		{
+			if (errorCode.Value.equals(code) || errorCode.name().equalsIgnoreCase(code))
+			{
+				return errorCode;
+			}
+		}
+		
+		return null;
+	}
 }
@@ -30,6 +30,9 @@ import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.ServiceUnavailableException;
 import javax.net.ssl.SSLSocketFactory;
@@ -47,7 +50,10 @@ public class ADALClientWrapper
     private String authority = "https://login.microsoftonline.com/";
     private ClientCredential credential = null;
     private ExecutorService service = null;
+    private boolean ownsService = true;
     private AuthenticationContext context = null;
+    private final ReentrantLock contextLock = new ReentrantLock();
+    private long timeoutMillis = 30000;
     
     /**
      * Azure Active Directory Authentication Client
@@ -56,6 +62,19 @@ public class ADALClientWrapper
      * @throws IllegalArgumentException
      */
     public ADALClientWrapper(String aadTenant, ClientCredential credential, Properties props) throws IllegalArgumentException
+    {
+        this(aadTenant, credential, props, null);
+    }
+    
+    /**
+     * Azure Active Directory Authentication Client that runs token requests on a shared executor.
+     * @param aadTenant - Azure Active Directory tenant
+     * @param credential - Credential to use for authentication
+     * @param props - Properties object containing client configuration information.
+     * @param executor - Executor shared with other clients, the caller is responsible for shutting it down.
+     * @throws IllegalArgumentException
+     */
+    public ADALClientWrapper(String aadTenant, ClientCredential credential, Properties props, ExecutorService executor) throws IllegalArgumentException
     {
         if(aadTenant == null || aadTenant.isEmpty())
         {
@@ -70,10 +89,21 @@ public class ADALClientWrapper
         if(props != null)
         {
             this.authority = props.getProperty("AUTH_AUTHORITY",this.authority);
+            this.timeoutMillis = IntuneClient.getLongProperty(props, "AUTH_TIMEOUT_MS", this.timeoutMillis);
         }
         
         this.credential = credential;
-        this.service = Executors.newFixedThreadPool(1);
+        if(executor == null)
+        {
+            this.service = props != null && ThreadFactories.isVirtualThreadsEnabled(props) ? 
+                    ThreadFactories.newVirtualThreadPerTaskExecutor("intune-adal-") : 
+                    Executors.newFixedThreadPool(1);
+        }
+        else
+        {
+            this.service = executor;
+            this.ownsService = false;
+        }
         
         try 
         {
@@ -96,7 +126,15 @@ public class ADALClientWrapper
             throw new IllegalArgumentException("The argument 'factory' is missing.");
         }
         
-        this.context.setSslSocketFactory(factory);
+        this.contextLock.lock();
+        try
+        {
+            this.context.setSslSocketFactory(factory);
+        }
+        finally
+        {
+            this.contextLock.unlock();
+        }
     }
     
     /**
@@ -105,21 +143,52 @@ public class ADALClientWrapper
      */
     public void SetProxy(Proxy proxy)
     {
-        this.context.setProxy(proxy);
+        this.contextLock.lock();
+        try
+        {
+            this.context.setProxy(proxy);
+        }
+        finally
+        {
+            this.contextLock.unlock();
+        }
     }
     
     /**
      * Gets an access token from AAD for the specified resource using the ClientCredential passed in.
      * @param resource Resource to get token for.
-     * @param credential Credential to use to acquire token.
      * @return
      * @throws ExecutionException 
      * @throws IllegalArgumentException
      * @throws InterruptedException 
-     * @throws ServiceUnavailableException 
+     * @throws ServiceUnavailableException The token could not be acquired within AUTH_TIMEOUT_MS.
      */
     public AuthenticationResult getAccessTokenFromCredential(String resource) 
             throws ServiceUnavailableException, InterruptedException, ExecutionException, IllegalArgumentException
+    {
+        try
+        {
+            return getAccessTokenFromCredential(resource, this.timeoutMillis);
+        }
+        catch(TimeoutException e)
+        {
+            throw new ServiceUnavailableException("Timed out after " + this.timeoutMillis + "ms acquiring a token");
+        }
+    }
+    
+    /**
+     * Gets an access token from AAD for the specified resource using the ClientCredential passed in.
+     * @param resource Resource to get token for.
+     * @param timeoutMillis Time to wait for the token, 0 to wait forever.
+     * @return
+     * @throws ExecutionException 
+     * @throws IllegalArgumentException
+     * @throws InterruptedException 
+     * @throws ServiceUnavailableException 
+     * @throws TimeoutException The token was not acquired in time.
+     */
+    public AuthenticationResult getAccessTokenFromCredential(String resource, long timeoutMillis) 
+            throws ServiceUnavailableException, InterruptedException, ExecutionException, IllegalArgumentException, TimeoutException
     {
         if(resource == null || resource.isEmpty())
         {
@@ -128,8 +197,26 @@ public class ADALClientWrapper
         
         AuthenticationResult result = null;
         
-        Future<AuthenticationResult> future = context.acquireToken(resource, credential, null);
-        result = future.get();
+        // The lock orders the request after any configuration change, ADAL reads the configuration on its own thread
+        Future<AuthenticationResult> future;
+        this.contextLock.lock();
+        try
+        {
+            future = context.acquireToken(resource, credential, null);
+        }
+        finally
+        {
+            this.contextLock.unlock();
+        }
+        try
+        {
+            result = timeoutMillis > 0 ? future.get(timeoutMillis, TimeUnit.MILLISECONDS) : future.get();
+        }
+        catch(TimeoutException e)
+        {
+            future.cancel(true);
+            throw e;
+        }
 
         if (result == null) 
         {
@@ -142,6 +229,9 @@ public class ADALClientWrapper
     @Override
     public void finalize()
     {
-        service.shutdown();
+        if(ownsService)
+        {
+            service.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,215 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests in flight to a service, adapting the limit to how the service responds.
+ * 
+ * The limit grows by one for every limit's worth of fast successful requests and shrinks multiplicatively when a
+ * request is slow, times out or is throttled (additive increase, multiplicative decrease).  Requests over the limit
+ * wait briefly for a slot and are rejected if none frees up.
+ */
+public class AdaptiveConcurrencyLimiter
+{
+    /**
+     * How a request that held a slot ended.
+     */
+    public enum Outcome
+    {
+        Success,
+        Dropped,
+        Ignored;
+    };
+    
+    private final String serviceName;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final long latencyThresholdNanos;
+    private final long queueTimeoutNanos;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotAvailable = lock.newCondition();
+    
+    private double limit;
+    private int inFlight = 0;
+    private long rejectedCount = 0;
+    
+    /**
+     * Creates a limiter.
+     * @param serviceName Name of the service the limiter protects.
+     * @param initialLimit Limit to start with.
+     * @param minLimit Lowest the limit can go.
+     * @param maxLimit Highest the limit can go.
+     * @param backoffRatio Factor the limit is multiplied by when a request is dropped.
+     * @param latencyThresholdMillis Successful requests slower than this are treated as dropped, 0 to ignore latency.
+     * @param queueTimeoutMillis Time a request waits for a slot before it is rejected.
+     */
+    AdaptiveConcurrencyLimiter(String serviceName, int initialLimit, int minLimit, int maxLimit, double backoffRatio, long latencyThresholdMillis, long queueTimeoutMillis)
+    {
+        if(minLimit < 1 || maxLimit < minLimit || initialLimit < minLimit || initialLimit > maxLimit)
+        {
+            throw new IllegalArgumentException("The adaptive concurrency limits must satisfy 1 <= min <= initial <= max.");
+        }
+        
+        if(backoffRatio <= 0 || backoffRatio >= 1)
+        {
+            throw new IllegalArgumentException("The adaptive concurrency backoff ratio must be between 0 and 1.");
+        }
+        
+        this.serviceName = serviceName;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(queueTimeoutMillis);
+    }
+    
+    /**
+     * Takes a slot, waiting briefly if the limit has been reached.  Every acquired slot must be released.
+     * @throws IntuneConcurrencyLimitException No slot became available in time.
+     * @throws InterruptedException
+     */
+    public void acquire() throws IntuneConcurrencyLimitException, InterruptedException
+    {
+        this.lock.lock();
+        try
+        {
+            long remaining = this.queueTimeoutNanos;
+            while(this.inFlight >= (int)this.limit)
+            {
+                if(remaining <= 0)
+                {
+                    this.rejectedCount++;
+                    throw new IntuneConcurrencyLimitException("Service '" + this.serviceName + "' has reached its limit of " + (int)this.limit + " concurrent requests.");
+                }
+                
+                remaining = this.slotAvailable.awaitNanos(remaining);
+            }
+            
+            this.inFlight++;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Releases a slot and adjusts the limit.
+     * @param latencyNanos How long the request took.
+     * @param outcome How the request ended.
+     */
+    public void release(long latencyNanos, Outcome outcome)
+    {
+        this.lock.lock();
+        try
+        {
+            boolean saturated = this.inFlight >= (int)this.limit / 2;
+            this.inFlight--;
+            
+            if(outcome == Outcome.Success && this.latencyThresholdNanos > 0 && latencyNanos > this.latencyThresholdNanos)
+            {
+                outcome = Outcome.Dropped;
+            }
+            
+            if(outcome == Outcome.Dropped)
+            {
+                this.limit = Math.max(this.minLimit, Math.floor(this.limit * this.backoffRatio));
+            }
+            else if(outcome == Outcome.Success && saturated)
+            {
+                // Only grow while the limit is actually being used, otherwise it would grow without bound
+                this.limit = Math.min(this.maxLimit, this.limit + 1.0 / this.limit);
+            }
+            
+            this.slotAvailable.signalAll();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Name of the service the limiter protects.
+     */
+    public String getServiceName()
+    {
+        return this.serviceName;
+    }
+    
+    /**
+     * The current limit of concurrent requests.
+     */
+    public int getLimit()
+    {
+        this.lock.lock();
+        try
+        {
+            return (int)this.limit;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * The number of requests currently in flight.
+     */
+    public int getInFlight()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.inFlight;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * The number of requests rejected because no slot became available in time.
+     */
+    public long getRejectedCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.rejectedCount;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,242 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Paces the requests a client sends to a service with a token bucket whose rate adapts to throttling.
+ * 
+ * When the service responds with 429 or a Retry-After header the rate is halved and no request is sent before the 
+ * time the service asked for.  The rate then grows back linearly to its configured maximum, so a throttled client 
+ * ramps up gradually instead of hitting the service again at full speed.  Requests that would have to wait longer 
+ * than the maximum wait or the time left for the call are rejected.
+ */
+public class AdaptiveRateLimiter
+{
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    
+    private final String serviceName;
+    private final String tenant;
+    private final double maxRate;
+    private final double minRate;
+    private final double burst;
+    private final long recoveryNanos;
+    private final long maxWaitNanos;
+    
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long blockedUntil = lastRefill;
+    private long throttledCount = 0;
+    private long rejectedCount = 0;
+    
+    static final Logger log = LoggerFactory.getLogger(AdaptiveRateLimiter.class);
+    
+    /**
+     * Creates a rate limiter.
+     * @param serviceName Name of the service the limiter paces requests to.
+     * @param tenant Tenant the requests are sent for.
+     * @param maxRate Requests per second allowed when the service is not throttling.
+     * @param minRate Lowest the rate can go.
+     * @param burst Number of requests that can be sent at once after a quiet period.
+     * @param recoveryMillis Time for the rate to grow back from 0 to its maximum.
+     * @param maxWaitMillis Time a request waits for the rate limit before it is rejected.
+     */
+    AdaptiveRateLimiter(String serviceName, String tenant, double maxRate, double minRate, double burst, long recoveryMillis, long maxWaitMillis)
+    {
+        if(minRate <= 0 || maxRate < minRate || burst < 1)
+        {
+            throw new IllegalArgumentException("The rate limit must satisfy 0 < min <= max and allow a burst of at least 1.");
+        }
+        
+        this.serviceName = serviceName;
+        this.tenant = tenant;
+        this.maxRate = maxRate;
+        this.minRate = minRate;
+        this.burst = burst;
+        this.recoveryNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, recoveryMillis));
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        this.rate = maxRate;
+        this.tokens = burst;
+    }
+    
+    /**
+     * Takes a token, waiting for it if the bucket is empty or the service asked us to back off.
+     * @param context The call the request belongs to.
+     * @throws IntuneRateLimitException The token would not be available within the maximum wait or the time left for the call.
+     * @throws InterruptedException
+     */
+    void acquire(RequestContext context) throws IntuneRateLimitException, InterruptedException
+    {
+        long waitNanos;
+        synchronized(this)
+        {
+            long now = System.nanoTime();
+            refill(now);
+            
+            waitNanos = Math.max(0, this.blockedUntil - now);
+            if(this.tokens < 1)
+            {
+                waitNanos = Math.max(waitNanos, (long)((1 - this.tokens) / this.rate * NANOS_PER_SECOND));
+            }
+            
+            long allowedNanos = context.hasDeadline() ? 
+                    Math.min(this.maxWaitNanos, TimeUnit.MILLISECONDS.toNanos(context.getRemainingMillis(0))) : 
+                    this.maxWaitNanos;
+            if(waitNanos > allowedNanos)
+            {
+                this.rejectedCount++;
+                throw new IntuneRateLimitException(this.serviceName, TimeUnit.NANOSECONDS.toMillis(waitNanos));
+            }
+            
+            // Reserve the token now so that concurrent callers queue up behind this one
+            this.tokens -= 1;
+        }
+        
+        if(waitNanos > 0)
+        {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+    
+    /**
+     * Slows down after the service throttled a request.
+     * @param retryAfterMillis Time the service asked us to wait or null if it did not say.
+     */
+    synchronized void onThrottled(Long retryAfterMillis)
+    {
+        long now = System.nanoTime();
+        refill(now);
+        
+        this.throttledCount++;
+        double previous = this.rate;
+        this.rate = Math.max(this.minRate, this.rate / 2);
+        this.tokens = Math.min(this.tokens, 0);
+        if(retryAfterMillis != null)
+        {
+            long until = now + TimeUnit.MILLISECONDS.toNanos(retryAfterMillis);
+            if(until - this.blockedUntil > 0)
+            {
+                this.blockedUntil = until;
+            }
+        }
+        
+        // Rates are logged to one decimal
+        if(retryAfterMillis == null)
+        {
+            log.warn("Service '{}' throttled tenant '{}', lowering rate from {} to {} requests per second", 
+                    this.serviceName, this.tenant, Math.round(previous * 10) / 10.0, Math.round(this.rate * 10) / 10.0);
+        }
+        else
+        {
+            log.warn("Service '{}' throttled tenant '{}', lowering rate from {} to {} requests per second and pausing for {}ms", 
+                    this.serviceName, this.tenant, Math.round(previous * 10) / 10.0, Math.round(this.rate * 10) / 10.0, retryAfterMillis);
+        }
+    }
+    
+    /**
+     * Adds the tokens earned since the last refill and lets the rate recover.  No tokens are earned while blocked.
+     */
+    private void refill(long now)
+    {
+        long from = this.blockedUntil - this.lastRefill > 0 ? this.blockedUntil : this.lastRefill;
+        long elapsed = now - from;
+        if(elapsed > 0)
+        {
+            this.tokens = Math.min(this.burst, this.tokens + this.rate * elapsed / NANOS_PER_SECOND);
+            this.rate = Math.min(this.maxRate, this.rate + this.maxRate * elapsed / this.recoveryNanos);
+            this.lastRefill = now;
+        }
+    }
+    
+    /**
+     * Name of the service the limiter paces requests to.
+     */
+    public String getServiceName()
+    {
+        return this.serviceName;
+    }
+    
+    /**
+     * Tenant the requests are sent for.
+     */
+    public String getTenant()
+    {
+        return this.tenant;
+    }
+    
+    /**
+     * Requests per second allowed when the service is not throttling.
+     */
+    public double getMaxRate()
+    {
+        return this.maxRate;
+    }
+    
+    /**
+     * Requests per second currently allowed.
+     */
+    public synchronized double getCurrentRate()
+    {
+        refill(System.nanoTime());
+        return this.rate;
+    }
+    
+    /**
+     * Number of requests that can be sent right away, negative when requests are waiting.
+     */
+    public synchronized double getAvailableTokens()
+    {
+        refill(System.nanoTime());
+        return this.tokens;
+    }
+    
+    /**
+     * Time in milliseconds until the pause asked for by the service ends, 0 if there is none.
+     */
+    public synchronized long getBlockedMillis()
+    {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(this.blockedUntil - System.nanoTime()));
+    }
+    
+    /**
+     * Number of throttled responses seen.
+     */
+    public synchronized long getThrottledCount()
+    {
+        return this.throttledCount;
+    }
+    
+    /**
+     * Number of requests rejected because they would have waited too long.
+     */
+    public synchronized long getRejectedCount()
+    {
+        return this.rejectedCount;
+    }
+}
@@ -0,0 +1,329 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admits calls to Intune up to a limit of concurrent calls and queues the rest by priority.
+ * 
+ * Validation is admitted before notifications, which are admitted before revocation traffic.  Every operation class has
+ * a bounded queue, and calls are shed with an IntuneRequestShedException instead of queued when the queue is full, when 
+ * they have waited too long, or when the time left until their deadline is shorter than calls usually take.  Shedding 
+ * calls that can not succeed keeps the capacity for the ones that can.
+ * 
+ * Enabled with ADMISSION_CONTROL_ENABLED and configured with ADMISSION_MAX_CONCURRENT, ADMISSION_QUEUE_SIZE and 
+ * ADMISSION_MAX_QUEUE_WAIT_MS.
+ */
+public class AdmissionController
+{
+    private final int maxConcurrent;
+    private final int queueSize;
+    private final long maxQueueWaitMillis;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition admitted = lock.newCondition();
+    private final Map<OperationClass,ArrayDeque<Waiter>> queues = new EnumMap<OperationClass,ArrayDeque<Waiter>>(OperationClass.class);
+    private final Map<OperationClass,Long> shedCounts = new EnumMap<OperationClass,Long>(OperationClass.class);
+    private final LatencyTracker latency = new LatencyTracker(256, 20);
+    
+    private int inFlight = 0;
+    private long admittedCount = 0;
+    
+    /**
+     * Creates an admission controller.
+     * @param maxConcurrent Number of calls admitted at the same time.
+     * @param queueSize Number of calls of each operation class that can wait to be admitted.
+     * @param maxQueueWaitMillis Time a call waits to be admitted before it is shed.
+     */
+    AdmissionController(int maxConcurrent, int queueSize, long maxQueueWaitMillis)
+    {
+        if(maxConcurrent < 1 || queueSize < 0 || maxQueueWaitMillis < 0)
+        {
+            throw new IllegalArgumentException("Admission control must admit at least 1 concurrent call.");
+        }
+        
+        this.maxConcurrent = maxConcurrent;
+        this.queueSize = queueSize;
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+        for(OperationClass operationClass : OperationClass.values())
+        {
+            this.queues.put(operationClass, new ArrayDeque<Waiter>());
+            this.shedCounts.put(operationClass, 0L);
+        }
+    }
+    
+    /**
+     * Creates an admission controller from the configuration.
+     * @param configProperties Properties object containing client configuration information.
+     * @return The admission controller or null if admission control is not enabled.
+     */
+    static AdmissionController create(Properties configProperties) throws IllegalArgumentException
+    {
+        if(!Boolean.parseBoolean(configProperties.getProperty("ADMISSION_CONTROL_ENABLED", "false")))
+        {
+            return null;
+        }
+        
+        return new AdmissionController(
+                (int)IntuneClient.getLongProperty(configProperties, "ADMISSION_MAX_CONCURRENT", 50),
+                (int)IntuneClient.getLongProperty(configProperties, "ADMISSION_QUEUE_SIZE", 100),
+                IntuneClient.getLongProperty(configProperties, "ADMISSION_MAX_QUEUE_WAIT_MS", 5000));
+    }
+    
+    /**
+     * Admits a call, waiting behind calls of the same or a higher priority.  Every admitted call must be released.
+     * @param context The call to admit.
+     * @throws IntuneRequestShedException The call was shed.
+     * @throws InterruptedException
+     */
+    void acquire(RequestContext context) throws IntuneRequestShedException, InterruptedException
+    {
+        OperationClass operationClass = context.getOperationClass();
+        
+        // Calls usually take at least the median latency, a call with less time left would only waste capacity
+        long expectedMillis = this.latency.getPercentile(50, 0);
+        long waitMillis = this.maxQueueWaitMillis;
+        if(context.hasDeadline())
+        {
+            long remaining = context.isExpired() ? 0 : context.getRemainingMillis(0);
+            if(remaining <= expectedMillis)
+            {
+                throw shed(operationClass, IntuneRequestShedException.Reason.DeadlineUnreachable);
+            }
+            waitMillis = Math.min(waitMillis, remaining - expectedMillis);
+        }
+        
+        this.lock.lock();
+        try
+        {
+            if(this.inFlight < this.maxConcurrent && !hasWaiters(operationClass))
+            {
+                this.inFlight++;
+                this.admittedCount++;
+                return;
+            }
+            
+            ArrayDeque<Waiter> queue = this.queues.get(operationClass);
+            if(queue.size() >= this.queueSize)
+            {
+                throw shed(operationClass, IntuneRequestShedException.Reason.QueueFull);
+            }
+            
+            Waiter waiter = new Waiter();
+            queue.addLast(waiter);
+            try
+            {
+                long remainingNanos = TimeUnit.MILLISECONDS.toNanos(waitMillis);
+                while(!waiter.admitted)
+                {
+                    if(remainingNanos <= 0)
+                    {
+                        queue.remove(waiter);
+                        throw shed(operationClass, context.hasDeadline() && waitMillis < this.maxQueueWaitMillis ? 
+                                IntuneRequestShedException.Reason.DeadlineUnreachable : 
+                                IntuneRequestShedException.Reason.QueueTimeout);
+                    }
+                    remainingNanos = this.admitted.awaitNanos(remainingNanos);
+                }
+            }
+            catch(InterruptedException e)
+            {
+                if(waiter.admitted)
+                {
+                    // The slot was handed over while we were interrupted, give it to the next call
+                    releaseLocked(0);
+                }
+                else
+                {
+                    queue.remove(waiter);
+                }
+                throw e;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Releases the slot of an admitted call and admits the waiting call with the highest priority.
+     * @param latencyNanos How long the call took.
+     */
+    void release(long latencyNanos)
+    {
+        this.lock.lock();
+        try
+        {
+            releaseLocked(latencyNanos);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    private void releaseLocked(long latencyNanos)
+    {
+        if(latencyNanos > 0)
+        {
+            this.latency.record(TimeUnit.NANOSECONDS.toMillis(latencyNanos));
+        }
+        
+        this.inFlight--;
+        for(OperationClass operationClass : OperationClass.values())
+        {
+            Waiter waiter = this.queues.get(operationClass).pollFirst();
+            if(waiter != null)
+            {
+                // Hand the slot over directly so that a new call can not take it first
+                waiter.admitted = true;
+                this.inFlight++;
+                this.admittedCount++;
+                this.admitted.signalAll();
+                break;
+            }
+        }
+    }
+    
+    /**
+     * Whether calls of the same or a higher priority are waiting.
+     */
+    private boolean hasWaiters(OperationClass operationClass)
+    {
+        for(OperationClass other : OperationClass.values())
+        {
+            if(!this.queues.get(other).isEmpty())
+            {
+                return true;
+            }
+            if(other == operationClass)
+            {
+                break;
+            }
+        }
+        return false;
+    }
+    
+    private IntuneRequestShedException shed(OperationClass operationClass, IntuneRequestShedException.Reason reason)
+    {
+        this.lock.lock();
+        try
+        {
+            this.shedCounts.put(operationClass, this.shedCounts.get(operationClass) + 1);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        return new IntuneRequestShedException(operationClass, reason);
+    }
+    
+    /**
+     * Number of calls admitted at the same time.
+     */
+    public int getMaxConcurrent()
+    {
+        return this.maxConcurrent;
+    }
+    
+    /**
+     * Number of admitted calls that have not been released.
+     */
+    public int getInFlight()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.inFlight;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Number of calls of an operation class waiting to be admitted.
+     */
+    public int getQueued(OperationClass operationClass)
+    {
+        this.lock.lock();
+        try
+        {
+            return this.queues.get(operationClass).size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Number of calls of an operation class that were shed.
+     */
+    public long getShedCount(OperationClass operationClass)
+    {
+        this.lock.lock();
+        try
+        {
+            return this.shedCounts.get(operationClass);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Number of calls admitted.
+     */
+    public long getAdmittedCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.admittedCount;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * A call waiting to be admitted.
+     */
+    private static class Waiter
+    {
+        boolean admitted = false;
+    }
+}
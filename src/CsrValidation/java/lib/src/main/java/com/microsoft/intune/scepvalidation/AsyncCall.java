@@ -0,0 +1,92 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * A call to Intune that runs on an executor and completes itself with the result or the exception of the call.
+ * 
+ * The exception is not wrapped so callers receive the same typed exception the blocking method throws.  Cancelling 
+ * the future aborts the HTTP request in flight and interrupts the thread running the call.
+ */
+class AsyncCall<T> extends CompletableFuture<T> implements Runnable
+{
+    private final Callable<T> call;
+    private final RequestContext context;
+    private Thread runner = null;
+    
+    AsyncCall(Callable<T> call, RequestContext context)
+    {
+        this.call = call;
+        this.context = context;
+    }
+    
+    @Override
+    public void run()
+    {
+        synchronized(this)
+        {
+            if(isDone())
+            {
+                return;
+            }
+            this.runner = Thread.currentThread();
+        }
+        
+        try
+        {
+            complete(this.call.call());
+        }
+        catch(Throwable e)
+        {
+            completeExceptionally(e);
+        }
+        finally
+        {
+            synchronized(this)
+            {
+                this.runner = null;
+            }
+        }
+    }
+    
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning)
+    {
+        boolean cancelled = super.cancel(mayInterruptIfRunning);
+        if(cancelled)
+        {
+            this.context.cancel();
+            synchronized(this)
+            {
+                if(this.runner != null)
+                {
+                    this.runner.interrupt();
+                }
+            }
+        }
+        return cancelled;
+    }
+}
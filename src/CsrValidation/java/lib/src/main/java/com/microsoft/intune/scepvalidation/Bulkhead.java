@@ -0,0 +1,275 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Resources reserved for one class of calls to Intune.
+ * 
+ * Every class gets its own executor, with a bounded queue on platform threads and a virtual thread per task when 
+ * virtual threads are enabled, and, when BULKHEAD_&lt;CLASS&gt;_MAX_CONCURRENT is set, its own concurrency permits.  When a class is saturated its requests wait up to BULKHEAD_&lt;CLASS&gt;_MAX_WAIT_MS and 
+ * are then rejected, requests of other classes are not affected.  Without the property the number of calls of the 
+ * class is not limited and the executor has a thread count picked for the class.
+ * 
+ * A request holds a single connection while it holds a permit, so the permits also partition the connection pool 
+ * between the classes, but only when the classes draw from one pool: the pool of the multi-tenant client, the pool 
+ * created by SetSslSocketFactory or a pool set on the HttpClientBuilder given to the client.  The clients built from 
+ * a builder without a connection manager each have a pool of their own.
+ * 
+ * Configured with the properties BULKHEAD_&lt;CLASS&gt;_MAX_CONCURRENT, BULKHEAD_&lt;CLASS&gt;_MAX_WAIT_MS and 
+ * BULKHEAD_&lt;CLASS&gt;_QUEUE_SIZE where &lt;CLASS&gt; is VALIDATION, NOTIFICATION or REVOCATION.
+ */
+public class Bulkhead
+{
+    private final OperationClass operationClass;
+    private final int maxConcurrent;
+    private final long maxWaitMillis;
+    private final int queueSize;
+    private final int threads;
+    private final boolean virtualThreads;
+    
+    // Null when the number of calls is not limited
+    private final Semaphore permits;
+    private final AtomicInteger unboundedInUse = new AtomicInteger();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private ExecutorService executor = null;
+    
+    /**
+     * Creates a bulkhead.
+     * @param operationClass The class of calls the bulkhead is for.
+     * @param maxConcurrent Number of calls of the class that can be in flight, 0 for no limit.
+     * @param maxWaitMillis Time a call waits for a permit before it is rejected.
+     * @param queueSize Number of tasks that can wait for a thread of the executor.
+     * @param threads Number of threads of the executor when the number of calls is not limited.
+     * @param virtualThreads Whether the executor runs its tasks on virtual threads.
+     */
+    Bulkhead(OperationClass operationClass, int maxConcurrent, long maxWaitMillis, int queueSize, int threads, boolean virtualThreads)
+    {
+        if(maxConcurrent < 0 || queueSize < 1 || maxWaitMillis < 0 || threads < 1)
+        {
+            throw new IllegalArgumentException("The bulkhead for " + operationClass + " must not have a negative limit and must allow at least 1 queued task.");
+        }
+        
+        this.operationClass = operationClass;
+        this.maxConcurrent = maxConcurrent;
+        this.maxWaitMillis = maxWaitMillis;
+        this.queueSize = queueSize;
+        this.threads = maxConcurrent > 0 ? maxConcurrent : threads;
+        this.virtualThreads = virtualThreads;
+        this.permits = maxConcurrent > 0 ? new Semaphore(maxConcurrent) : null;
+    }
+    
+    /**
+     * Creates a bulkhead for every operation class from the configuration.
+     * @param configProperties Properties object containing client configuration information.
+     */
+    static Map<OperationClass,Bulkhead> create(Properties configProperties) throws IllegalArgumentException
+    {
+        boolean virtualThreads = ThreadFactories.isVirtualThreadsEnabled(configProperties);
+        Map<OperationClass,Bulkhead> bulkheads = new EnumMap<OperationClass,Bulkhead>(OperationClass.class);
+        bulkheads.put(OperationClass.Validation, create(configProperties, OperationClass.Validation, 50, virtualThreads));
+        bulkheads.put(OperationClass.Notification, create(configProperties, OperationClass.Notification, 20, virtualThreads));
+        bulkheads.put(OperationClass.Revocation, create(configProperties, OperationClass.Revocation, 10, virtualThreads));
+        return Collections.unmodifiableMap(bulkheads);
+    }
+    
+    private static Bulkhead create(Properties configProperties, OperationClass operationClass, int threads, boolean virtualThreads) throws IllegalArgumentException
+    {
+        String prefix = "BULKHEAD_" + operationClass.name().toUpperCase() + "_";
+        return new Bulkhead(operationClass, 
+                (int)IntuneClient.getLongProperty(configProperties, prefix + "MAX_CONCURRENT", 0),
+                IntuneClient.getLongProperty(configProperties, prefix + "MAX_WAIT_MS", 1000),
+                (int)IntuneClient.getLongProperty(configProperties, prefix + "QUEUE_SIZE", 100),
+                threads,
+                virtualThreads);
+    }
+    
+    /**
+     * Takes a permit, waiting up to the configured time or the time left for the call.  Every acquired permit must be released.
+     * @param context The call that needs the permit.
+     * @throws IntuneConcurrencyLimitException No permit became available in time.
+     * @throws InterruptedException
+     */
+    void acquire(RequestContext context) throws IntuneConcurrencyLimitException, InterruptedException
+    {
+        if(this.permits == null)
+        {
+            this.unboundedInUse.incrementAndGet();
+            return;
+        }
+        
+        if(this.permits.tryAcquire())
+        {
+            return;
+        }
+        
+        if(!this.permits.tryAcquire(context.getRemainingMillis(this.maxWaitMillis), TimeUnit.MILLISECONDS))
+        {
+            this.rejectedCount.incrementAndGet();
+            throw new IntuneConcurrencyLimitException("The " + this.operationClass + " bulkhead has reached its limit of " + this.maxConcurrent + " concurrent requests.");
+        }
+    }
+    
+    /**
+     * Releases a permit.
+     */
+    void release()
+    {
+        if(this.permits == null)
+        {
+            this.unboundedInUse.decrementAndGet();
+            return;
+        }
+        
+        this.permits.release();
+    }
+    
+    /**
+     * The executor that runs background work for this class.  On platform threads its queue is bounded and tasks over 
+     * the bound are rejected with a RejectedExecutionException.  On virtual threads every task gets a thread of its 
+     * own and only the permits limit the calls in flight.
+     */
+    synchronized ExecutorService getExecutor()
+    {
+        if(this.executor == null)
+        {
+            String namePrefix = "intune-" + this.operationClass.name().toLowerCase() + "-";
+            if(this.virtualThreads)
+            {
+                this.executor = ThreadFactories.newVirtualThreadPerTaskExecutor(namePrefix);
+            }
+            else
+            {
+                ThreadPoolExecutor executor = new ThreadPoolExecutor(this.threads, this.threads, 60, TimeUnit.SECONDS, 
+                        new ArrayBlockingQueue<Runnable>(this.queueSize), 
+                        ThreadFactories.create(namePrefix, false));
+                executor.allowCoreThreadTimeOut(true);
+                this.executor = executor;
+            }
+        }
+        
+        return this.executor;
+    }
+    
+    /**
+     * Stops the threads of the executor once the queued tasks have run.
+     */
+    synchronized void shutdown()
+    {
+        if(this.executor != null)
+        {
+            this.executor.shutdown();
+        }
+    }
+    
+    /**
+     * The class of calls the bulkhead is for.
+     */
+    public OperationClass getOperationClass()
+    {
+        return this.operationClass;
+    }
+    
+    /**
+     * Number of calls of the class that can be in flight, 0 when the number is not limited.
+     */
+    public int getMaxConcurrent()
+    {
+        return this.maxConcurrent;
+    }
+    
+    /**
+     * Whether the number of calls of the class in flight is limited.
+     */
+    public boolean isBounded()
+    {
+        return this.permits != null;
+    }
+    
+    /**
+     * Number of threads of the executor.
+     */
+    int getThreads()
+    {
+        return this.threads;
+    }
+    
+    /**
+     * Number of calls of the class currently in flight.
+     */
+    public int getInUse()
+    {
+        return this.permits == null ? this.unboundedInUse.get() : this.maxConcurrent - this.permits.availablePermits();
+    }
+    
+    /**
+     * Fraction of the permits in use, between 0 and 1, always 0 when the number of calls is not limited.
+     */
+    public double getUtilization()
+    {
+        return this.permits == null ? 0 : (double)getInUse() / this.maxConcurrent;
+    }
+    
+    /**
+     * Number of calls rejected because no permit became available in time.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejectedCount.get();
+    }
+    
+    /**
+     * Number of tasks waiting for a thread of the executor.
+     */
+    public synchronized int getQueuedTasks()
+    {
+        return this.executor instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor)this.executor).getQueue().size() : 0;
+    }
+    
+    /**
+     * Number of tasks that can wait for a thread of the executor.
+     */
+    public int getQueueSize()
+    {
+        return this.queueSize;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return this.operationClass + " bulkhead: " + getInUse() + "/" + (this.permits == null ? "unbounded" : String.valueOf(this.maxConcurrent)) + " in use, " + 
+                getQueuedTasks() + "/" + this.queueSize + " queued, " + getRejectedCount() + " rejected";
+    }
+}
@@ -0,0 +1,154 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Request body that carries a certificate request given as DER bytes.  The bytes are base 64 encoded while the body
+ * is written to the connection so that the encoded certificate request never exists as a String or in a JSONObject.
+ * 
+ * The entity is repeatable, every attempt of a call writes the same bytes from the same buffer.
+ */
+class CertificateRequestEntity extends AbstractHttpEntity
+{
+    private static final byte[] ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(StandardCharsets.US_ASCII);
+    private static final int BUFFER_SIZE = 4096;
+    
+    private final byte[] prefix;
+    private final byte[] suffix;
+    private final ByteBuffer certificateRequest;
+    
+    /**
+     * Creates a request body.
+     * @param prefix The encoded body up to the value of certificateRequest.
+     * @param certificateRequest DER encoded PKCS10 packet, the bytes between its position and limit are sent.
+     * @param suffix The encoded body after the value of certificateRequest.
+     */
+    CertificateRequestEntity(byte[] prefix, ByteBuffer certificateRequest, byte[] suffix)
+    {
+        this.prefix = prefix;
+        this.suffix = suffix;
+        this.certificateRequest = certificateRequest.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Reads a certificate request from a stream, the stream is read to its end but not closed.
+     * @param stream DER encoded PKCS10 packet.
+     */
+    static ByteBuffer read(InputStream stream) throws IOException
+    {
+        byte[] data = new byte[BUFFER_SIZE];
+        int length = 0;
+        int count;
+        while((count = stream.read(data, length, data.length - length)) >= 0)
+        {
+            length += count;
+            if(length == data.length)
+            {
+                data = Arrays.copyOf(data, 2 * data.length);
+            }
+        }
+        return ByteBuffer.wrap(data, 0, length);
+    }
+    
+    /**
+     * The length of the base 64 encoding of a certificate request.
+     */
+    static long getEncodedLength(ByteBuffer certificateRequest)
+    {
+        return 4L * ((certificateRequest.remaining() + 2) / 3);
+    }
+    
+    @Override
+    public boolean isRepeatable()
+    {
+        return true;
+    }
+    
+    @Override
+    public long getContentLength()
+    {
+        return this.prefix.length + getEncodedLength(this.certificateRequest) + this.suffix.length;
+    }
+    
+    @Override
+    public InputStream getContent() throws IOException
+    {
+        ByteArrayOutputStream content = new ByteArrayOutputStream((int)getContentLength());
+        writeTo(content);
+        return new ByteArrayInputStream(content.toByteArray());
+    }
+    
+    @Override
+    public void writeTo(OutputStream outStream) throws IOException
+    {
+        outStream.write(this.prefix);
+        
+        ByteBuffer data = this.certificateRequest.duplicate();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int length = 0;
+        while(data.remaining() >= 3)
+        {
+            int bits = (data.get() & 0xFF) << 16 | (data.get() & 0xFF) << 8 | (data.get() & 0xFF);
+            buffer[length++] = ALPHABET[bits >>> 18];
+            buffer[length++] = ALPHABET[(bits >>> 12) & 0x3F];
+            buffer[length++] = ALPHABET[(bits >>> 6) & 0x3F];
+            buffer[length++] = ALPHABET[bits & 0x3F];
+            if(length == buffer.length)
+            {
+                outStream.write(buffer, 0, length);
+                length = 0;
+            }
+        }
+        
+        if(data.hasRemaining())
+        {
+            int bits = (data.get() & 0xFF) << 16 | (data.hasRemaining() ? (data.get() & 0xFF) << 8 : 0);
+            buffer[length++] = ALPHABET[bits >>> 18];
+            buffer[length++] = ALPHABET[(bits >>> 12) & 0x3F];
+            buffer[length++] = this.certificateRequest.remaining() % 3 == 2 ? ALPHABET[(bits >>> 6) & 0x3F] : (byte)'=';
+            buffer[length++] = '=';
+        }
+        
+        outStream.write(buffer, 0, length);
+        outStream.write(this.suffix);
+        outStream.flush();
+    }
+    
+    @Override
+    public boolean isStreaming()
+    {
+        return false;
+    }
+}
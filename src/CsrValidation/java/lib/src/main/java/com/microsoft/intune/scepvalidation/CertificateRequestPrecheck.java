@@ -0,0 +1,337 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.microsoft.intune.scepvalidation.IntuneScepServiceException.ErrorCode;
+
+/**
+ * Checks a certificate request locally for the failures Intune would certainly report, so that malformed requests 
+ * are rejected without a token request and a round trip to the service.
+ * 
+ * The check decodes the base 64 and walks the DER structure of the PKCS#10 CertificationRequest in place, it does 
+ * not verify the signature or parse the subject and the key.  Anything it accepts may still fail validation by Intune.
+ */
+final class CertificateRequestPrecheck
+{
+    private static final byte TAG_INTEGER = 0x02;
+    private static final byte TAG_BIT_STRING = 0x03;
+    private static final byte TAG_OBJECT_IDENTIFIER = 0x06;
+    private static final byte TAG_SEQUENCE = 0x30;
+    private static final byte TAG_SET = 0x31;
+    private static final byte TAG_ATTRIBUTES = (byte)0xA0;
+    
+    // 1.2.840.113549.1.9.7
+    private static final byte[] CHALLENGE_PASSWORD_OID = { 0x2A, (byte)0x86, 0x48, (byte)0x86, (byte)0xF7, 0x0D, 0x01, 0x09, 0x07 };
+    
+    private static final byte[] BASE64_VALUES = new byte[128];
+    
+    static
+    {
+        Arrays.fill(BASE64_VALUES, (byte)-1);
+        String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for(int i = 0; i < alphabet.length(); i++)
+        {
+            BASE64_VALUES[alphabet.charAt(i)] = (byte)i;
+        }
+    }
+    
+    private CertificateRequestPrecheck()
+    {
+    }
+    
+    /**
+     * Checks a certificate request.
+     * @param certificateRequest Base 64 encoded PKCS10 packet, line breaks are allowed.
+     * @param maxLength The longest base 64 string accepted.
+     * @return The error code Intune would return for the request or null if the request passed the check.
+     */
+    static ErrorCode check(String certificateRequest, int maxLength)
+    {
+        if(certificateRequest.length() > maxLength)
+        {
+            return ErrorCode.CertificateRequestDecodingFailed;
+        }
+        
+        byte[] der = decode(certificateRequest);
+        if(der == null)
+        {
+            return ErrorCode.CertificateRequestDecodingFailed;
+        }
+        
+        return parse(der, 0, der.length);
+    }
+    
+    /**
+     * Checks a certificate request given as DER bytes.
+     * @param certificateRequest DER encoded PKCS10 packet, the bytes between its position and limit are checked.
+     * @param maxLength The longest base 64 encoding accepted.
+     * @return The error code Intune would return for the request or null if the request passed the check.
+     */
+    static ErrorCode check(ByteBuffer certificateRequest, int maxLength)
+    {
+        if(CertificateRequestEntity.getEncodedLength(certificateRequest) > maxLength)
+        {
+            return ErrorCode.CertificateRequestDecodingFailed;
+        }
+        
+        if(certificateRequest.hasArray())
+        {
+            return parse(certificateRequest.array(), certificateRequest.arrayOffset() + certificateRequest.position(), certificateRequest.remaining());
+        }
+        
+        byte[] der = new byte[certificateRequest.remaining()];
+        certificateRequest.duplicate().get(der);
+        return parse(der, 0, der.length);
+    }
+    
+    /**
+     * Decodes base 64 that may contain white space.
+     * @return The decoded bytes or null if the string is not valid base 64.
+     */
+    static byte[] decode(String base64)
+    {
+        // The first pass validates and sizes the output so that it is allocated once
+        int dataChars = 0;
+        int paddingChars = 0;
+        for(int i = 0; i < base64.length(); i++)
+        {
+            char c = base64.charAt(i);
+            if(c == ' ' || c == '\r' || c == '\n' || c == '\t')
+            {
+                continue;
+            }
+            
+            if(c == '=')
+            {
+                paddingChars++;
+            }
+            else if(c < 128 && BASE64_VALUES[c] >= 0 && paddingChars == 0)
+            {
+                dataChars++;
+            }
+            else
+            {
+                return null;
+            }
+        }
+        
+        if(dataChars == 0 || dataChars % 4 == 1 || paddingChars > 2 || (paddingChars > 0 && (dataChars + paddingChars) % 4 != 0))
+        {
+            return null;
+        }
+        
+        byte[] decoded = new byte[dataChars / 4 * 3 + (dataChars % 4 == 0 ? 0 : dataChars % 4 - 1)];
+        int bits = 0;
+        int bitCount = 0;
+        int position = 0;
+        for(int i = 0; i < base64.length() && position < decoded.length; i++)
+        {
+            char c = base64.charAt(i);
+            if(c >= 128 || BASE64_VALUES[c] < 0)
+            {
+                continue;
+            }
+            
+            bits = (bits << 6) | BASE64_VALUES[c];
+            bitCount += 6;
+            if(bitCount >= 8)
+            {
+                bitCount -= 8;
+                decoded[position++] = (byte)(bits >> bitCount);
+            }
+        }
+        
+        return decoded;
+    }
+    
+    /**
+     * Walks a DER encoded CertificationRequest.
+     * @return The error code Intune would return for the request or null if the request is well formed.
+     */
+    static ErrorCode parse(byte[] der, int offset, int length)
+    {
+        DerReader reader = new DerReader(der, offset);
+        
+        // CertificationRequest ::= SEQUENCE { certificationRequestInfo, signatureAlgorithm, signature }
+        int requestEnd = reader.open(TAG_SEQUENCE, offset + length);
+        if(requestEnd != offset + length)
+        {
+            return ErrorCode.CertificateRequestDecodingFailed;
+        }
+        
+        // CertificationRequestInfo ::= SEQUENCE { version, subject, subjectPKInfo, attributes [0] }
+        int infoEnd = reader.open(TAG_SEQUENCE, requestEnd);
+        if(infoEnd < 0 || 
+           !reader.skip(TAG_INTEGER, infoEnd) || 
+           !reader.skip(TAG_SEQUENCE, infoEnd) || 
+           !reader.skip(TAG_SEQUENCE, infoEnd))
+        {
+            return ErrorCode.CertificateRequestDecodingFailed;
+        }
+        
+        boolean challengePassword = false;
+        if(reader.position < infoEnd)
+        {
+            int attributesEnd = reader.open(TAG_ATTRIBUTES, infoEnd);
+            if(attributesEnd != infoEnd)
+            {
+                return ErrorCode.CertificateRequestDecodingFailed;
+            }
+            
+            // Attribute ::= SEQUENCE { type OBJECT IDENTIFIER, values SET }
+            while(reader.position < attributesEnd)
+            {
+                int attributeEnd = reader.open(TAG_SEQUENCE, attributesEnd);
+                if(attributeEnd < 0)
+                {
+                    return ErrorCode.CertificateRequestDecodingFailed;
+                }
+                
+                int typeEnd = reader.open(TAG_OBJECT_IDENTIFIER, attributeEnd);
+                if(typeEnd < 0)
+                {
+                    return ErrorCode.CertificateRequestDecodingFailed;
+                }
+                boolean isChallengePassword = equals(der, reader.position, typeEnd, CHALLENGE_PASSWORD_OID);
+                reader.position = typeEnd;
+                
+                int valuesEnd = reader.open(TAG_SET, attributeEnd);
+                if(valuesEnd != attributeEnd)
+                {
+                    return ErrorCode.CertificateRequestDecodingFailed;
+                }
+                if(isChallengePassword && valuesEnd > reader.position)
+                {
+                    challengePassword = true;
+                }
+                reader.position = attributeEnd;
+            }
+        }
+        
+        if(!reader.skip(TAG_SEQUENCE, requestEnd) || 
+           !reader.skip(TAG_BIT_STRING, requestEnd) || 
+           reader.position != requestEnd)
+        {
+            return ErrorCode.CertificateRequestDecodingFailed;
+        }
+        
+        return challengePassword ? null : ErrorCode.ChallengePasswordMissing;
+    }
+    
+    private static boolean equals(byte[] data, int start, int end, byte[] expected)
+    {
+        if(end - start != expected.length)
+        {
+            return false;
+        }
+        
+        for(int i = 0; i < expected.length; i++)
+        {
+            if(data[start + i] != expected[i])
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Reads the tag and length of DER elements without copying their content.
+     */
+    private static final class DerReader
+    {
+        private final byte[] data;
+        int position;
+        
+        DerReader(byte[] data, int position)
+        {
+            this.data = data;
+            this.position = position;
+        }
+        
+        /**
+         * Reads the header of the next element and moves to the start of its content.
+         * @param tag The tag the element must have.
+         * @param limit The end of the enclosing element.
+         * @return The end of the content of the element or -1 if it is not a well formed element with the tag.
+         */
+        int open(byte tag, int limit)
+        {
+            int p = this.position;
+            if(limit - p < 2 || this.data[p] != tag)
+            {
+                return -1;
+            }
+            
+            int length = this.data[p + 1] & 0xFF;
+            p += 2;
+            if(length >= 0x80)
+            {
+                // DER only uses the long form for lengths of 128 and more, in as few bytes as possible
+                int count = length & 0x7F;
+                if(count == 0 || count > 3 || limit - p < count || this.data[p] == 0)
+                {
+                    return -1;
+                }
+                
+                length = 0;
+                for(int i = 0; i < count; i++)
+                {
+                    length = (length << 8) | (this.data[p++] & 0xFF);
+                }
+                if(length < 0x80)
+                {
+                    return -1;
+                }
+            }
+            
+            if(length > limit - p)
+            {
+                return -1;
+            }
+            
+            this.position = p;
+            return p + length;
+        }
+        
+        /**
+         * Moves past the next element.
+         * @return false if it is not a well formed element with the tag.
+         */
+        boolean skip(byte tag, int limit)
+        {
+            int end = open(tag, limit);
+            if(end < 0)
+            {
+                return false;
+            }
+            
+            this.position = end;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Circuit breaker for a single Intune service endpoint.
+ * 
+ * The circuit opens after a number of consecutive failures and rejects requests until the open period ends.  It then 
+ * lets a limited number of trial requests through, closing again if they succeed or reopening if one of them fails.
+ * 
+ * Every change of state starts a new generation.  A permission belongs to the generation it was given in and the 
+ * outcome of a request only changes the state while that generation lasts, so a slow request that was let through 
+ * while closed can not close or reopen the circuit, or take the place of a trial request, after the circuit opened.
+ */
+public class CircuitBreaker
+{
+    public enum State
+    {
+        Closed,
+        Open,
+        HalfOpen;
+    };
+    
+    private final String endpoint;
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int halfOpenRequests;
+    private final List<CircuitBreakerListener> listeners;
+    
+    private State state = State.Closed;
+    private int consecutiveFailures = 0;
+    private int halfOpenInFlight = 0;
+    private long openedAt = 0;
+    private long generation = 0;
+    
+    private long successCount = 0;
+    private long failureCount = 0;
+    private long rejectedCount = 0;
+    private long openedCount = 0;
+    
+    static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+    
+    /**
+     * Creates a closed circuit breaker.
+     * @param endpoint The endpoint protected by the circuit breaker.
+     * @param failureThreshold Consecutive failures that open the circuit.
+     * @param openMillis Time in milliseconds the circuit stays open before trial requests are let through.
+     * @param halfOpenRequests Number of concurrent trial requests while half open.
+     * @param listeners Listeners to notify of state changes.
+     */
+    CircuitBreaker(String endpoint, int failureThreshold, long openMillis, int halfOpenRequests, List<CircuitBreakerListener> listeners)
+    {
+        this.endpoint = endpoint;
+        this.failureThreshold = failureThreshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos(openMillis);
+        this.halfOpenRequests = halfOpenRequests;
+        this.listeners = listeners;
+    }
+    
+    /**
+     * Checks whether a request may be sent to the endpoint.  Every permitted request must be followed by a call to
+     * onSuccess, onFailure or onIgnored with the permit that was returned.
+     * @return The permit of the request.
+     * @throws IntuneCircuitOpenException The circuit is open and the request must not be sent.
+     */
+    public long acquirePermission() throws IntuneCircuitOpenException
+    {
+        State from;
+        State to;
+        long permit;
+        synchronized(this)
+        {
+            from = this.state;
+            if(this.state == State.Open)
+            {
+                long remaining = this.openNanos - (System.nanoTime() - this.openedAt);
+                if(remaining > 0)
+                {
+                    this.rejectedCount++;
+                    throw new IntuneCircuitOpenException(this.endpoint, TimeUnit.NANOSECONDS.toMillis(remaining));
+                }
+                
+                this.state = State.HalfOpen;
+                this.halfOpenInFlight = 0;
+                this.generation++;
+            }
+            
+            if(this.state == State.HalfOpen)
+            {
+                if(this.halfOpenInFlight >= this.halfOpenRequests)
+                {
+                    this.rejectedCount++;
+                    throw new IntuneCircuitOpenException(this.endpoint, 0);
+                }
+                
+                this.halfOpenInFlight++;
+            }
+            to = this.state;
+            permit = this.generation;
+        }
+        
+        notifyListeners(from, to);
+        return permit;
+    }
+    
+    /**
+     * Records a request that reached a healthy endpoint.
+     * @param permit The permit returned by acquirePermission.
+     */
+    public void onSuccess(long permit)
+    {
+        State from;
+        State to;
+        synchronized(this)
+        {
+            from = this.state;
+            this.successCount++;
+            if(permit == this.generation)
+            {
+                this.consecutiveFailures = 0;
+                if(this.state == State.HalfOpen)
+                {
+                    this.halfOpenInFlight--;
+                    this.state = State.Closed;
+                    this.generation++;
+                }
+            }
+            to = this.state;
+        }
+        
+        notifyListeners(from, to);
+    }
+    
+    /**
+     * Records a request that failed because the endpoint is unhealthy or unreachable.
+     * @param permit The permit returned by acquirePermission.
+     */
+    public void onFailure(long permit)
+    {
+        State from;
+        State to;
+        synchronized(this)
+        {
+            from = this.state;
+            this.failureCount++;
+            if(permit == this.generation)
+            {
+                this.consecutiveFailures++;
+                if(this.state == State.HalfOpen)
+                {
+                    this.halfOpenInFlight--;
+                }
+                
+                if(this.state == State.HalfOpen || (this.state == State.Closed && this.consecutiveFailures >= this.failureThreshold))
+                {
+                    this.state = State.Open;
+                    this.openedAt = System.nanoTime();
+                    this.openedCount++;
+                    this.generation++;
+                }
+            }
+            to = this.state;
+        }
+        
+        notifyListeners(from, to);
+    }
+    
+    /**
+     * Records a request whose outcome says nothing about the health of the endpoint, such as a failure to get a token.
+     * @param permit The permit returned by acquirePermission.
+     */
+    public synchronized void onIgnored(long permit)
+    {
+        if(permit == this.generation && this.state == State.HalfOpen)
+        {
+            this.halfOpenInFlight--;
+        }
+    }
+    
+    /**
+     * The endpoint protected by the circuit breaker.
+     */
+    public String getEndpoint()
+    {
+        return this.endpoint;
+    }
+    
+    /**
+     * The current state of the circuit.  An open circuit reports Open until the next request is made after the open period.
+     */
+    public synchronized State getState()
+    {
+        return this.state;
+    }
+    
+    /**
+     * Number of requests that reached a healthy endpoint.
+     */
+    public synchronized long getSuccessCount()
+    {
+        return this.successCount;
+    }
+    
+    /**
+     * Number of requests that failed because the endpoint was unhealthy or unreachable.
+     */
+    public synchronized long getFailureCount()
+    {
+        return this.failureCount;
+    }
+    
+    /**
+     * Number of requests rejected without contacting the endpoint.
+     */
+    public synchronized long getRejectedCount()
+    {
+        return this.rejectedCount;
+    }
+    
+    /**
+     * Number of times the circuit has opened.
+     */
+    public synchronized long getOpenedCount()
+    {
+        return this.openedCount;
+    }
+    
+    private void notifyListeners(State from, State to)
+    {
+        if(from == to)
+        {
+            return;
+        }
+        
+        if(to == State.Open)
+        {
+            log.warn("Circuit breaker for '{}' changed from {} to {}", this.endpoint, from, to);
+        }
+        else
+        {
+            log.info("Circuit breaker for '{}' changed from {} to {}", this.endpoint, from, to);
+        }
+        
+        for(CircuitBreakerListener listener : this.listeners)
+        {
+            try
+            {
+                listener.onStateChange(this, from, to);
+            }
+            catch(RuntimeException e)
+            {
+                log.error("Circuit breaker listener failed", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Resources that limit the load a client puts on Intune.  Clients that act for different tenants share a single 
+ * instance so that the limits apply to all of them together.
+ */
+class ClientResources
+{
+    final Map<OperationClass,Bulkhead> bulkheads;
+    final AdmissionController admissionController;
+    final RequestBudget retryBudget;
+    
+    private ClientResources(Map<OperationClass,Bulkhead> bulkheads, AdmissionController admissionController, RequestBudget retryBudget)
+    {
+        this.bulkheads = bulkheads;
+        this.admissionController = admissionController;
+        this.retryBudget = retryBudget;
+    }
+    
+    /**
+     * Creates the resources from the configuration.
+     * @param configProperties Properties object containing client configuration information.
+     */
+    static ClientResources create(Properties configProperties) throws IllegalArgumentException
+    {
+        return new ClientResources(Bulkhead.create(configProperties), AdmissionController.create(configProperties), RetryPolicy.createBudget(configProperties));
+    }
+    
+    /**
+     * Stops the threads of the bulkhead executors.
+     */
+    void shutdown()
+    {
+        for(Bulkhead bulkhead : this.bulkheads.values())
+        {
+            bulkhead.shutdown();
+        }
+    }
+}
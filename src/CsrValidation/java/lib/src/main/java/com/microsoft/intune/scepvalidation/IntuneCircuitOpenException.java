@@ -0,0 +1,58 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+/**
+ * Exception thrown without contacting Intune because the circuit breaker of the endpoint is open.
+ */
+public class IntuneCircuitOpenException extends IntuneClientException
+{
+    private static final long serialVersionUID = -3620468377618826461L;
+    
+    private String endpoint = null;
+    private long retryAfterMillis = 0;
+    
+    /**
+     * The endpoint whose circuit is open.
+     */
+    public String getEndpoint()
+    {
+        return this.endpoint;
+    }
+    
+    /**
+     * The time in milliseconds until the circuit breaker lets a trial request through.
+     */
+    public long getRetryAfterMillis()
+    {
+        return this.retryAfterMillis;
+    }
+
+    public IntuneCircuitOpenException(String endpoint, long retryAfterMillis)
+    {
+        super("Circuit breaker for '" + endpoint + "' is open, requests are rejected for the next " + retryAfterMillis + "ms");
+        this.endpoint = endpoint;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+}
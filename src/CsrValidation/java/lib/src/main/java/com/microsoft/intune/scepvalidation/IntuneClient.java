@@ -29,33 +29,50 @@ import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.PasswordAuthentication;
 import java.net.Proxy;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.ServiceUnavailableException;
 import javax.net.ssl.SSLSocketFactory;
 
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
-import org.apache.http.conn.HttpClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
@@ -65,7 +82,7 @@ import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.apache.http.impl.client.HttpClients;
-import org.apache.http.impl.conn.BasicHttpClientConnectionManager;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.util.EntityUtils;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -80,6 +97,13 @@ import com.microsoft.aad.msal4j.IAuthenticationResult;
 /**
  * IntuneClient - A client which can be used to make requests to Intune services.
  * This object uses ADAL libraries and tokens for authentication with Intune.  
+ * 
+ * Thread safety: clients are safe for concurrent use and one instance should be shared by all threads of the process,
+ * token caches, service maps, connection pools and resilience state are only effective when shared.  The configuration 
+ * is read once in the constructor and not changed afterwards, share the client through any safe publication mechanism
+ * such as a final field or a concurrent collection.  {@link #SetSslSocketFactory(SSLSocketFactory)} can be called 
+ * while requests are in flight, requests already started finish on the previous connection pool, which is shut down 
+ * once they complete.
  */
 class IntuneClient 
 {
@@ -97,17 +121,69 @@ class IntuneClient
     protected MSALClientWrapper msalAuthClient;
     protected ADALClientWrapper adalAuthClient;
     
-    protected SSLSocketFactory sslSocketFactory = null;
-    protected HttpClientBuilder httpClientBuilder = null;
+    protected volatile SSLSocketFactory sslSocketFactory = null;
+    protected volatile HttpClientBuilder httpClientBuilder = null;
+    protected boolean sharedTransport = false;
+    protected int httpMaxConnections = 200;
+    protected int httpMaxConnectionsPerRoute = 200;
+    
+    // The connection pool created by SetSslSocketFactory, null while the builder is the caller's or the default
+    private volatile Transport transport = null;
     
     protected String proxyHost = null;
     protected Integer proxyPort = null;
     protected String proxyUser = null;
     protected String proxyPass = null;
     
-    private HashMap<String,String> serviceMap = new HashMap<String,String>();
+    protected long serviceNotFoundCacheTtlMillis = 30000;
+    protected long serviceMapLogIntervalMillis = 300000;
+    
+    protected long httpConnectTimeoutMillis = 30000;
+    protected long httpReadTimeoutMillis = 60000;
+    protected long httpPoolLeaseTimeoutMillis = 30000;
+    protected long authTimeoutMillis = 30000;
+    
+    protected RetryPolicy retryPolicy = null;
+    
+    protected int circuitBreakerFailureThreshold = 5;
+    protected long circuitBreakerOpenMillis = 30000;
+    protected int circuitBreakerHalfOpenRequests = 1;
+    private final ConcurrentHashMap<String,CircuitBreaker> circuitBreakers = new ConcurrentHashMap<String,CircuitBreaker>();
+    private final List<CircuitBreakerListener> circuitBreakerListeners = new CopyOnWriteArrayList<CircuitBreakerListener>();
+    
+    protected boolean adaptiveConcurrencyEnabled = false;
+    protected int adaptiveConcurrencyInitialLimit = 20;
+    protected int adaptiveConcurrencyMinLimit = 1;
+    protected int adaptiveConcurrencyMaxLimit = 200;
+    protected long adaptiveConcurrencyLatencyThresholdMillis = 2000;
+    protected long adaptiveConcurrencyQueueTimeoutMillis = 50;
+    private final ConcurrentHashMap<String,AdaptiveConcurrencyLimiter> concurrencyLimiters = new ConcurrentHashMap<String,AdaptiveConcurrencyLimiter>();
+    
+    protected boolean rateLimitEnabled = false;
+    protected double rateLimitPerSecond = 50;
+    protected double rateLimitMinPerSecond = 1;
+    protected double rateLimitBurst = 50;
+    protected long rateLimitRecoveryMillis = 30000;
+    protected long rateLimitMaxWaitMillis = 5000;
+    private final ConcurrentHashMap<String,AdaptiveRateLimiter> rateLimiters = new ConcurrentHashMap<String,AdaptiveRateLimiter>();
+    
+    // Errors of the service are common while it fails requests, capturing their stack traces can be turned off
+    protected boolean stacklessExceptions = false;
+    
+    protected RequestLog requestLog = null;
     
-    final Logger log = LoggerFactory.getLogger(IntuneClient.class);
+    protected Map<OperationClass,Bulkhead> bulkheads = null;
+    protected AdmissionController admissionController = null;
+    
+    // The service maps are only accessed while holding serviceMapLock
+    private final HashMap<String,String> serviceMap = new HashMap<String,String>();
+    private final HashMap<String,String> alternateServiceMap = new HashMap<String,String>();
+    private final HashMap<String,UnresolvedService> unresolvedServiceMap = new HashMap<String,UnresolvedService>();
+    private Long lastServiceMapLogTime = null;
+    private final ReentrantLock serviceMapLock = new ReentrantLock();
+    private final ReentrantLock transportLock = new ReentrantLock();
+    
+    static final Logger log = LoggerFactory.getLogger(IntuneClient.class);
     
     /**
      * Constructs an IntuneClient object which can be used to make requests to Intune services.
@@ -128,6 +204,21 @@ class IntuneClient
      * @throws IllegalArgumentException
      */
     public IntuneClient(Properties configProperties, MSALClientWrapper msalAuthClient, ADALClientWrapper adalAuthClient, HttpClientBuilder httpClientBuilder) throws IllegalArgumentException
+    {
+        this(configProperties, msalAuthClient, adalAuthClient, httpClientBuilder, false, null);
+    }
+    
+    /**
+     * Constructs an IntuneClient object.
+     * @param configProperties
+     * @param msalAuthClient
+     * @param adalAuthClient
+     * @param httpClientBuilder
+     * @param sharedTransport true if the httpClientBuilder is owned and configured by the caller and shared with other clients, it will not be modified.
+     * @param resources Bulkheads and admission control shared with other clients or null to create them from the configuration.
+     * @throws IllegalArgumentException
+     */
+    IntuneClient(Properties configProperties, MSALClientWrapper msalAuthClient, ADALClientWrapper adalAuthClient, HttpClientBuilder httpClientBuilder, boolean sharedTransport, ClientResources resources) throws IllegalArgumentException
     {        
         if(configProperties == null)
         {
@@ -163,12 +254,56 @@ class IntuneClient
         this.msGraphVersion = configProperties.getProperty("MS_GRAPH_API_VERSION", this.msGraphVersion);
         this.msGraphResourceUrl = configProperties.getProperty("MS_GRAPH_RESOURCE_URL", this.msGraphResourceUrl);
         
+        this.serviceNotFoundCacheTtlMillis = getLongProperty(configProperties, "SERVICE_NOT_FOUND_CACHE_TTL_MS", this.serviceNotFoundCacheTtlMillis);
+        this.serviceMapLogIntervalMillis = getLongProperty(configProperties, "SERVICE_MAP_LOG_INTERVAL_MS", this.serviceMapLogIntervalMillis);
+        
+        this.httpConnectTimeoutMillis = getLongProperty(configProperties, "HTTP_CONNECT_TIMEOUT_MS", this.httpConnectTimeoutMillis);
+        this.httpReadTimeoutMillis = getLongProperty(configProperties, "HTTP_READ_TIMEOUT_MS", this.httpReadTimeoutMillis);
+        this.httpPoolLeaseTimeoutMillis = getLongProperty(configProperties, "HTTP_POOL_LEASE_TIMEOUT_MS", this.httpPoolLeaseTimeoutMillis);
+        this.httpMaxConnections = (int)getLongProperty(configProperties, "HTTP_MAX_CONNECTIONS", this.httpMaxConnections);
+        this.httpMaxConnectionsPerRoute = (int)getLongProperty(configProperties, "HTTP_MAX_CONNECTIONS_PER_ROUTE", this.httpMaxConnections);
+        this.authTimeoutMillis = getLongProperty(configProperties, "AUTH_TIMEOUT_MS", this.authTimeoutMillis);
+        
+        this.stacklessExceptions = Boolean.parseBoolean(configProperties.getProperty("STACKLESS_EXCEPTIONS_ENABLED", "false"));
+        this.requestLog = RequestLog.create(configProperties);
+        
+        this.rateLimitEnabled = Boolean.parseBoolean(configProperties.getProperty("RATE_LIMIT_ENABLED", "false"));
+        this.rateLimitPerSecond = getDoubleProperty(configProperties, "RATE_LIMIT_PER_SECOND", this.rateLimitPerSecond);
+        this.rateLimitMinPerSecond = getDoubleProperty(configProperties, "RATE_LIMIT_MIN_PER_SECOND", this.rateLimitMinPerSecond);
+        this.rateLimitBurst = getDoubleProperty(configProperties, "RATE_LIMIT_BURST", this.rateLimitPerSecond);
+        this.rateLimitRecoveryMillis = getLongProperty(configProperties, "RATE_LIMIT_RECOVERY_MS", this.rateLimitRecoveryMillis);
+        this.rateLimitMaxWaitMillis = getLongProperty(configProperties, "RATE_LIMIT_MAX_WAIT_MS", this.rateLimitMaxWaitMillis);
+        
+        if(resources == null)
+        {
+            resources = ClientResources.create(configProperties);
+        }
+        this.retryPolicy = new RetryPolicy(configProperties, resources.retryBudget);
+        this.bulkheads = resources.bulkheads;
+        this.admissionController = resources.admissionController;
+        
+        this.circuitBreakerFailureThreshold = (int)getLongProperty(configProperties, "CIRCUIT_BREAKER_FAILURE_THRESHOLD", this.circuitBreakerFailureThreshold);
+        this.circuitBreakerOpenMillis = getLongProperty(configProperties, "CIRCUIT_BREAKER_OPEN_MS", this.circuitBreakerOpenMillis);
+        this.circuitBreakerHalfOpenRequests = (int)getLongProperty(configProperties, "CIRCUIT_BREAKER_HALF_OPEN_REQUESTS", this.circuitBreakerHalfOpenRequests);
+        if(this.circuitBreakerHalfOpenRequests < 1)
+        {
+            throw new IllegalArgumentException("'CIRCUIT_BREAKER_HALF_OPEN_REQUESTS' must be at least 1.");
+        }
+        
+        this.adaptiveConcurrencyEnabled = Boolean.parseBoolean(configProperties.getProperty("ADAPTIVE_CONCURRENCY_ENABLED", "false"));
+        this.adaptiveConcurrencyInitialLimit = (int)getLongProperty(configProperties, "ADAPTIVE_CONCURRENCY_INITIAL_LIMIT", this.adaptiveConcurrencyInitialLimit);
+        this.adaptiveConcurrencyMinLimit = (int)getLongProperty(configProperties, "ADAPTIVE_CONCURRENCY_MIN_LIMIT", this.adaptiveConcurrencyMinLimit);
+        this.adaptiveConcurrencyMaxLimit = (int)getLongProperty(configProperties, "ADAPTIVE_CONCURRENCY_MAX_LIMIT", this.adaptiveConcurrencyMaxLimit);
+        this.adaptiveConcurrencyLatencyThresholdMillis = getLongProperty(configProperties, "ADAPTIVE_CONCURRENCY_LATENCY_THRESHOLD_MS", this.adaptiveConcurrencyLatencyThresholdMillis);
+        this.adaptiveConcurrencyQueueTimeoutMillis = getLongProperty(configProperties, "ADAPTIVE_CONCURRENCY_QUEUE_TIMEOUT_MS", this.adaptiveConcurrencyQueueTimeoutMillis);
+        
         this.msalAuthClient = msalAuthClient == null ? new MSALClientWrapper(this.intuneTenant, configProperties) : msalAuthClient;
         
         this.aadCredential = new ClientCredential(azureAppId, azureAppKey);
         this.adalAuthClient = adalAuthClient == null ? new ADALClientWrapper(this.intuneTenant, this.aadCredential, configProperties) : adalAuthClient;
         
         this.httpClientBuilder = httpClientBuilder == null ? this.httpClientBuilder : httpClientBuilder;
+        this.sharedTransport = sharedTransport && httpClientBuilder != null;
         
         proxyHost = configProperties.getProperty("PROXY_HOST");
         if(this.proxyHost != null && !this.proxyHost.isEmpty())
@@ -198,11 +333,12 @@ class IntuneClient
             }
         }
         
-        setProxy();
+        this.httpClientBuilder = setProxy(this.httpClientBuilder);
     }
     
     /**
-     * Sets the SSL factory to be used for all HTTP clients.
+     * Sets the SSL factory to be used for all HTTP clients.  Safe to call while requests are in flight, they complete 
+     * on the previous connection pool which is shut down afterwards.
      * @param factory
      */
     public void SetSslSocketFactory(SSLSocketFactory factory) throws IllegalArgumentException
@@ -212,27 +348,54 @@ class IntuneClient
             throw new IllegalArgumentException("The argument 'factory' is missing.");
         }
         
-        this.log.info("Setting SSL Socket Factory");
-        
-        this.msalAuthClient.SetSslSocketFactory(factory);
-        this.adalAuthClient.SetSslSocketFactory(factory);
-        
-        this.sslSocketFactory = factory;
-               
-        this.httpClientBuilder = HttpClientBuilder.create();
-        SSLConnectionSocketFactory sslConnectionFactory = new SSLConnectionSocketFactory(this.sslSocketFactory, new String[] { "TLSv1.2" }, null, new DefaultHostnameVerifier());
-        this.httpClientBuilder.setSSLSocketFactory(sslConnectionFactory);
-        
-        setProxy();
-        
-        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
-                .register("https", sslConnectionFactory)
-                .register("http", PlainConnectionSocketFactory.getSocketFactory())
-                .build();
-        
-        HttpClientConnectionManager ccm = new BasicHttpClientConnectionManager(registry);
+        log.info("Setting SSL Socket Factory");
         
-        this.httpClientBuilder.setConnectionManager(ccm);
+        this.transportLock.lock();
+        try
+        {
+            this.msalAuthClient.SetSslSocketFactory(factory);
+            this.adalAuthClient.SetSslSocketFactory(factory);
+            
+            this.sslSocketFactory = factory;
+            
+            if(this.sharedTransport)
+            {
+                // The owner of the shared transport is responsible for its TLS configuration
+                return;
+            }
+            
+            // The builder is fully configured before it is published, requests never see a partially configured one
+            HttpClientBuilder builder = HttpClientBuilder.create();
+            SSLConnectionSocketFactory sslConnectionFactory = new SSLConnectionSocketFactory(factory, new String[] { "TLSv1.2" }, null, new DefaultHostnameVerifier());
+            builder.setSSLSocketFactory(sslConnectionFactory);
+            
+            builder = setProxy(builder);
+            
+            Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("https", sslConnectionFactory)
+                    .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                    .build();
+            
+            // The pool is shared by the clients built for each request so that closing one does not shut it down
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(registry);
+            connectionManager.setMaxTotal(this.httpMaxConnections);
+            connectionManager.setDefaultMaxPerRoute(this.httpMaxConnectionsPerRoute);
+            
+            builder.setConnectionManager(connectionManager);
+            builder.setConnectionManagerShared(true);
+            
+            Transport previous = this.transport;
+            this.transport = new Transport(builder, connectionManager);
+            this.httpClientBuilder = builder;
+            if(previous != null)
+            {
+                previous.retire();
+            }
+        }
+        finally
+        {
+            this.transportLock.unlock();
+        }
     }
     
     /**
@@ -276,6 +439,22 @@ class IntuneClient
      * @throws IntuneClientException 
      */
     public JSONObject PostRequest(String serviceName, String urlSuffix, String apiVersion, JSONObject json, UUID activityId, Map<String,String> additionalHeaders) throws ServiceUnavailableException, InterruptedException, ExecutionException, ClientProtocolException, IOException, AuthenticationException, IllegalArgumentException, IntuneClientException
+    {
+        return this.PostRequest(serviceName, urlSuffix, apiVersion, json, activityId, additionalHeaders, new RequestContext());
+    }
+    
+    /**
+     * Post a Request to an Intune rest service.
+     * @param serviceName The name of the service to post to.
+     * @param urlSuffix The end of the url to tack onto the request.
+     * @param apiVersion API Version of service to use.
+     * @param json The body of the request.
+     * @param activityId Client generated ID for correlation of this activity
+     * @param additionalHeaders key value pairs of additional header values to add to the request
+     * @param context State of the call shared with the caller
+     * @return JSON response from service
+     */
+    JSONObject PostRequest(String serviceName, String urlSuffix, String apiVersion, JSONObject json, UUID activityId, Map<String,String> additionalHeaders, RequestContext context) throws ServiceUnavailableException, InterruptedException, ExecutionException, ClientProtocolException, IOException, AuthenticationException, IllegalArgumentException, IntuneClientException
     {
         if(serviceName == null || serviceName.isEmpty())
         {
@@ -297,22 +476,411 @@ class IntuneClient
             throw new IllegalArgumentException("The argument 'json' is missing");
         }
         
-        
-        String intuneServiceEndpoint = GetServiceEndpoint(serviceName);
-        if(intuneServiceEndpoint == null || intuneServiceEndpoint.isEmpty())
+        // Serialize the body once, the entity is repeatable so every attempt sends the same bytes
+        return PostRequest(serviceName, urlSuffix, apiVersion, new StringEntity(json.toString()), activityId, additionalHeaders, context);
+    }
+    
+    /**
+     * Post a Request to an Intune rest service.
+     * @param serviceName The name of the service to post to.
+     * @param urlSuffix The end of the url to tack onto the request.
+     * @param apiVersion API Version of service to use.
+     * @param entity The body of the request, it must be repeatable so that failed attempts can be retried.
+     * @param activityId Client generated ID for correlation of this activity
+     * @param additionalHeaders key value pairs of additional header values to add to the request
+     * @param context State of the call shared with the caller
+     * @return JSON response from service
+     */
+    JSONObject PostRequest(String serviceName, String urlSuffix, String apiVersion, HttpEntity entity, UUID activityId, Map<String,String> additionalHeaders, RequestContext context) throws ServiceUnavailableException, InterruptedException, ExecutionException, ClientProtocolException, IOException, AuthenticationException, IllegalArgumentException, IntuneClientException
+    {
+        // Throws IntuneServiceNotFoundException when the service is not listed
+        String intuneServiceEndpoint = null;
+        try
+        {
+            context.checkDeadline(IntuneTimeoutException.Phase.ServiceDiscovery);
+            intuneServiceEndpoint = GetServiceEndpoint(serviceName, context);
+        }
+        catch(IntuneTimeoutException e)
+        {
+            if(e.getPhase() == IntuneTimeoutException.Phase.ServiceDiscovery)
+            {
+                throw e;
+            }
+            throw new IntuneTimeoutException(IntuneTimeoutException.Phase.ServiceDiscovery, e.isDeadlineExceeded(), e);
+        }
+        catch(IOException e)
+        {
+            CheckTimeout(e, IntuneTimeoutException.Phase.ServiceDiscovery, context);
+            throw e;
+        }
+        if(intuneServiceEndpoint.isEmpty())
         {
             IntuneServiceNotFoundException ex = new IntuneServiceNotFoundException(serviceName);
-            this.log.error(ex.getMessage(), ex);
+            log.error(ex.getMessage(), ex);
             throw ex;
         }
         
+        String intuneRequestUrl = intuneServiceEndpoint + "/" + urlSuffix;
+        
+        // Calls that are shed never reach the retry loop so they do not add to the retry budget
+        if(this.admissionController == null)
+        {
+            return RetryingPostRequest(intuneRequestUrl, serviceName, intuneServiceEndpoint, apiVersion, entity, activityId, additionalHeaders, context);
+        }
+        
+        this.admissionController.acquire(context);
+        long start = System.nanoTime();
+        try
+        {
+            return RetryingPostRequest(intuneRequestUrl, serviceName, intuneServiceEndpoint, apiVersion, entity, activityId, additionalHeaders, context);
+        }
+        finally
+        {
+            this.admissionController.release(System.nanoTime() - start);
+        }
+    }
+    
+    private JSONObject RetryingPostRequest(String intuneRequestUrl, String serviceName, String intuneServiceEndpoint, String apiVersion, HttpEntity entity, UUID activityId, Map<String,String> additionalHeaders, RequestContext context) throws ServiceUnavailableException, ClientProtocolException, IOException, IntuneClientException, InterruptedException
+    {
+        CircuitBreaker circuitBreaker = GetCircuitBreaker(intuneServiceEndpoint);
+        AdaptiveConcurrencyLimiter concurrencyLimiter = GetConcurrencyLimiter(serviceName);
+        AdaptiveRateLimiter rateLimiter = GetRateLimiter(serviceName);
+        
+        this.retryPolicy.onRequest();
+        for(int attempt = 1; ; attempt++)
+        {
+            try
+            {
+                return GuardedPostAttempt(rateLimiter, circuitBreaker, concurrencyLimiter, intuneRequestUrl, apiVersion, entity, activityId, additionalHeaders, context);
+            }
+            catch(Exception e)
+            {
+                long delay = context.isCancelled() || !context.isRetryEnabled() ? -1 : this.retryPolicy.getRetryDelayMillis(attempt, e, context.getOperationClass());
+                if(delay < 0)
+                {
+                    throw e;
+                }
+                
+                if(context.hasDeadline() && context.getRemainingMillis(0) <= delay)
+                {
+                    throw new IntuneTimeoutException(IntuneTimeoutException.Phase.RetryBackoff, true, e);
+                }
+                
+                log.warn("ActivityId: {} Attempt {} to {} failed with {}, retrying in {}ms", activityId, attempt, intuneRequestUrl, DescribeFailure(e), delay);
+                Thread.sleep(delay);
+            }
+        }
+    }
+    
+    /**
+     * The admission controller of this client or null if admission control is not enabled.
+     */
+    public AdmissionController getAdmissionController()
+    {
+        return this.admissionController;
+    }
+    
+    /**
+     * The bulkheads that partition the resources of this client between operation classes.
+     */
+    public Collection<Bulkhead> getBulkheads()
+    {
+        return this.bulkheads.values();
+    }
+    
+    /**
+     * Adds a listener that is notified when the circuit breaker of an endpoint changes state.
+     * @param listener The listener to add.
+     */
+    public void addCircuitBreakerListener(CircuitBreakerListener listener)
+    {
+        if(listener == null)
+        {
+            throw new IllegalArgumentException("The argument 'listener' is missing");
+        }
+        
+        this.circuitBreakerListeners.add(listener);
+    }
+    
+    /**
+     * The circuit breakers of the endpoints this client has sent requests to.
+     */
+    public Collection<CircuitBreaker> getCircuitBreakers()
+    {
+        return Collections.unmodifiableCollection(this.circuitBreakers.values());
+    }
+    
+    private CircuitBreaker GetCircuitBreaker(String endpoint)
+    {
+        if(this.circuitBreakerFailureThreshold <= 0)
+        {
+            return null;
+        }
+        
+        CircuitBreaker circuitBreaker = this.circuitBreakers.get(endpoint);
+        if(circuitBreaker == null)
+        {
+            CircuitBreaker created = new CircuitBreaker(endpoint, this.circuitBreakerFailureThreshold, this.circuitBreakerOpenMillis, this.circuitBreakerHalfOpenRequests, this.circuitBreakerListeners);
+            circuitBreaker = this.circuitBreakers.putIfAbsent(endpoint, created);
+            if(circuitBreaker == null)
+            {
+                circuitBreaker = created;
+            }
+        }
+        
+        return circuitBreaker;
+    }
+    
+    private static void RecordCircuitBreakerFailure(CircuitBreaker circuitBreaker, long permit, Exception e)
+    {
+        e = GetTransportFailure(e);
+        
+        // Only server errors and transport failures say the endpoint is unhealthy, client errors mean it is up
+        if(e instanceof IOException ||
+           (e instanceof IntuneClientHttpErrorException && ((IntuneClientHttpErrorException)e).getStatusCode() >= 500))
+        {
+            circuitBreaker.onFailure(permit);
+        }
+        else if(e instanceof IntuneClientHttpErrorException)
+        {
+            circuitBreaker.onSuccess(permit);
+        }
+        else
+        {
+            circuitBreaker.onIgnored(permit);
+        }
+    }
+    
+    /**
+     * The adaptive concurrency limiters of the services this client has sent requests to.
+     */
+    public Collection<AdaptiveConcurrencyLimiter> getConcurrencyLimiters()
+    {
+        return Collections.unmodifiableCollection(this.concurrencyLimiters.values());
+    }
+    
+    /**
+     * The rate limiters of the services this client has sent requests to.
+     */
+    public Collection<AdaptiveRateLimiter> getRateLimiters()
+    {
+        return Collections.unmodifiableCollection(this.rateLimiters.values());
+    }
+    
+    private AdaptiveRateLimiter GetRateLimiter(String serviceName)
+    {
+        if(!this.rateLimitEnabled)
+        {
+            return null;
+        }
+        
+        String serviceNameLower = serviceName.toLowerCase();
+        AdaptiveRateLimiter limiter = this.rateLimiters.get(serviceNameLower);
+        if(limiter == null)
+        {
+            AdaptiveRateLimiter created = new AdaptiveRateLimiter(serviceName, 
+                    this.intuneTenant, 
+                    this.rateLimitPerSecond, 
+                    this.rateLimitMinPerSecond, 
+                    this.rateLimitBurst, 
+                    this.rateLimitRecoveryMillis, 
+                    this.rateLimitMaxWaitMillis);
+            limiter = this.rateLimiters.putIfAbsent(serviceNameLower, created);
+            if(limiter == null)
+            {
+                limiter = created;
+            }
+        }
+        
+        return limiter;
+    }
+    
+    private AdaptiveConcurrencyLimiter GetConcurrencyLimiter(String serviceName)
+    {
+        if(!this.adaptiveConcurrencyEnabled)
+        {
+            return null;
+        }
+        
+        String serviceNameLower = serviceName.toLowerCase();
+        AdaptiveConcurrencyLimiter limiter = this.concurrencyLimiters.get(serviceNameLower);
+        if(limiter == null)
+        {
+            AdaptiveConcurrencyLimiter created = new AdaptiveConcurrencyLimiter(serviceName, 
+                    this.adaptiveConcurrencyInitialLimit, 
+                    this.adaptiveConcurrencyMinLimit, 
+                    this.adaptiveConcurrencyMaxLimit, 
+                    0.9,
+                    this.adaptiveConcurrencyLatencyThresholdMillis, 
+                    this.adaptiveConcurrencyQueueTimeoutMillis);
+            limiter = this.concurrencyLimiters.putIfAbsent(serviceNameLower, created);
+            if(limiter == null)
+            {
+                limiter = created;
+            }
+        }
+        
+        return limiter;
+    }
+    
+    /**
+     * Sends a single attempt at the pace allowed by the rate limiter while holding a permit of the bulkhead of its 
+     * operation class, and slows the rate limiter down if the service throttled the attempt.
+     */
+    private JSONObject GuardedPostAttempt(AdaptiveRateLimiter rateLimiter, CircuitBreaker circuitBreaker, AdaptiveConcurrencyLimiter concurrencyLimiter, String intuneRequestUrl, String apiVersion, HttpEntity entity, UUID activityId, Map<String,String> additionalHeaders, RequestContext context) throws ServiceUnavailableException, ClientProtocolException, IOException, IntuneClientException, InterruptedException
+    {
+        if(rateLimiter != null)
+        {
+            rateLimiter.acquire(context);
+        }
+        
+        Bulkhead bulkhead = this.bulkheads.get(context.getOperationClass());
+        bulkhead.acquire(context);
+        try
+        {
+            return LimitedPostAttempt(circuitBreaker, concurrencyLimiter, intuneRequestUrl, apiVersion, entity, activityId, additionalHeaders, context);
+        }
+        catch(IntuneClientHttpErrorException e)
+        {
+            if(rateLimiter != null && (e.getStatusCode() == 429 || e.getRetryAfterMillis() != null))
+            {
+                rateLimiter.onThrottled(e.getRetryAfterMillis());
+            }
+            throw e;
+        }
+        finally
+        {
+            bulkhead.release();
+        }
+    }
+    
+    /**
+     * Sends a single attempt through the concurrency limiter and circuit breaker and records its outcome with both.
+     */
+    private JSONObject LimitedPostAttempt(CircuitBreaker circuitBreaker, AdaptiveConcurrencyLimiter concurrencyLimiter, String intuneRequestUrl, String apiVersion, HttpEntity entity, UUID activityId, Map<String,String> additionalHeaders, RequestContext context) throws ServiceUnavailableException, ClientProtocolException, IOException, IntuneClientException, InterruptedException
+    {
+        if(concurrencyLimiter != null)
+        {
+            concurrencyLimiter.acquire();
+        }
+        
+        long start = System.nanoTime();
+        AdaptiveConcurrencyLimiter.Outcome outcome = AdaptiveConcurrencyLimiter.Outcome.Ignored;
+        try
+        {
+            // Fail fast without waiting on an endpoint that is known to be down
+            long permit = 0;
+            if(circuitBreaker != null)
+            {
+                permit = circuitBreaker.acquirePermission();
+            }
+            
+            try
+            {
+                JSONObject result = PostAttempt(intuneRequestUrl, apiVersion, entity, activityId, additionalHeaders, context);
+                if(circuitBreaker != null)
+                {
+                    circuitBreaker.onSuccess(permit);
+                }
+                outcome = AdaptiveConcurrencyLimiter.Outcome.Success;
+                return result;
+            }
+            catch(Exception e)
+            {
+                if(circuitBreaker != null)
+                {
+                    if(context.isCancelled())
+                    {
+                        circuitBreaker.onIgnored(permit);
+                    }
+                    else
+                    {
+                        RecordCircuitBreakerFailure(circuitBreaker, permit, e);
+                    }
+                }
+                if(IsCongestionSignal(e))
+                {
+                    outcome = AdaptiveConcurrencyLimiter.Outcome.Dropped;
+                }
+                throw e;
+            }
+        }
+        finally
+        {
+            if(concurrencyLimiter != null)
+            {
+                concurrencyLimiter.release(System.nanoTime() - start, outcome);
+            }
+        }
+    }
+    
+    /**
+     * Describes a failure for the log without serializing the response of an HTTP error.
+     */
+    static String DescribeFailure(Exception e)
+    {
+        if(e instanceof IntuneClientHttpErrorException)
+        {
+            return "HTTP " + ((IntuneClientHttpErrorException)e).getStatusCode();
+        }
+        return e.toString();
+    }
+    
+    /**
+     * The failure of the endpoint behind a timeout that ran into the deadline of the call.  A connect or read that 
+     * timed out says as much about the endpoint whether or not the deadline ran out with it, the other phases are local.
+     */
+    private static Exception GetTransportFailure(Exception e)
+    {
+        if(e instanceof IntuneTimeoutException && e.getCause() instanceof Exception)
+        {
+            IntuneTimeoutException.Phase phase = ((IntuneTimeoutException)e).getPhase();
+            if(phase == IntuneTimeoutException.Phase.Connect || phase == IntuneTimeoutException.Phase.Response)
+            {
+                return (Exception)e.getCause();
+            }
+        }
+        return e;
+    }
+    
+    private static boolean IsCongestionSignal(Exception e)
+    {
+        e = GetTransportFailure(e);
+        if(e instanceof IntuneClientHttpErrorException)
+        {
+            int statusCode = ((IntuneClientHttpErrorException)e).getStatusCode();
+            return statusCode == 429 || statusCode == 503 || statusCode == 504;
+        }
+        
+        return e instanceof SocketTimeoutException || e instanceof ConnectTimeoutException;
+    }
+    
+    /**
+     * Resolves the endpoint of a service and acquires the token for Intune, so that calls that start together find 
+     * both cached instead of all waiting on them.
+     */
+    void Prepare(String serviceName, RequestContext context) throws ServiceUnavailableException, InterruptedException, ExecutionException, ClientProtocolException, IOException, AuthenticationException, IntuneClientException
+    {
+        String intuneServiceEndpoint = GetServiceEndpoint(serviceName, context);
+        if(intuneServiceEndpoint.isEmpty())
+        {
+            throw new IntuneServiceNotFoundException(serviceName);
+        }
+        
+        Set<String> scopes = new HashSet<String>();
+        scopes.add(this.intuneResourceUrl + "/.default");
+        AcquireToken(scopes, context);
+    }
+    
+    private JSONObject PostAttempt(String intuneRequestUrl, String apiVersion, HttpEntity entity, UUID activityId, Map<String,String> additionalHeaders, RequestContext context) throws ServiceUnavailableException, ClientProtocolException, IOException, IntuneClientException, InterruptedException
+    {
         Set<String> scopes = new HashSet<String>();
         scopes.add(this.intuneResourceUrl + "/.default");
         
-        String token = this.msalAuthClient.getAccessToken(scopes);
+        String token = AcquireToken(scopes, context);
         
-        String intuneRequestUrl = intuneServiceEndpoint + "/" + urlSuffix;
-        CloseableHttpClient httpclient = this.getCloseableHttpClient();
+        Transport transport = LeaseTransport();
+        CloseableHttpClient httpclient = this.getCloseableHttpClient(transport);
         HttpPost httpPost = new HttpPost(intuneRequestUrl);
         httpPost.addHeader("Authorization", "Bearer " + token);
         httpPost.addHeader("content-type", "application/json");
@@ -327,19 +895,26 @@ class IntuneClient
             }
         }
         
-        httpPost.setEntity(new StringEntity(json.toString()));
+        httpPost.setEntity(entity);
+        httpPost.setConfig(GetRequestConfig(context, IntuneTimeoutException.Phase.Connect));
         
         CloseableHttpResponse intuneResponse = null;
         JSONObject jsonResult = null;
         try 
         {
+            context.setCurrentRequest(httpPost);
             intuneResponse = httpclient.execute(httpPost);
             jsonResult = ParseResponseToJSON(intuneResponse, intuneRequestUrl, activityId);
         }
         catch(UnknownHostException e)
         {
-            this.log.error("Failed to contact intune service with URL: " + intuneRequestUrl, e);
-            serviceMap.clear(); // clear contents in case the service location has changed and we cached the value
+            log.error("Failed to contact intune service with URL: {}", intuneRequestUrl, e);
+            ClearServiceMap(); // clear contents in case the service location has changed and we cached the value
+            throw e;
+        }
+        catch(IOException e)
+        {
+            CheckTimeout(e, null, context);
             throw e;
         }
         finally 
@@ -348,43 +923,121 @@ class IntuneClient
                 httpclient.close();
             if(intuneResponse != null)
                 intuneResponse.close();
+            if(transport != null)
+                transport.release();
         }
         return jsonResult;
     }
     
-    private synchronized String GetServiceEndpoint(String serviceName) throws ServiceUnavailableException, ClientProtocolException, AuthenticationException, InterruptedException, ExecutionException, IOException, IntuneClientException
+    /**
+     * Looks up the endpoint of a service, refreshing the service map from Graph when needed.  The map is guarded by a 
+     * lock instead of synchronized so that a virtual thread waiting on Graph does not pin its carrier thread.
+     */
+    private String GetServiceEndpoint(String serviceName, RequestContext context) throws ServiceUnavailableException, ClientProtocolException, AuthenticationException, InterruptedException, ExecutionException, IOException, IntuneClientException
     {
         if(serviceName == null || serviceName.isEmpty())
         {
             throw new IllegalArgumentException("The argument 'serviceName' is missing");
         }
         
+        this.serviceMapLock.lockInterruptibly();
+        try
+        {
+            return LookupServiceEndpoint(serviceName, context);
+        }
+        finally
+        {
+            this.serviceMapLock.unlock();
+        }
+    }
+    
+    private String LookupServiceEndpoint(String serviceName, RequestContext context) throws ServiceUnavailableException, ClientProtocolException, AuthenticationException, InterruptedException, ExecutionException, IOException, IntuneClientException
+    {
         String serviceNameLower = serviceName.toLowerCase();
         
         // Pull down the service map if we haven't populated it OR we are forcing a refresh
+        boolean refreshed = false;
         if(serviceMap.size() <= 0)
         {
-            this.log.info("Refreshing service map from Microsoft.Graph");
-            RefreshServiceMap();
+            log.info("Refreshing service map from Microsoft.Graph");
+            RefreshServiceMap(context);
+            refreshed = true;
         }
 
+        if(context.useAlternateEndpoint() && alternateServiceMap.containsKey(serviceNameLower))
+        {
+            return alternateServiceMap.get(serviceNameLower);
+        }
+        
         if(serviceMap.containsKey(serviceNameLower))
         {
             return serviceMap.get(serviceNameLower);
         }
         
-        // LOG Cache contents
-        this.log.info("Could not find endpoint for service '" + serviceName + "'");
-        this.log.info("ServiceMap: ");
-        for(Entry<String, String> entry:serviceMap.entrySet())
+        // Fail fast if we recently failed to find this service, otherwise give discovery another chance
+        long now = System.nanoTime();
+        UnresolvedService unresolved = unresolvedServiceMap.get(serviceNameLower);
+        if(unresolved != null)
+        {
+            if(now - unresolved.expiresAt < 0)
+            {
+                // Every caller gets its own exception, a shared one would collect suppressed exceptions and causes from all of them
+                throw new IntuneServiceNotFoundException(serviceName, false);
+            }
+            
+            unresolvedServiceMap.remove(serviceNameLower);
+            if(!refreshed)
+            {
+                log.info("Refreshing service map from Microsoft.Graph");
+                serviceMap.clear();
+                alternateServiceMap.clear();
+                RefreshServiceMap(context);
+                if(serviceMap.containsKey(serviceNameLower))
+                {
+                    return serviceMap.get(serviceNameLower);
+                }
+            }
+        }
+        
+        IntuneServiceNotFoundException ex = new IntuneServiceNotFoundException(serviceName);
+        if(this.serviceNotFoundCacheTtlMillis > 0)
         {
-            this.log.info(entry.getKey() + ":" + entry.getValue());
+            unresolvedServiceMap.put(serviceNameLower, new UnresolvedService(now + TimeUnit.MILLISECONDS.toNanos(this.serviceNotFoundCacheTtlMillis)));
         }
         
-        return null;
+        log.error(ex.getMessage(), ex);
+        
+        // LOG Cache contents, but not more often than the configured interval
+        log.info("Could not find endpoint for service '{}'", serviceName);
+        if(lastServiceMapLogTime == null || now - lastServiceMapLogTime >= TimeUnit.MILLISECONDS.toNanos(this.serviceMapLogIntervalMillis))
+        {
+            lastServiceMapLogTime = now;
+            log.info("ServiceMap: ");
+            for(Entry<String, String> entry:serviceMap.entrySet())
+            {
+                log.info("{}:{}", entry.getKey(), entry.getValue());
+            }
+        }
+        
+        throw ex;
+    }
+    
+    private void ClearServiceMap()
+    {
+        this.serviceMapLock.lock();
+        try
+        {
+            serviceMap.clear();
+            alternateServiceMap.clear();
+            unresolvedServiceMap.clear();
+        }
+        finally
+        {
+            this.serviceMapLock.unlock();
+        }
     }
     
-    private void RefreshServiceMap() throws ServiceUnavailableException, InterruptedException, ExecutionException, ClientProtocolException, IOException, AuthenticationException, IntuneClientException
+    private void RefreshServiceMap(RequestContext context) throws ServiceUnavailableException, InterruptedException, ExecutionException, ClientProtocolException, IOException, AuthenticationException, IntuneClientException
     {
         String graphRequest = "";
         String token = "";
@@ -393,9 +1046,17 @@ class IntuneClient
         scopes.add(this.msGraphResourceUrl + ".default");
         try 
         {
-            token = this.msalAuthClient.getAccessToken(scopes);
+            token = AcquireToken(scopes, context);
             graphRequest = this.msGraphResourceUrl + "v" + this.msGraphVersion + "/servicePrincipals/appId="+ this.intuneAppId + "/endpoints";
         }
+        catch(IntuneTimeoutException e)
+        {
+            if(e.isDeadlineExceeded())
+            {
+                throw e;
+            }
+            msalFailed = true;
+        }
         catch(Exception e)
         {
             msalFailed = true;
@@ -403,16 +1064,34 @@ class IntuneClient
         
         if(msalFailed) 
         {
-            AuthenticationResult authResult = this.adalAuthClient.getAccessTokenFromCredential(this.aadGraphResourceUrl);
+            AuthenticationResult authResult = null;
+            if(!context.hasDeadline())
+            {
+                authResult = this.adalAuthClient.getAccessTokenFromCredential(this.aadGraphResourceUrl);
+            }
+            else
+            {
+                context.checkDeadline(IntuneTimeoutException.Phase.TokenAcquisition);
+                try
+                {
+                    authResult = this.adalAuthClient.getAccessTokenFromCredential(this.aadGraphResourceUrl, context.getRemainingMillis(this.authTimeoutMillis));
+                }
+                catch(TimeoutException e)
+                {
+                    throw new IntuneTimeoutException(IntuneTimeoutException.Phase.TokenAcquisition, context.isExpired(), e);
+                }
+            }
             token = authResult.getAccessToken();
             graphRequest = this.aadGraphResourceUrl + intuneTenant + "/servicePrincipalsByAppId/" + this.intuneAppId + "/serviceEndpoints?api-version=" + this.aadGraphVersion;
         }
 
         UUID activityId = UUID.randomUUID();
-        CloseableHttpClient httpclient = this.getCloseableHttpClient();
+        Transport transport = LeaseTransport();
+        CloseableHttpClient httpclient = this.getCloseableHttpClient(transport);
         HttpGet httpGet = new HttpGet(graphRequest);
         httpGet.addHeader("Authorization", "Bearer " + token);
         httpGet.addHeader("client-request-id", activityId.toString());
+        httpGet.setConfig(GetRequestConfig(context, IntuneTimeoutException.Phase.ServiceDiscovery));
         CloseableHttpResponse graphResponse = null;
         try 
         {
@@ -426,9 +1105,15 @@ class IntuneClient
                 
                 String name = msalFailed ? jObj.getString("serviceName").toLowerCase() : jObj.getString("providerName").toLowerCase();
                 
+                String uri = jObj.getString("uri");
                 if(!serviceMap.containsKey(name)) 
                 {
-                    serviceMap.put(name, jObj.getString("uri"));
+                    serviceMap.put(name, uri);
+                }
+                else if(!alternateServiceMap.containsKey(name) && !uri.equals(serviceMap.get(name)))
+                {
+                    // Keep a second endpoint that hedged requests can be sent to
+                    alternateServiceMap.put(name, uri);
                 }
             } 
         } 
@@ -438,7 +1123,80 @@ class IntuneClient
                 httpclient.close();
             if(graphResponse != null)
                 graphResponse.close();
+            if(transport != null)
+                transport.release();
+        }
+    }
+    
+    /**
+     * Gets an access token from MSAL within the time left for the call.  Calls without a deadline are bounded by the 
+     * AUTH_TIMEOUT_MS of the wrapper.
+     */
+    private String AcquireToken(Set<String> scopes, RequestContext context) throws ServiceUnavailableException, MalformedURLException, InterruptedException, IntuneTimeoutException
+    {
+        if(!context.hasDeadline())
+        {
+            return this.msalAuthClient.getAccessToken(scopes);
+        }
+        
+        context.checkDeadline(IntuneTimeoutException.Phase.TokenAcquisition);
+        try
+        {
+            return this.msalAuthClient.getAccessToken(scopes, context.getRemainingMillis(this.authTimeoutMillis));
+        }
+        catch(TimeoutException e)
+        {
+            throw new IntuneTimeoutException(IntuneTimeoutException.Phase.TokenAcquisition, context.isExpired(), e);
+        }
+    }
+    
+    /**
+     * Builds the timeouts of an HTTP request from the configured timeouts and the time left for the call.
+     * @param phase The phase reported if the deadline has already passed.
+     */
+    private RequestConfig GetRequestConfig(RequestContext context, IntuneTimeoutException.Phase phase) throws IntuneTimeoutException
+    {
+        context.checkDeadline(phase);
+        return RequestConfig.custom()
+                .setConnectionRequestTimeout((int)context.getRemainingMillis(this.httpPoolLeaseTimeoutMillis))
+                .setConnectTimeout((int)context.getRemainingMillis(this.httpConnectTimeoutMillis))
+                .setSocketTimeout((int)context.getRemainingMillis(this.httpReadTimeoutMillis))
+                .build();
+    }
+    
+    /**
+     * Reports an HTTP failure that was caused by the deadline of the call as an IntuneTimeoutException naming the phase 
+     * that ran out of time.  Returns for other failures, which the caller rethrows unchanged so that they can be retried.
+     * @param phase The phase to report or null to derive it from the exception.
+     */
+    private static void CheckTimeout(IOException e, IntuneTimeoutException.Phase phase, RequestContext context) throws IntuneTimeoutException
+    {
+        if(!context.isExpired())
+        {
+            return;
+        }
+        
+        if(phase == null)
+        {
+            if(e instanceof ConnectionPoolTimeoutException)
+            {
+                phase = IntuneTimeoutException.Phase.ConnectionLease;
+            }
+            else if(e instanceof ConnectTimeoutException)
+            {
+                phase = IntuneTimeoutException.Phase.Connect;
+            }
+            else if(e instanceof SocketTimeoutException)
+            {
+                phase = IntuneTimeoutException.Phase.Response;
+            }
+            else
+            {
+                return;
+            }
         }
+        
+        throw new IntuneTimeoutException(phase, true, e);
     }
     
     private JSONObject ParseResponseToJSON(CloseableHttpResponse response, String requestUrl, UUID activityId) throws IntuneClientException, IOException
@@ -464,28 +1222,36 @@ class IntuneClient
                 throw new IntuneClientException("ActivityId: " + activityId + " Unable to convert httpEntity from response to string", e);
             }
             
+            StatusLine statusLine = response.getStatusLine();
+            int statusCode = statusLine == null ? 0 : statusLine.getStatusCode();
+            boolean isError = statusLine != null && (statusCode < 200 || statusCode >= 300);
+            
             try
             {
                 jsonResult = new JSONObject(httpEntityStr);
             }
             catch(JSONException e)
             {
-                throw new IntuneClientException("ActivityId: " + activityId + " Unable to parse response from Intune to JSON", e);
+                if(!isError)
+                {
+                    throw new IntuneClientException("ActivityId: " + activityId + " Unable to parse response from Intune to JSON", e);
+                }
+                
+                // Gateways return non JSON bodies for errors such as 503, keep the status so the caller can act on it
+                jsonResult = new JSONObject().put("rawResponse", httpEntityStr);
             }
             
-            StatusLine statusLine = response.getStatusLine();
             if(statusLine == null)
             {
                 throw new IntuneClientException("ActivityId: " + activityId + " Unable to retrieve status line from intune response");
             }
             
-            int statusCode = statusLine.getStatusCode();
-            if(statusCode < 200 || statusCode >= 300)
+            if(isError)
             {
-                String msg = "Request to: " + requestUrl + " returned: " + statusLine;
-                IntuneClientHttpErrorException ex = new IntuneClientHttpErrorException(statusLine, jsonResult, activityId);
-                this.log.error(msg, ex);
-                throw ex;
+                // Error responses are common while the service is failing, the body is only written when debugging
+                log.warn("ActivityId: {} Request to: {} returned: {}", activityId, requestUrl, statusLine);
+                log.debug("ActivityId: {} Response: {}", activityId, httpEntityStr);
+                throw new IntuneClientHttpErrorException(statusLine, jsonResult, activityId, GetRetryAfterMillis(response), !this.stacklessExceptions);
             }
         } 
         finally 
@@ -497,43 +1263,223 @@ class IntuneClient
         return jsonResult;
     }
     
-    private CloseableHttpClient getCloseableHttpClient() 
+    /**
+     * Reads the Retry-After header, which is either a number of seconds or an HTTP date.
+     * @return The delay in milliseconds or null if the header is missing or invalid.
+     */
+    private static Long GetRetryAfterMillis(HttpResponse response)
     {
-        if(this.httpClientBuilder == null)
+        Header header = response.getFirstHeader("Retry-After");
+        if(header == null || header.getValue() == null)
+        {
+            return null;
+        }
+        
+        String value = header.getValue().trim();
+        try
+        {
+            return Math.max(0, TimeUnit.SECONDS.toMillis(Long.parseLong(value)));
+        }
+        catch(NumberFormatException e)
+        {
+            Date date = DateUtils.parseDate(value);
+            return date == null ? null : Math.max(0, date.getTime() - System.currentTimeMillis());
+        }
+    }
+    
+    private CloseableHttpClient getCloseableHttpClient(Transport transport) 
+    {
+        if(transport != null)
+        {
+            return transport.builder.build();
+        }
+        
+        HttpClientBuilder builder = this.httpClientBuilder;
+        if(builder == null)
         {
             return HttpClients.createDefault();
         }
 
-        return this.httpClientBuilder.build();
+        return builder.build();
+    }
+    
+    /**
+     * Leases the connection pool created by SetSslSocketFactory so that it is not shut down while the request uses it.
+     * @return The transport, it must be released, or null when no pool was created.
+     */
+    private Transport LeaseTransport()
+    {
+        while(true)
+        {
+            Transport current = this.transport;
+            if(current == null || current.lease())
+            {
+                return current;
+            }
+        }
+    }
+    
+    /**
+     * A connection pool and the builder of the clients that use it.  A pool that was replaced is shut down once the 
+     * last request leasing it is released.
+     */
+    private static final class Transport
+    {
+        final HttpClientBuilder builder;
+        private final PoolingHttpClientConnectionManager connectionManager;
+        private final AtomicInteger leases = new AtomicInteger();
+        private final AtomicBoolean shutdown = new AtomicBoolean();
+        private volatile boolean retired = false;
+        
+        Transport(HttpClientBuilder builder, PoolingHttpClientConnectionManager connectionManager)
+        {
+            this.builder = builder;
+            this.connectionManager = connectionManager;
+        }
+        
+        /**
+         * @return false if the transport was replaced and the current one has to be leased instead.
+         */
+        boolean lease()
+        {
+            this.leases.incrementAndGet();
+            if(this.retired)
+            {
+                release();
+                return false;
+            }
+            return true;
+        }
+        
+        void release()
+        {
+            if(this.leases.decrementAndGet() == 0 && this.retired)
+            {
+                shutdown();
+            }
+        }
+        
+        void retire()
+        {
+            this.retired = true;
+            if(this.leases.get() == 0)
+            {
+                shutdown();
+            }
+        }
+        
+        private void shutdown()
+        {
+            if(this.shutdown.compareAndSet(false, true))
+            {
+                this.connectionManager.shutdown();
+            }
+        }
+    }
+    
+    /**
+     * Reads an optional numeric property.
+     * @param configProperties Properties object containing client configuration information.
+     * @param name Name of the property.
+     * @param defaultValue Value to use when the property is not set.
+     * @return The value of the property or the default value.
+     * @throws IllegalArgumentException
+     */
+    protected static long getLongProperty(Properties configProperties, String name, long defaultValue) throws IllegalArgumentException
+    {
+        String value = configProperties.getProperty(name);
+        if(value == null || value.isEmpty())
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Long.parseLong(value.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("'" + name + "' must be a value that can be converted to a long.", e);
+        }
     }
     
-    private void setProxy()
+    /**
+     * Reads an optional decimal property.
+     * @param configProperties Properties object containing client configuration information.
+     * @param name Name of the property.
+     * @param defaultValue Value to use when the property is not set.
+     * @return The value of the property or the default value.
+     * @throws IllegalArgumentException
+     */
+    protected static double getDoubleProperty(Properties configProperties, String name, double defaultValue) throws IllegalArgumentException
+    {
+        String value = configProperties.getProperty(name);
+        if(value == null || value.isEmpty())
+        {
+            return defaultValue;
+        }
+        
+        try
+        {
+            return Double.parseDouble(value.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("'" + name + "' must be a value that can be converted to a double.", e);
+        }
+    }
+    
+    /**
+     * Sets the proxy and proxy credentials used by an HttpClientBuilder.
+     * @param builder The builder to configure.
+     * @param proxyHost Host name of the proxy.
+     * @param proxyPort Port of the proxy.
+     * @param proxyUser Optional user name for Basic Authentication with the proxy.
+     * @param proxyPass Password of the proxy user.
+     */
+    static void setHttpClientProxy(HttpClientBuilder builder, String proxyHost, int proxyPort, String proxyUser, String proxyPass)
+    {
+        builder.setProxy(new HttpHost(proxyHost, proxyPort));
+        
+        if(proxyUser != null && !proxyUser.isEmpty() &&
+           proxyPass != null && !proxyPass.isEmpty())
+        {
+            // Setting proxy auth for Intune HttpClient
+            Credentials credentials = new UsernamePasswordCredentials(proxyUser, proxyPass);
+            CredentialsProvider credsProvider = new BasicCredentialsProvider();
+            credsProvider.setCredentials(new AuthScope(proxyHost, proxyPort), credentials);
+            builder.setDefaultCredentialsProvider(credsProvider);
+        }
+    }
+    
+    /**
+     * Configures the proxy of the authentication clients and of an HTTP client builder.
+     * @param builder The builder to configure, null to create one if a proxy is configured.
+     * @return The builder to use.
+     */
+    private HttpClientBuilder setProxy(HttpClientBuilder builder)
     {
         if(proxyHost != null && !proxyHost.isEmpty() &&
            proxyPort != null)
          {
-            this.log.info("Setting AuthClient ProxyHost:" + proxyHost + " ProxyPort:" + proxyPort);
+            log.info("Setting AuthClient ProxyHost:" + proxyHost + " ProxyPort:" + proxyPort);
             this.msalAuthClient.SetProxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort)));
             this.adalAuthClient.SetProxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress(proxyHost, proxyPort)));
 
-            if(this.httpClientBuilder == null)
+            if(!this.sharedTransport)
             {
-                this.httpClientBuilder = HttpClients.custom();
+                if(builder == null)
+                {
+                    builder = HttpClients.custom();
+                }
+                log.info("Setting IntuneClient ProxyHost:" + proxyHost + " ProxyPort:" + proxyPort);
+                setHttpClientProxy(builder, proxyHost, proxyPort, proxyUser, proxyPass);
             }
-            this.log.info("Setting IntuneClient ProxyHost:" + proxyHost + " ProxyPort:" + proxyPort);
-            this.httpClientBuilder.setProxy(new HttpHost(proxyHost, proxyPort));
              
             if(proxyUser != null && !proxyUser.isEmpty() &&
                proxyPass != null && !proxyPass.isEmpty())
             {
-               this.log.info("Setting Proxy to use Basic Authentication.");
-               
-               // Setting proxy auth for Intune HttpClient
-               Credentials credentials = new UsernamePasswordCredentials(proxyUser, proxyPass);
-               CredentialsProvider credsProvider = new BasicCredentialsProvider();
-               credsProvider.setCredentials(new AuthScope(proxyHost, proxyPort), credentials);
-               httpClientBuilder.setDefaultCredentialsProvider(credsProvider);
-                 
+               log.info("Setting Proxy to use Basic Authentication.");
                
                // By default Java disables basic authentication, so we are enabling that so Authenticator will work
                System.setProperty("jdk.http.auth.tunneling.disabledSchemes", "");
@@ -547,5 +1493,20 @@ class IntuneClient
                });
             }
          }
+        
+        return builder;
+    }
+    
+    /**
+     * Negative cache entry for a service name that was not found in the service map.
+     */
+    private static class UnresolvedService
+    {
+        final long expiresAt;
+        
+        UnresolvedService(long expiresAt)
+        {
+            this.expiresAt = expiresAt;
+        }
     }
 }
@@ -35,11 +35,14 @@ public class IntuneClientHttpErrorException extends IntuneClientException
     
     private UUID activityId = null;
     private StatusLine statusLine = null;
+    private int statusCode = 0;
     private JSONObject response = null;
+    private Long retryAfterMillis = null;
+    private String message = null;
     
     public int getStatusCode()
     {
-        return this.statusLine.getStatusCode();
+        return this.statusCode;
     }
     
     public JSONObject getResponse()
@@ -52,11 +55,47 @@ public class IntuneClientHttpErrorException extends IntuneClientException
         return this.activityId;
     }
     
+    /**
+     * The delay in milliseconds the service asked for in a Retry-After header, null if it did not send one.
+     */
+    public Long getRetryAfterMillis()
+    {
+        return this.retryAfterMillis;
+    }
+    
     public IntuneClientHttpErrorException(StatusLine statusLine, JSONObject response, UUID activityId)
     {
-        super(response.toString());
+        this(statusLine, response, activityId, null);
+    }
+    
+    public IntuneClientHttpErrorException(StatusLine statusLine, JSONObject response, UUID activityId, Long retryAfterMillis)
+    {
+        this(statusLine, response, activityId, retryAfterMillis, true);
+    }
+    
+    /**
+     * @param writableStackTrace False to skip capturing the stack trace, which is most of the cost of the exception.
+     */
+    IntuneClientHttpErrorException(StatusLine statusLine, JSONObject response, UUID activityId, Long retryAfterMillis, boolean writableStackTrace)
+    {
+        super(null, null, true, writableStackTrace);
         this.activityId = activityId;
         this.statusLine = statusLine;
+        this.statusCode = statusLine.getStatusCode();
         this.response = response;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+    
+    /**
+     * The message is the response of the service, it is only serialized when it is asked for.
+     */
+    @Override
+    public String getMessage()
+    {
+        if(this.message == null)
+        {
+            this.message = this.response.toString();
+        }
+        return this.message;
     }
 }
@@ -0,0 +1,549 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.net.ssl.SSLSocketFactory;
+
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.aad.adal4j.ClientCredential;
+
+/**
+ * Client to access the ScepRequestValidationFEService in Intune on behalf of many tenants.
+ * 
+ * The connection pool, TLS configuration and authentication threads are shared by all tenants while token caches
+ * and service maps are kept per tenant.  Tenants are added on first use and each tenant is limited to a number of
+ * concurrent requests so that one tenant can not use up the shared resources.
+ * 
+ * A tenant without requests for TENANT_IDLE_TIMEOUT_MS (one hour by default, 0 to keep tenants) is removed, and when 
+ * MAX_TENANTS is set the tenants used least recently are removed once there are more.  Tenants with requests in 
+ * flight are never removed, a removed tenant is added again with empty caches on its next request.  The client of a 
+ * removed tenant is closed.
+ * 
+ * Thread safety: the client is safe for concurrent use and is meant to be shared by all threads of the process.
+ */
+public class IntuneMultiTenantScepServiceClient implements Closeable
+{
+    private final static String PROVIDER_NAME_AND_VERSION_NAME = "PROVIDER_NAME_AND_VERSION";
+    
+    private final Properties configProperties;
+    private final ClientCredential aadCredential;
+    private final SSLSocketFactory sslSocketFactory;
+    private final ExecutorService authExecutor;
+    PoolingHttpClientConnectionManager connectionManager = null;
+    private final HttpClientBuilder httpClientBuilder;
+    private final ClientResources resources;
+    
+    private int maxConcurrentRequestsPerTenant = 10;
+    private long tenantPermitTimeoutMillis = 1000;
+    private long tenantIdleTimeoutNanos = TimeUnit.HOURS.toNanos(1);
+    private int maxTenants = 0;
+    
+    final ConcurrentHashMap<String,TenantClient> tenants = new ConcurrentHashMap<String,TenantClient>();
+    private final AtomicLong nextEvictionNanos = new AtomicLong(System.nanoTime());
+    private volatile boolean closed = false;
+    
+    static final Logger log = LoggerFactory.getLogger(IntuneMultiTenantScepServiceClient.class);
+    
+    /**
+     * Multi-tenant IntuneScepService Client constructor
+     * @param configProperties Properties object containing client configuration information, the TENANT property is not used.
+     * @throws IllegalArgumentException
+     */
+    public IntuneMultiTenantScepServiceClient(Properties configProperties) throws IllegalArgumentException
+    {
+        this(configProperties, null);
+    }
+    
+    /**
+     * Multi-tenant IntuneScepService Client constructor
+     * @param configProperties Properties object containing client configuration information, the TENANT property is not used.
+     * @param sslSocketFactory Optional SSL factory to be used for all HTTP clients.
+     * @throws IllegalArgumentException
+     */
+    public IntuneMultiTenantScepServiceClient(Properties configProperties, SSLSocketFactory sslSocketFactory) throws IllegalArgumentException
+    {
+        if(configProperties == null)
+        {
+            throw new IllegalArgumentException("The argument 'configProperties' is missing"); 
+        }
+        
+        String azureAppId = configProperties.getProperty("AAD_APP_ID");
+        if(azureAppId == null || azureAppId.isEmpty())
+        {
+            throw new IllegalArgumentException("The argument 'AAD_APP_ID' is missing");
+        }
+        
+        String azureAppKey = configProperties.getProperty("AAD_APP_KEY");
+        if(azureAppKey == null || azureAppKey.isEmpty())
+        {
+            throw new IllegalArgumentException("The argument 'AAD_APP_KEY' is missing");
+        }
+        
+        if(configProperties.getProperty(PROVIDER_NAME_AND_VERSION_NAME) == null)
+        {
+            throw new IllegalArgumentException("The property '" + PROVIDER_NAME_AND_VERSION_NAME + "' is missing from the property file.");
+        }
+        
+        this.configProperties = new Properties();
+        this.configProperties.putAll(configProperties);
+        this.aadCredential = new ClientCredential(azureAppId, azureAppKey);
+        this.sslSocketFactory = sslSocketFactory;
+        
+        this.maxConcurrentRequestsPerTenant = (int)IntuneClient.getLongProperty(configProperties, "MAX_CONCURRENT_REQUESTS_PER_TENANT", this.maxConcurrentRequestsPerTenant);
+        if(this.maxConcurrentRequestsPerTenant <= 0)
+        {
+            throw new IllegalArgumentException("'MAX_CONCURRENT_REQUESTS_PER_TENANT' must be greater than 0.");
+        }
+        this.tenantPermitTimeoutMillis = IntuneClient.getLongProperty(configProperties, "TENANT_PERMIT_TIMEOUT_MS", this.tenantPermitTimeoutMillis);
+        this.tenantIdleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(IntuneClient.getLongProperty(configProperties, "TENANT_IDLE_TIMEOUT_MS", TimeUnit.NANOSECONDS.toMillis(this.tenantIdleTimeoutNanos)));
+        this.maxTenants = (int)IntuneClient.getLongProperty(configProperties, "MAX_TENANTS", this.maxTenants);
+        if(this.tenantIdleTimeoutNanos < 0 || this.maxTenants < 0)
+        {
+            throw new IllegalArgumentException("'TENANT_IDLE_TIMEOUT_MS' and 'MAX_TENANTS' must not be negative.");
+        }
+        
+        int authThreads = (int)IntuneClient.getLongProperty(configProperties, "AUTH_THREAD_POOL_SIZE", 4);
+        this.authExecutor = ThreadFactories.isVirtualThreadsEnabled(configProperties) ? 
+                ThreadFactories.newVirtualThreadPerTaskExecutor("intune-auth-") : 
+                Executors.newFixedThreadPool(authThreads, ThreadFactories.create("intune-auth-", false));
+        
+        this.httpClientBuilder = createHttpClientBuilder(configProperties);
+        
+        // The bulkheads and admission control are shared by all tenants so that, when limited, they partition the shared connection pool
+        this.resources = ClientResources.create(configProperties);
+        int reserved = 0;
+        boolean bounded = true;
+        for(Bulkhead bulkhead : this.resources.bulkheads.values())
+        {
+            bounded &= bulkhead.isBounded();
+            reserved += bulkhead.getMaxConcurrent();
+        }
+        if(bounded && reserved > this.connectionManager.getMaxTotal())
+        {
+            log.warn("The bulkheads allow " + reserved + " concurrent requests but HTTP_MAX_CONNECTIONS is " + this.connectionManager.getMaxTotal() + ", operation classes can wait on each other for connections.");
+        }
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
+     * If the request is not valid an exception will be thrown.  
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     *  
+     * @param tenant The Azure Active Directory tenant the request belongs to
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @throws IntuneScepServiceException The Certificate Request failed validation
+     * @throws IntuneConcurrencyLimitException The tenant has too many requests in flight
+     * @throws Exception Unexpected validation
+     */
+    public void ValidateRequest(String tenant, String transactionId, String certificateRequest) throws IntuneScepServiceException, Exception
+    {
+        TenantClient tenantClient = AcquireTenantClient(tenant);
+        try
+        {
+            tenantClient.client.ValidateRequest(transactionId, certificateRequest);
+        }
+        finally
+        {
+            tenantClient.release();
+        }
+    }
+    
+    /**
+     * Send a Success notification to the SCEP Service.
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     * 
+     * @param tenant The Azure Active Directory tenant the request belongs to
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param certThumbprint Thumbprint of the certificate issued.
+     * @param certSerialNumber Serial number of the certificate issued.
+     * @param certExpirationDate The date time string should be formated as web UTC time (YYYY-MM-DDThh:mm:ss.sssTZD) ISO 8601. 
+     * @param certIssuingAuthority Issuing Authority that issued the certificate.
+     * @param caConfiguration CA Configuration that issued the certificate.
+     * @param certificateAuthority Certificate Authority that issued the certificate.
+     * @throws IntuneScepServiceException The service reported a failure in processing the notification examine the exception error code.
+     * @throws IntuneConcurrencyLimitException The tenant has too many requests in flight
+     * @throws Exception Unexpected error
+     */
+    public void SendSuccessNotification(String tenant, String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority) throws IntuneScepServiceException, Exception
+    {
+        TenantClient tenantClient = AcquireTenantClient(tenant);
+        try
+        {
+            tenantClient.client.SendSuccessNotification(transactionId, certificateRequest, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority);
+        }
+        finally
+        {
+            tenantClient.release();
+        }
+    }
+    
+    /**
+     * Send a Failure notification to the SCEP service. 
+     * 
+     * IMPORTANT: If this method is called the SCEP server should not issue a certificate to the client.
+     * 
+     * @param tenant The Azure Active Directory tenant the request belongs to
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param hResult 32-bit error code formulated using the instructions specified in https://msdn.microsoft.com/en-us/library/cc231198.aspx. 
+     * @param errorDescription Description of what error occurred. Max length = 255 chars
+     * @throws IntuneScepServiceException The service reported a failure in processing the notification examine the exception error code.
+     * @throws IntuneConcurrencyLimitException The tenant has too many requests in flight
+     * @throws Exception Unexpected error
+     */
+    public void SendFailureNotification(String tenant, String transactionId, String certificateRequest, long hResult, String errorDescription) throws IntuneScepServiceException, Exception
+    {
+        TenantClient tenantClient = AcquireTenantClient(tenant);
+        try
+        {
+            tenantClient.client.SendFailureNotification(transactionId, certificateRequest, hResult, errorDescription);
+        }
+        finally
+        {
+            tenantClient.release();
+        }
+    }
+    
+    /**
+     * Removes a tenant and its cached tokens and service map.  The tenant will be added again on its next request.
+     * Requests of the tenant that are in flight complete but are no longer hedged.
+     * @param tenant The Azure Active Directory tenant to remove
+     */
+    public void RemoveTenant(String tenant)
+    {
+        if(tenant == null || tenant.isEmpty())
+        {
+            throw new IllegalArgumentException("The argument 'tenant' is missing");
+        }
+        
+        TenantClient tenantClient = this.tenants.remove(tenant.toLowerCase());
+        if(tenantClient != null)
+        {
+            tenantClient.client.close();
+        }
+    }
+    
+    /**
+     * The number of tenants that currently have a client.
+     */
+    public int getTenantCount()
+    {
+        return this.tenants.size();
+    }
+    
+    /**
+     * The number of requests currently in flight for a tenant.
+     * @param tenant The Azure Active Directory tenant
+     */
+    public int getInFlightRequests(String tenant)
+    {
+        TenantClient tenantClient = tenant == null ? null : this.tenants.get(tenant.toLowerCase());
+        return tenantClient == null ? 0 : this.maxConcurrentRequestsPerTenant - tenantClient.permits.availablePermits();
+    }
+    
+    /**
+     * The bulkheads shared by all tenants that partition the connection pool between operation classes.
+     */
+    public Collection<Bulkhead> getBulkheads()
+    {
+        return this.resources.bulkheads.values();
+    }
+    
+    /**
+     * The admission controller shared by all tenants or null if admission control is not enabled.
+     */
+    public AdmissionController getAdmissionController()
+    {
+        return this.resources.admissionController;
+    }
+    
+    /**
+     * Releases the shared connection pool and authentication threads and closes the client of every tenant.  Requests 
+     * made after the client was closed throw an IllegalStateException.
+     */
+    @Override
+    public void close()
+    {
+        this.closed = true;
+        for(TenantClient tenantClient : this.tenants.values())
+        {
+            tenantClient.client.close();
+        }
+        this.tenants.clear();
+        this.resources.shutdown();
+        this.authExecutor.shutdown();
+        this.connectionManager.shutdown();
+    }
+    
+    /**
+     * Gets the client of a tenant and takes one of its permits.  A client that was removed between the lookup and the 
+     * permit is released and looked up again, so requests never start on a client that eviction closed.
+     */
+    private TenantClient AcquireTenantClient(String tenant) throws IllegalArgumentException, IllegalStateException, InterruptedException, IntuneConcurrencyLimitException
+    {
+        while(true)
+        {
+            TenantClient tenantClient = getTenantClient(tenant);
+            tenantClient.acquire(this.tenantPermitTimeoutMillis);
+            if(this.tenants.get(tenant.toLowerCase()) == tenantClient)
+            {
+                return tenantClient;
+            }
+            tenantClient.release();
+        }
+    }
+    
+    private TenantClient getTenantClient(final String tenant) throws IllegalArgumentException, IllegalStateException
+    {
+        if(tenant == null || tenant.isEmpty())
+        {
+            throw new IllegalArgumentException("The argument 'tenant' is missing");
+        }
+        
+        if(this.closed)
+        {
+            throw new IllegalStateException("The multi-tenant client is closed.");
+        }
+        
+        String tenantKey = tenant.toLowerCase();
+        TenantClient tenantClient = this.tenants.get(tenantKey);
+        if(tenantClient == null)
+        {
+            // Only one client is built for a tenant, the ones that lose a race are never created
+            tenantClient = this.tenants.computeIfAbsent(tenantKey, new Function<String,TenantClient>() {
+                @Override
+                public TenantClient apply(String key)
+                {
+                    log.info("Adding client for tenant '{}'", tenant);
+                    return createTenantClient(tenant);
+                }
+            });
+            EvictTenants(tenantClient);
+        }
+        else if(this.tenantIdleTimeoutNanos > 0)
+        {
+            long next = this.nextEvictionNanos.get();
+            if(System.nanoTime() - next >= 0 && this.nextEvictionNanos.compareAndSet(next, System.nanoTime() + this.tenantIdleTimeoutNanos))
+            {
+                EvictTenants(tenantClient);
+            }
+        }
+        
+        return tenantClient;
+    }
+    
+    /**
+     * Removes the tenants that have been idle too long and, above MAX_TENANTS, the ones used least recently.
+     * @param keep The tenant that is about to be used, it is not removed.
+     */
+    private void EvictTenants(TenantClient keep)
+    {
+        long now = System.nanoTime();
+        List<Map.Entry<String,TenantClient>> idle = new ArrayList<Map.Entry<String,TenantClient>>();
+        for(Map.Entry<String,TenantClient> entry : this.tenants.entrySet())
+        {
+            TenantClient tenantClient = entry.getValue();
+            if(tenantClient == keep || tenantClient.permits.availablePermits() < this.maxConcurrentRequestsPerTenant)
+            {
+                continue;
+            }
+            
+            if(this.tenantIdleTimeoutNanos > 0 && now - tenantClient.lastUsedNanos > this.tenantIdleTimeoutNanos)
+            {
+                EvictTenant(entry, "it was idle");
+            }
+            else
+            {
+                idle.add(entry);
+            }
+        }
+        
+        if(this.maxTenants > 0 && this.tenants.size() > this.maxTenants)
+        {
+            Collections.sort(idle, new Comparator<Map.Entry<String,TenantClient>>() {
+                @Override
+                public int compare(Map.Entry<String,TenantClient> a, Map.Entry<String,TenantClient> b)
+                {
+                    return Long.signum(a.getValue().lastUsedNanos - b.getValue().lastUsedNanos);
+                }
+            });
+            
+            for(int i = 0; i < idle.size() && this.tenants.size() > this.maxTenants; i++)
+            {
+                EvictTenant(idle.get(i), "there are more than " + this.maxTenants + " tenants");
+            }
+        }
+    }
+    
+    private void EvictTenant(Map.Entry<String,TenantClient> entry, String reason)
+    {
+        // Holding every permit keeps requests from starting on the client while it is removed, a request that takes a 
+        // permit afterwards finds it removed and uses the client that replaces it
+        TenantClient tenantClient = entry.getValue();
+        if(!tenantClient.permits.tryAcquire(this.maxConcurrentRequestsPerTenant))
+        {
+            return;
+        }
+        
+        try
+        {
+            if(this.tenants.remove(entry.getKey(), tenantClient))
+            {
+                log.info("Removed client for tenant '{}' because {}", entry.getKey(), reason);
+                tenantClient.client.close();
+            }
+        }
+        finally
+        {
+            tenantClient.permits.release(this.maxConcurrentRequestsPerTenant);
+        }
+    }
+    
+    private TenantClient createTenantClient(String tenant) throws IllegalArgumentException
+    {
+        Properties tenantProperties = new Properties(this.configProperties);
+        tenantProperties.setProperty("TENANT", tenant);
+        
+        MSALClientWrapper msalClient = createMsalClient(tenant, tenantProperties);
+        ADALClientWrapper adalClient = new ADALClientWrapper(tenant, this.aadCredential, tenantProperties, this.authExecutor);
+        IntuneScepServiceClient client = new IntuneScepServiceClient(tenantProperties, msalClient, adalClient, this.httpClientBuilder, true, this.resources);
+        if(this.sslSocketFactory != null)
+        {
+            client.SetSslSocketFactory(this.sslSocketFactory);
+        }
+        
+        return new TenantClient(client, this.maxConcurrentRequestsPerTenant);
+    }
+    
+    /**
+     * Creates the MSAL client of a tenant on the shared authentication threads.
+     */
+    MSALClientWrapper createMsalClient(String tenant, Properties tenantProperties) throws IllegalArgumentException
+    {
+        return new MSALClientWrapper(tenant, tenantProperties, this.authExecutor);
+    }
+    
+    private HttpClientBuilder createHttpClientBuilder(Properties configProperties) throws IllegalArgumentException
+    {
+        SSLConnectionSocketFactory sslConnectionFactory = this.sslSocketFactory == null ? 
+                SSLConnectionSocketFactory.getSocketFactory() :
+                new SSLConnectionSocketFactory(this.sslSocketFactory, new String[] { "TLSv1.2" }, null, new DefaultHostnameVerifier());
+        
+        Registry<ConnectionSocketFactory> registry = RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("https", sslConnectionFactory)
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .build();
+        
+        // All tenants talk to the same Intune hosts so the pool is not split per route
+        int maxConnections = (int)IntuneClient.getLongProperty(configProperties, "HTTP_MAX_CONNECTIONS", 200);
+        this.connectionManager = new PoolingHttpClientConnectionManager(registry);
+        this.connectionManager.setMaxTotal(maxConnections);
+        this.connectionManager.setDefaultMaxPerRoute((int)IntuneClient.getLongProperty(configProperties, "HTTP_MAX_CONNECTIONS_PER_ROUTE", maxConnections));
+        
+        HttpClientBuilder builder = HttpClients.custom()
+                .setConnectionManager(this.connectionManager)
+                .setConnectionManagerShared(true);
+        
+        String proxyHost = configProperties.getProperty("PROXY_HOST");
+        if(proxyHost != null && !proxyHost.isEmpty())
+        {
+            int proxyPort;
+            try
+            {
+                proxyPort = Integer.parseInt(configProperties.getProperty("PROXY_PORT"));
+            }
+            catch(NumberFormatException e)
+            {
+                throw new IllegalArgumentException("'PROXY_PORT' is required and must be a value that can be converted to an integer.", e);
+            }
+            
+            log.info("Setting shared ProxyHost:{} ProxyPort:{}", proxyHost, proxyPort);
+            IntuneClient.setHttpClientProxy(builder, proxyHost, proxyPort, configProperties.getProperty("PROXY_USER"), configProperties.getProperty("PROXY_PASS"));
+        }
+        
+        return builder;
+    }
+    
+    /**
+     * Client and concurrency permits of a single tenant.
+     */
+    static class TenantClient
+    {
+        final IntuneScepServiceClient client;
+        final Semaphore permits;
+        volatile long lastUsedNanos = System.nanoTime();
+        
+        TenantClient(IntuneScepServiceClient client, int maxConcurrentRequests)
+        {
+            this.client = client;
+            this.permits = new Semaphore(maxConcurrentRequests);
+        }
+        
+        void acquire(long timeoutMillis) throws InterruptedException, IntuneConcurrencyLimitException
+        {
+            if(!this.permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                throw new IntuneConcurrencyLimitException("Tenant '" + this.client.intuneTenant + "' has reached its limit of concurrent requests.");
+            }
+            this.lastUsedNanos = System.nanoTime();
+        }
+        
+        void release()
+        {
+            this.lastUsedNanos = System.nanoTime();
+            this.permits.release();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+/**
+ * Exception thrown without contacting Intune because the client side rate limit would make the call wait too long.
+ */
+public class IntuneRateLimitException extends IntuneClientException
+{
+    private static final long serialVersionUID = -5179023964315853128L;
+    
+    private String serviceName = null;
+    private long retryAfterMillis = 0;
+    
+    /**
+     * The service whose rate limit was reached.
+     */
+    public String getServiceName()
+    {
+        return this.serviceName;
+    }
+    
+    /**
+     * The time in milliseconds until the rate limit lets the call through.
+     */
+    public long getRetryAfterMillis()
+    {
+        return this.retryAfterMillis;
+    }
+
+    public IntuneRateLimitException(String serviceName, long retryAfterMillis)
+    {
+        super("Rate limit for service '" + serviceName + "' reached, the request could be sent in " + retryAfterMillis + "ms");
+        this.serviceName = serviceName;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+}
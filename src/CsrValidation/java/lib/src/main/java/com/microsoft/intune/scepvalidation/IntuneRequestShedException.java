@@ -0,0 +1,79 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+/**
+ * Exception thrown without contacting Intune because the client is overloaded and the call was shed.
+ */
+public class IntuneRequestShedException extends IntuneClientException
+{
+    private static final long serialVersionUID = 2297468214383913652L;
+    
+    /**
+     * Why a call was shed.
+     */
+    public enum Reason
+    {
+        /**
+         * The queue of the operation class was full.
+         */
+        QueueFull,
+        
+        /**
+         * The call waited in the queue for the longest time allowed.
+         */
+        QueueTimeout,
+        
+        /**
+         * The time left until the deadline of the call is shorter than calls usually take.
+         */
+        DeadlineUnreachable
+    }
+    
+    private OperationClass operationClass = null;
+    private Reason reason = null;
+    
+    /**
+     * The class of the call that was shed.
+     */
+    public OperationClass getOperationClass()
+    {
+        return this.operationClass;
+    }
+    
+    /**
+     * Why the call was shed.
+     */
+    public Reason getReason()
+    {
+        return this.reason;
+    }
+
+    public IntuneRequestShedException(OperationClass operationClass, Reason reason)
+    {
+        super(operationClass + " request was shed: " + reason);
+        this.operationClass = operationClass;
+        this.reason = reason;
+    }
+}
@@ -23,13 +23,15 @@
 
 package com.microsoft.intune.scepvalidation;
 
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
 
+import org.apache.http.HttpEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
-import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -53,9 +55,16 @@ public class IntuneRevocationClient extends IntuneClient
     private final static String SERVICE_VERSION_PROP_NAME = CONNECTOR_SERVICE_NAME + "Version";
     private final static String PROVIDER_NAME_AND_VERSION_NAME = "PROVIDER_NAME_AND_VERSION";
     
-    private HashMap<String,String> additionalHeaders = new HashMap<String, String>();;
+    // Constant parts of the request bodies, RequestWriter writes the values between them
+    private final static byte[] DOWNLOAD_PARAMETERS = RequestWriter.fragment("{\"downloadParameters\":{\"maxRequests\":");
+    private final static byte[] ISSUER_NAME = RequestWriter.fragment(",\"issuerName\":");
+    private final static byte[] END = RequestWriter.fragment("}}");
+    private final static byte[] RESULTS = RequestWriter.fragment("{\"results\":");
+    private final static byte[] RESULTS_END = RequestWriter.fragment("}");
     
-    final Logger log = LoggerFactory.getLogger(IntuneRevocationClient.class);
+    private final Map<String,String> additionalHeaders;
+    
+    static final Logger log = LoggerFactory.getLogger(IntuneRevocationClient.class);
     
     /**
      * IntuneScepService Client constructor
@@ -91,7 +100,9 @@ public class IntuneRevocationClient extends IntuneClient
             throw new IllegalArgumentException("The property '" + PROVIDER_NAME_AND_VERSION_NAME + "' is missing from the property file.");
         }
         
-        additionalHeaders.put("UserAgent", providerNameAndVersion);
+        Map<String,String> headers = new HashMap<String, String>();
+        headers.put("UserAgent", providerNameAndVersion);
+        this.additionalHeaders = Collections.unmodifiableMap(headers);
     }
 
     /**
@@ -116,11 +127,15 @@ public class IntuneRevocationClient extends IntuneClient
         }
         
         // Create Request Body 
-        JSONObject requestBody = new JSONObject().put(
-                "downloadParameters", (new JSONObject())
-                    .put("maxRequests", maxCARequestsToDownload)
-                    .put("issuerName", issuerName == null ? JSONObject.NULL : issuerName));
+        HttpEntity requestBody = new RequestWriter(96 + (issuerName == null ? 0 : issuerName.length()))
+                .append(DOWNLOAD_PARAMETERS)
+                .appendNumber(maxCARequestsToDownload)
+                .append(ISSUER_NAME)
+                .appendString(issuerName)
+                .append(END)
+                .toEntity();
         UUID activityId = UUID.randomUUID();
+        long startNanos = System.nanoTime();
         
         // Send the POST request to Intune
         JSONObject result = this.PostRequest(CONNECTOR_SERVICE_NAME, 
@@ -128,9 +143,9 @@ public class IntuneRevocationClient extends IntuneClient
                  serviceVersion, 
                  requestBody,
                  activityId,
-                 additionalHeaders);
-        log.info("Activity " + activityId + " has completed.");
-        log.info(result.toString());
+                 additionalHeaders,
+                 new RequestContext(OperationClass.Revocation, false, null));
+        this.requestLog.completed(log, activityId, transactionId, startNanos, null, result);
         
         // Parse the results and return
         List<CARevocationRequest> revokeRequests = new Gson().fromJson(result.getJSONArray("value").toString(), new TypeToken<List<CARevocationRequest>>() {}.getType());
@@ -159,9 +174,13 @@ public class IntuneRevocationClient extends IntuneClient
         
         // Create Request Body 
         String revocationResultsJson =  new Gson().toJsonTree(revocationResults).getAsJsonArray().toString();
-        JSONObject requestBody = new JSONObject().put(
-                "results", new JSONArray(revocationResultsJson));
+        HttpEntity requestBody = new RequestWriter(revocationResultsJson.length() + 16)
+                .append(RESULTS)
+                .appendJson(revocationResultsJson)
+                .append(RESULTS_END)
+                .toEntity();
         UUID activityId = UUID.randomUUID();
+        long startNanos = System.nanoTime();
         
         // Send the POST request to Intune
         JSONObject result = this.PostRequest(CONNECTOR_SERVICE_NAME, 
@@ -169,9 +188,9 @@ public class IntuneRevocationClient extends IntuneClient
                  serviceVersion, 
                  requestBody,
                  activityId,
-                 additionalHeaders);
-        log.info("Activity " + activityId + " has completed.");
-        log.info(result.toString());
+                 additionalHeaders,
+                 new RequestContext(OperationClass.Revocation, false, null));
+        this.requestLog.completed(log, activityId, transactionId, startNanos, null, result);
         
         // Parse the result and fail if the result is not true
         if (!result.getBoolean("value"))
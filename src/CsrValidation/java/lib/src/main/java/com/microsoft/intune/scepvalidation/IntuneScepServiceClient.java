@@ -23,10 +23,42 @@
 
 package com.microsoft.intune.scepvalidation;
 
+import java.io.Closeable;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.json.JSONObject;
 import org.slf4j.Logger;
@@ -36,8 +68,11 @@ import com.microsoft.intune.scepvalidation.IntuneScepServiceException.ErrorCode;
 
 /**
  * Client to access the ScepRequestValidationFEService in Intune
+ * 
+ * Thread safety: the client is safe for concurrent use, create one instance and share it between all threads instead 
+ * of creating a client per thread.
  */
-public class IntuneScepServiceClient extends IntuneClient
+public class IntuneScepServiceClient extends IntuneClient implements Closeable
 {
     private String serviceVersion = "2018-02-20";
     public final static String VALIDATION_SERVICE_NAME = "ScepRequestValidationFEService";
@@ -48,9 +83,45 @@ public class IntuneScepServiceClient extends IntuneClient
     private final static String PROVIDER_NAME_AND_VERSION_NAME = "PROVIDER_NAME_AND_VERSION";
     
     private String providerNameAndVersion = null;
-    private HashMap<String,String> additionalHeaders = new HashMap<String, String>();;
+    private final byte[] callerInfo;
     
-    final Logger log = LoggerFactory.getLogger(IntuneScepServiceClient.class);
+    // Constant parts of the request bodies, RequestWriter writes the values between them
+    private final static byte[] VALIDATION_REQUEST = RequestWriter.fragment("{\"request\":{\"transactionId\":");
+    private final static byte[] NOTIFICATION = RequestWriter.fragment("{\"notification\":{\"transactionId\":");
+    private final static byte[] CERTIFICATE_REQUEST = RequestWriter.fragment(",\"certificateRequest\":");
+    private final static byte[] CERTIFICATE_THUMBPRINT = RequestWriter.fragment(",\"certificateThumbprint\":");
+    private final static byte[] CERTIFICATE_SERIAL_NUMBER = RequestWriter.fragment(",\"certificateSerialNumber\":");
+    private final static byte[] CERTIFICATE_EXPIRATION_DATE = RequestWriter.fragment(",\"certificateExpirationDateUtc\":");
+    private final static byte[] ISSUING_CERTIFICATE_AUTHORITY = RequestWriter.fragment(",\"issuingCertificateAuthority\":");
+    private final static byte[] CA_CONFIGURATION = RequestWriter.fragment(",\"caConfiguration\":");
+    private final static byte[] CERTIFICATE_AUTHORITY = RequestWriter.fragment(",\"certificateAuthority\":");
+    private final static byte[] HRESULT = RequestWriter.fragment(",\"hResult\":");
+    private final static byte[] ERROR_DESCRIPTION = RequestWriter.fragment(",\"errorDescription\":");
+    private final static byte[] CALLER_INFO = RequestWriter.fragment(",\"callerInfo\":");
+    private final static byte[] END = RequestWriter.fragment("}}");
+    private final Map<String,String> additionalHeaders;
+    
+    private boolean hedgeEnabled = false;
+    private long hedgePercentile = 95;
+    private long hedgeMinDelayMillis = 50;
+    private long hedgeInitialDelayMillis = 1000;
+    private RequestBudget hedgeBudget = null;
+    private LatencyTracker hedgeLatency = null;
+    ExecutorService hedgeExecutor = null;
+    private ScheduledThreadPoolExecutor hedgeTimer = null;
+    
+    private final boolean precheckEnabled;
+    private final int precheckMaxLength;
+    private final AtomicLong precheckRejectedCount = new AtomicLong();
+    
+    private final ValidationResultCache validationCache;
+    private final boolean coalescingEnabled;
+    private final ConcurrentHashMap<String,CompletableFuture<ValidationOutcome>> inFlightValidations = new ConcurrentHashMap<String,CompletableFuture<ValidationOutcome>>();
+    private final AtomicLong coalescedCount = new AtomicLong();
+    
+    private final int bulkParallelism;
+    
+    static final Logger log = LoggerFactory.getLogger(IntuneScepServiceClient.class);
     
     /**
      * IntuneScepService Client constructor
@@ -69,56 +140,792 @@ public class IntuneScepServiceClient extends IntuneClient
      * @param httpClientBuilder
      * @throws IllegalArgumentException
      */
-    public IntuneScepServiceClient(Properties configProperties, MSALClientWrapper msalClient, ADALClientWrapper adalClient, HttpClientBuilder httpClientBuilder) throws IllegalArgumentException 
+    public IntuneScepServiceClient(Properties configProperties, MSALClientWrapper msalClient, ADALClientWrapper adalClient, HttpClientBuilder httpClientBuilder) throws IllegalArgumentException 
+    {
+        this(configProperties, msalClient, adalClient, httpClientBuilder, false, null);
+    }
+    
+    /**
+     * IntuneScepService Client constructor used by clients that share their transport between tenants
+     * @param configProperties
+     * @param msalClient
+     * @param adalClient
+     * @param httpClientBuilder
+     * @param sharedTransport true if the httpClientBuilder is owned by the caller and must not be modified.
+     * @param resources Bulkheads and admission control shared with other clients or null to create them from the configuration.
+     * @throws IllegalArgumentException
+     */
+    IntuneScepServiceClient(Properties configProperties, MSALClientWrapper msalClient, ADALClientWrapper adalClient, HttpClientBuilder httpClientBuilder, boolean sharedTransport, ClientResources resources) throws IllegalArgumentException 
+    {
+        super(configProperties, msalClient, adalClient, httpClientBuilder, sharedTransport, resources);
+        
+        if(configProperties == null)
+        {
+            throw new IllegalArgumentException("The argument 'configProperties' is missing"); 
+        }
+        
+        configProperties.getProperty(SERVICE_VERSION_PROP_NAME,this.serviceVersion);
+        
+        providerNameAndVersion = configProperties.getProperty(PROVIDER_NAME_AND_VERSION_NAME);
+        if(providerNameAndVersion == null)
+        {
+            throw new IllegalArgumentException("The property '" + PROVIDER_NAME_AND_VERSION_NAME + "' is missing from the property file.");
+        }
+        
+        this.callerInfo = new RequestWriter(CALLER_INFO.length + providerNameAndVersion.length() + 2)
+                .append(CALLER_INFO)
+                .appendString(providerNameAndVersion)
+                .toByteArray();
+        
+        Map<String,String> headers = new HashMap<String, String>();
+        headers.put("UserAgent", providerNameAndVersion);
+        this.additionalHeaders = Collections.unmodifiableMap(headers);
+        
+        this.hedgeEnabled = Boolean.parseBoolean(configProperties.getProperty("HEDGE_ENABLED", "false"));
+        if(this.hedgeEnabled)
+        {
+            this.hedgePercentile = getLongProperty(configProperties, "HEDGE_PERCENTILE", this.hedgePercentile);
+            if(this.hedgePercentile < 1 || this.hedgePercentile > 100)
+            {
+                throw new IllegalArgumentException("'HEDGE_PERCENTILE' must be between 1 and 100.");
+            }
+            this.hedgeMinDelayMillis = getLongProperty(configProperties, "HEDGE_MIN_DELAY_MS", this.hedgeMinDelayMillis);
+            this.hedgeInitialDelayMillis = getLongProperty(configProperties, "HEDGE_INITIAL_DELAY_MS", this.hedgeInitialDelayMillis);
+            this.hedgeBudget = new RequestBudget(
+                    getLongProperty(configProperties, "HEDGE_BUDGET_PERCENT", 5), 
+                    getLongProperty(configProperties, "HEDGE_BUDGET_MIN_PER_SECOND", 1));
+            this.hedgeLatency = new LatencyTracker(1024, 20);
+            
+            // Every hedge uses a thread and is limited by the size of the validation bulkhead, virtual 
+            // threads are not pooled and are only limited by the permits
+            if(ThreadFactories.isVirtualThreadsEnabled(configProperties))
+            {
+                this.hedgeExecutor = ThreadFactories.newVirtualThreadPerTaskExecutor("intune-scep-hedge-");
+            }
+            else
+            {
+                int maxThreads = this.bulkheads.get(OperationClass.Validation).getThreads();
+                this.hedgeExecutor = new ThreadPoolExecutor(0, maxThreads, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), 
+                        ThreadFactories.create("intune-scep-hedge-", false));
+            }
+            
+            // Most calls complete before their hedge is due, their timers are removed instead of waiting in the queue
+            this.hedgeTimer = new ScheduledThreadPoolExecutor(1, ThreadFactories.create("intune-scep-hedge-timer-", false));
+            this.hedgeTimer.setRemoveOnCancelPolicy(true);
+        }
+        
+        this.precheckEnabled = Boolean.parseBoolean(configProperties.getProperty("CSR_PRECHECK_ENABLED", "false"));
+        this.precheckMaxLength = (int)getLongProperty(configProperties, "CSR_PRECHECK_MAX_LENGTH", 65536);
+        
+        this.validationCache = ValidationResultCache.create(configProperties);
+        this.coalescingEnabled = Boolean.parseBoolean(configProperties.getProperty("VALIDATION_COALESCING_ENABLED", "true"));
+        
+        this.bulkParallelism = (int)getLongProperty(configProperties, "BULK_VALIDATION_PARALLELISM", 16);
+        if(this.bulkParallelism <= 0)
+        {
+            throw new IllegalArgumentException("'BULK_VALIDATION_PARALLELISM' must be greater than 0.");
+        }
+    }
+    
+    /**
+     * The cache of recent validation results or null if VALIDATION_CACHE_ENABLED is not set.
+     */
+    public ValidationResultCache getValidationCache()
+    {
+        return this.validationCache;
+    }
+    
+    /**
+     * The number of validations rejected by the local check of the certificate request without contacting Intune.
+     */
+    public long getPrecheckRejectedCount()
+    {
+        return this.precheckRejectedCount.get();
+    }
+    
+    /**
+     * The number of validations that waited for an identical validation already in flight instead of sending their own request.
+     * Validations with the same transactionId and CSR are coalesced by default, set VALIDATION_COALESCING_ENABLED to false 
+     * to turn it off.  While it is on every validation computes a SHA-256 digest of its CSR to find identical requests, 
+     * even when the validation cache is off.
+     */
+    public long getCoalescedValidationCount()
+    {
+        return this.coalescedCount.get();
+    }
+    
+    /**
+     * Stops the threads that send hedged requests.  Hedges in flight complete, calls made after the client was closed 
+     * are not hedged.
+     */
+    @Override
+    public void close()
+    {
+        if(this.hedgeEnabled)
+        {
+            this.hedgeTimer.shutdownNow();
+            this.hedgeExecutor.shutdown();
+        }
+    }
+
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
+     * If the request is not valid an exception will be thrown.  
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     *  
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @throws IntuneScepServiceException The Certificate Request failed validation
+     * @throws Exception Unexpected validation
+     */
+    public void ValidateRequest(String transactionId, String certificateRequest) throws IntuneScepServiceException, Exception
+    {
+        ValidateRequest(transactionId, certificateRequest, null);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
+     * If the request is not valid an exception will be thrown.  
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     *  
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The Certificate Request failed validation
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected validation
+     */
+    public void ValidateRequest(String transactionId, String certificateRequest, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        ThrowIfFailed(Validate(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context));
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
+     * If the request is not valid an exception will be thrown.  
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     *  
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest DER encoded PKCS10 packet, it is base 64 encoded while the request is sent.
+     * @throws IntuneScepServiceException The Certificate Request failed validation
+     * @throws Exception Unexpected validation
+     */
+    public void ValidateRequest(String transactionId, byte[] certificateRequest) throws IntuneScepServiceException, Exception
+    {
+        if(certificateRequest == null)
+        {
+            throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
+        }
+        
+        ValidateRequest(transactionId, ByteBuffer.wrap(certificateRequest), null);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
+     * If the request is not valid an exception will be thrown.  
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     *  
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest DER encoded PKCS10 packet between the position and the limit of the buffer, it is 
+     * base 64 encoded while the request is sent.  The buffer must not be modified until the call returns.
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The Certificate Request failed validation
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected validation
+     */
+    public void ValidateRequest(String transactionId, ByteBuffer certificateRequest, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        ThrowIfFailed(Validate(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context));
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
+     * If the request is not valid an exception will be thrown.  
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     *  
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest DER encoded PKCS10 packet, the stream is read to its end before the request is sent 
+     * so that retries can send it again.  It is not closed.
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The Certificate Request failed validation
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected validation
+     */
+    public void ValidateRequest(String transactionId, InputStream certificateRequest, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        if(certificateRequest == null)
+        {
+            throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
+        }
+        
+        ValidateRequest(transactionId, CertificateRequestEntity.read(certificateRequest), deadline);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune and returns the answer 
+     * instead of throwing an IntuneScepServiceException when the request failed validation.  This avoids the cost of 
+     * an exception for every rejected request while most requests are failing.
+     * 
+     * IMPORTANT: If the outcome is not a success the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @return Whether the request passed validation and, if it did not, the error the service returned.
+     * @throws Exception Unexpected validation error, the request could not be validated.
+     */
+    public ValidationOutcome TryValidateRequest(String transactionId, String certificateRequest) throws Exception
+    {
+        return TryValidateRequest(transactionId, certificateRequest, null);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune and returns the answer 
+     * instead of throwing an IntuneScepServiceException when the request failed validation.
+     * 
+     * IMPORTANT: If the outcome is not a success the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @return Whether the request passed validation and, if it did not, the error the service returned.
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected validation error, the request could not be validated.
+     */
+    public ValidationOutcome TryValidateRequest(String transactionId, String certificateRequest, Duration deadline) throws Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        return Validate(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune and returns the answer 
+     * instead of throwing an IntuneScepServiceException when the request failed validation.
+     * 
+     * IMPORTANT: If the outcome is not a success the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest DER encoded PKCS10 packet between the position and the limit of the buffer, it is 
+     * base 64 encoded while the request is sent.  The buffer must not be modified until the call returns.
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @return Whether the request passed validation and, if it did not, the error the service returned.
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected validation error, the request could not be validated.
+     */
+    public ValidationOutcome TryValidateRequest(String transactionId, ByteBuffer certificateRequest, Duration deadline) throws Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        return Validate(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune without blocking the caller.
+     * 
+     * IMPORTANT: If the future completes exceptionally the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @return A future that completes when the request passed validation, see {@link #ValidateRequestAsync(String, String, Duration)}.
+     */
+    public CompletableFuture<Void> ValidateRequestAsync(String transactionId, String certificateRequest) throws IllegalArgumentException
+    {
+        return ValidateRequestAsync(transactionId, certificateRequest, null);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune without blocking the caller.
+     * The call runs on the executor of the validation bulkhead and cancelling the future aborts it.
+     * 
+     * IMPORTANT: If the future completes exceptionally the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param deadline Time allowed for the whole call including the time queued, null for no deadline.
+     * @return A future that completes when the request passed validation.  It completes exceptionally with an
+     * IntuneScepServiceException if the Certificate Request failed validation, an IntuneTimeoutException if the 
+     * deadline passed, an IntuneConcurrencyLimitException if the validation queue is full, or with the exception the 
+     * blocking method would have thrown.
+     */
+    public CompletableFuture<Void> ValidateRequestAsync(String transactionId, String certificateRequest, Duration deadline) throws IllegalArgumentException
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        return ValidateAsync(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune without blocking the caller.
+     * 
+     * IMPORTANT: If the future completes exceptionally the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest DER encoded PKCS10 packet between the position and the limit of the buffer, it is 
+     * base 64 encoded while the request is sent.  The buffer must not be modified until the future completes.
+     * @param deadline Time allowed for the whole call including the time queued, null for no deadline.
+     * @return A future that completes when the request passed validation, see {@link #ValidateRequestAsync(String, String, Duration)}.
+     */
+    public CompletableFuture<Void> ValidateRequestAsync(String transactionId, ByteBuffer certificateRequest, Duration deadline) throws IllegalArgumentException
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        return ValidateAsync(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context);
+    }
+    
+    /**
+     * Validates whether the given Certificate Request is a valid and from Microsoft Intune without blocking the caller, 
+     * the future completes with the answer instead of an IntuneScepServiceException when the request failed validation.
+     * 
+     * IMPORTANT: If the outcome is not a success the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param deadline Time allowed for the whole call including the time queued, null for no deadline.
+     * @return A future that completes with the outcome of the validation.  It completes exceptionally with an 
+     * IntuneTimeoutException if the deadline passed, an IntuneConcurrencyLimitException if the validation queue is 
+     * full, or with the exception the blocking method would have thrown.
+     */
+    public CompletableFuture<ValidationOutcome> TryValidateRequestAsync(String transactionId, String certificateRequest, Duration deadline) throws IllegalArgumentException
+    {
+        RequestContext context = new RequestContext(OperationClass.Validation, false, RequestContext.getDeadline(deadline));
+        HttpEntity requestBody = CreateValidationRequest(transactionId, certificateRequest);
+        return TryValidateAsync(transactionId, requestBody, Precheck(certificateRequest), GetValidationKey(transactionId, certificateRequest), context);
+    }
+    
+    /**
+     * Validates many Certificate Requests, for example the requests that queued up while a SCEP server restarted.  At 
+     * most BULK_VALIDATION_PARALLELISM requests are in flight at a time on the validation bulkhead and the service 
+     * endpoint and access token are resolved once for the whole batch.
+     * 
+     * IMPORTANT: The SCEP server should only issue certificates for the items whose result is a success.
+     * 
+     * @param items The requests to validate.
+     * @param deadline Time allowed for the whole batch, null for no deadline.
+     * @return A result for every item in the order of the items, failures are reported in the results and not thrown.
+     * @throws InterruptedException The thread was interrupted, the requests in flight are cancelled.
+     */
+    public List<ScepValidationResult> ValidateRequests(Collection<ScepValidationItem> items, Duration deadline) throws IllegalArgumentException, InterruptedException
+    {
+        if(items == null)
+        {
+            throw new IllegalArgumentException("The argument 'items' is missing");
+        }
+        
+        final ScepValidationResult[] results = new ScepValidationResult[items.size()];
+        ValidateRequests(items, deadline, new Consumer<ScepValidationResult>() {
+            @Override
+            public void accept(ScepValidationResult result)
+            {
+                results[result.getIndex()] = result;
+            }});
+        return Arrays.asList(results);
+    }
+    
+    /**
+     * Validates many Certificate Requests and hands every result to the consumer as soon as it is available, so that 
+     * certificates can be issued while the rest of the batch is still being validated.  The consumer is called on 
+     * the thread that called this method, in the order the validations complete.
+     * 
+     * IMPORTANT: The SCEP server should only issue certificates for the items whose result is a success.
+     * 
+     * @param items The requests to validate.
+     * @param deadline Time allowed for the whole batch, null for no deadline.
+     * @param consumer Receives the result of every item.
+     * @throws InterruptedException The thread was interrupted, the requests in flight are cancelled.
+     */
+    public void ValidateRequests(Collection<ScepValidationItem> items, Duration deadline, Consumer<ScepValidationResult> consumer) throws IllegalArgumentException, InterruptedException
+    {
+        if(items == null)
+        {
+            throw new IllegalArgumentException("The argument 'items' is missing");
+        }
+        
+        if(consumer == null)
+        {
+            throw new IllegalArgumentException("The argument 'consumer' is missing");
+        }
+        
+        if(items.isEmpty())
+        {
+            return;
+        }
+        
+        Long deadlineNanos = RequestContext.getDeadline(deadline);
+        
+        // Without this every request of the batch would look up the endpoint and the token at the same time.  A 
+        // failure only means the cache is cold, every item still looks them up on its own path with retries.
+        try
+        {
+            Prepare(VALIDATION_SERVICE_NAME, new RequestContext(OperationClass.Validation, false, deadlineNanos));
+        }
+        catch(InterruptedException e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            log.warn("Preparing the validation of a batch of {} requests failed, they are validated without it: {}", items.size(), DescribeFailure(e));
+            log.debug("Preparing the validation of a batch failed", e);
+        }
+        
+        BlockingQueue<ScepValidationResult> completed = new LinkedBlockingQueue<ScepValidationResult>();
+        List<Future<ValidationOutcome>> started = new ArrayList<Future<ValidationOutcome>>();
+        Iterator<ScepValidationItem> iterator = items.iterator();
+        int index = 0;
+        int running = 0;
+        try
+        {
+            while(running > 0 || iterator.hasNext())
+            {
+                while(running < this.bulkParallelism && iterator.hasNext())
+                {
+                    Future<ValidationOutcome> validation = StartValidation(iterator.next(), index++, deadlineNanos, completed);
+                    if(validation != null)
+                    {
+                        started.add(validation);
+                    }
+                    running++;
+                }
+                
+                consumer.accept(completed.take());
+                running--;
+            }
+        }
+        finally
+        {
+            if(running > 0)
+            {
+                for(Future<ValidationOutcome> validation : started)
+                {
+                    validation.cancel(true);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Starts the validation of an item of a batch, its result is added to the queue when it completes.
+     * @return The validation in flight or null if the result was added right away.
+     */
+    private Future<ValidationOutcome> StartValidation(final ScepValidationItem item, final int index, Long deadlineNanos, final BlockingQueue<ScepValidationResult> completed)
+    {
+        CompletableFuture<ValidationOutcome> validation;
+        try
+        {
+            if(item == null)
+            {
+                throw new IllegalArgumentException("The item is missing");
+            }
+            
+            RequestContext context = new RequestContext(OperationClass.Validation, false, deadlineNanos);
+            HttpEntity requestBody = CreateValidationRequest(item.getTransactionId(), item.getCertificateRequest());
+            validation = TryValidateAsync(item.getTransactionId(), requestBody, Precheck(item.getCertificateRequest()), GetValidationKey(item.getTransactionId(), item.getCertificateRequest()), context);
+        }
+        catch(IllegalArgumentException e)
+        {
+            completed.add(new ScepValidationResult(item, index, null, e));
+            return null;
+        }
+        
+        validation.whenComplete(new BiConsumer<ValidationOutcome, Throwable>() {
+            @Override
+            public void accept(ValidationOutcome outcome, Throwable failure)
+            {
+                if(failure instanceof CompletionException && failure.getCause() != null)
+                {
+                    failure = failure.getCause();
+                }
+                
+                Exception exception = null;
+                if(failure instanceof Exception)
+                {
+                    exception = (Exception)failure;
+                }
+                else if(failure != null)
+                {
+                    exception = new ExecutionException(failure);
+                }
+                completed.add(new ScepValidationResult(item, index, exception == null ? outcome : null, exception));
+            }});
+        return validation;
+    }
+    
+    /**
+     * Validates a request after the arguments were checked.
+     * @param precheckResult The error code found by the local check of the certificate request or null.
+     * @param key The key returned by GetValidationKey.
+     */
+    private ValidationOutcome Validate(String transactionId, HttpEntity requestBody, ErrorCode precheckResult, String key, RequestContext context) throws Exception
+    {
+        ValidationOutcome outcome = Answer(transactionId, precheckResult, key);
+        if(outcome != null)
+        {
+            return outcome;
+        }
+        
+        return SendOrAwait(requestBody, transactionId, key, context);
+    }
+    
+    /**
+     * Validates a request on the executor of the validation bulkhead after the arguments were checked.
+     */
+    private CompletableFuture<Void> ValidateAsync(final String transactionId, final HttpEntity requestBody, ErrorCode precheckResult, final String key, final RequestContext context)
+    {
+        // Local rejections and cached results complete without using a thread of the bulkhead
+        ValidationOutcome outcome = Answer(transactionId, precheckResult, key);
+        if(outcome != null)
+        {
+            CompletableFuture<Void> completed = new CompletableFuture<Void>();
+            if(outcome.isSuccess())
+            {
+                completed.complete(null);
+            }
+            else
+            {
+                completed.completeExceptionally(outcome.toException(this.stacklessExceptions));
+            }
+            return completed;
+        }
+        
+        return RunAsync(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                ThrowIfFailed(SendOrAwait(requestBody, transactionId, key, context));
+                return null;
+            }}, context);
+    }
+    
+    /**
+     * Validates a request on the executor of the validation bulkhead after the arguments were checked, failed 
+     * validations complete the future normally.
+     */
+    private CompletableFuture<ValidationOutcome> TryValidateAsync(final String transactionId, final HttpEntity requestBody, ErrorCode precheckResult, final String key, final RequestContext context)
+    {
+        ValidationOutcome outcome = Answer(transactionId, precheckResult, key);
+        if(outcome != null)
+        {
+            return CompletableFuture.completedFuture(outcome);
+        }
+        
+        return RunAsync(new Callable<ValidationOutcome>() {
+            @Override
+            public ValidationOutcome call() throws Exception
+            {
+                return SendOrAwait(requestBody, transactionId, key, context);
+            }}, context);
+    }
+    
+    /**
+     * Answers a validation without calling Intune from the local check or the validation cache.
+     * @return The outcome or null if the request has to be sent.
+     */
+    private ValidationOutcome Answer(String transactionId, ErrorCode precheckResult, String key)
+    {
+        if(precheckResult != null)
+        {
+            return Reject(transactionId, precheckResult);
+        }
+        
+        return this.validationCache == null ? null : this.validationCache.get(key);
+    }
+    
+    /**
+     * Throws the exception the throwing methods report a failed validation with.
+     */
+    private void ThrowIfFailed(ValidationOutcome outcome) throws IntuneScepServiceException
+    {
+        if(!outcome.isSuccess())
+        {
+            throw outcome.toException(this.stacklessExceptions);
+        }
+    }
+    
+    /**
+     * Checks a certificate request locally when CSR_PRECHECK_ENABLED is set.
+     * @return The error code Intune would certainly return for the request or null.
+     */
+    private ErrorCode Precheck(String certificateRequest)
+    {
+        return this.precheckEnabled ? CertificateRequestPrecheck.check(certificateRequest, this.precheckMaxLength) : null;
+    }
+    
+    private ErrorCode Precheck(ByteBuffer certificateRequest)
+    {
+        return this.precheckEnabled ? CertificateRequestPrecheck.check(certificateRequest, this.precheckMaxLength) : null;
+    }
+    
+    /**
+     * Rejects a certificate request that failed the local check.  The outcome has the error code the service would 
+     * have returned and no activityId because Intune was not called.
+     * @param errorCode The result of Precheck.
+     */
+    private ValidationOutcome Reject(String transactionId, ErrorCode errorCode)
+    {
+        this.precheckRejectedCount.incrementAndGet();
+        ValidationOutcome outcome = new ValidationOutcome(errorCode.name(), "The certificate request was rejected before it was sent to Intune.", transactionId, null);
+        log.warn("{}", outcome);
+        return outcome;
+    }
+    
+    /**
+     * Gets the key that identifies identical validation requests or null if neither the cache nor coalescing need it.
+     */
+    private String GetValidationKey(String transactionId, String certificateRequest)
+    {
+        if(this.validationCache == null && !this.coalescingEnabled)
+        {
+            return null;
+        }
+        
+        return ValidationResultCache.getKey(transactionId, certificateRequest);
+    }
+    
+    private String GetValidationKey(String transactionId, ByteBuffer certificateRequest)
+    {
+        if(this.validationCache == null && !this.coalescingEnabled)
+        {
+            return null;
+        }
+        
+        return ValidationResultCache.getKey(transactionId, certificateRequest);
+    }
+    
+    /**
+     * Sends a validation request, or waits for an identical one that is already in flight, and remembers its outcome 
+     * in the validation cache.
+     * @param key The key returned by GetValidationKey.
+     */
+    private ValidationOutcome SendOrAwait(HttpEntity requestBody, String transactionId, String key, RequestContext context) throws Exception
+    {
+        if(!this.coalescingEnabled)
+        {
+            return Send(requestBody, transactionId, key, context);
+        }
+        
+        CompletableFuture<ValidationOutcome> validation = new CompletableFuture<ValidationOutcome>();
+        CompletableFuture<ValidationOutcome> inFlight = this.inFlightValidations.putIfAbsent(key, validation);
+        if(inFlight != null)
+        {
+            ValidationOutcome outcome = AwaitValidation(inFlight, transactionId, context);
+            
+            // When the request in flight did not get an answer from the service this call tries on its own
+            return outcome != null ? outcome : Send(requestBody, transactionId, key, context);
+        }
+        
+        try
+        {
+            ValidationOutcome outcome = Send(requestBody, transactionId, key, context);
+            validation.complete(outcome);
+            return outcome;
+        }
+        catch(Throwable e)
+        {
+            // Errors complete the validation as well, otherwise the callers waiting for it would wait forever
+            validation.completeExceptionally(e);
+            throw e;
+        }
+        finally
+        {
+            this.inFlightValidations.remove(key, validation);
+        }
+    }
+    
+    /**
+     * Waits for an identical validation that is in flight.
+     * @return The outcome of the validation in flight, or null if it failed for a reason other than the answer of the 
+     * service, such as its own deadline, and the caller should send its own request.
+     * @throws IntuneTimeoutException The deadline of this call passed while waiting.
+     */
+    private ValidationOutcome AwaitValidation(CompletableFuture<ValidationOutcome> inFlight, String transactionId, RequestContext context) throws IntuneTimeoutException, InterruptedException
+    {
+        this.coalescedCount.incrementAndGet();
+        log.debug("Validation of transaction {} is already in flight, waiting for its result.", transactionId);
+        
+        try
+        {
+            if(context.getDeadlineNanos() == null)
+            {
+                return inFlight.get();
+            }
+            
+            context.checkDeadline(IntuneTimeoutException.Phase.Response);
+            return inFlight.get(context.getRemainingMillis(0), TimeUnit.MILLISECONDS);
+        }
+        catch(TimeoutException e)
+        {
+            throw new IntuneTimeoutException(IntuneTimeoutException.Phase.Response, true, e);
+        }
+        catch(ExecutionException e)
+        {
+            return null;
+        }
+    }
+    
+    /**
+     * Sends a validation request and remembers its outcome in the validation cache.
+     */
+    private ValidationOutcome Send(HttpEntity requestBody, String transactionId, String key, RequestContext context) throws Exception
     {
-        super(configProperties, msalClient, adalClient, httpClientBuilder);
-        
-        if(configProperties == null)
+        ValidationOutcome outcome = Post(requestBody, VALIDATION_URL, transactionId, context);
+        if(this.validationCache != null)
         {
-            throw new IllegalArgumentException("The argument 'configProperties' is missing"); 
+            this.validationCache.put(key, outcome);
         }
-        
-        configProperties.getProperty(SERVICE_VERSION_PROP_NAME,this.serviceVersion);
-        
-        providerNameAndVersion = configProperties.getProperty(PROVIDER_NAME_AND_VERSION_NAME);
-        if(providerNameAndVersion == null)
+        return outcome;
+    }
+    
+    private HttpEntity CreateValidationRequest(String transactionId, String certificateRequest) throws IllegalArgumentException
+    {
+        if(certificateRequest == null || certificateRequest.isEmpty())
         {
-            throw new IllegalArgumentException("The property '" + PROVIDER_NAME_AND_VERSION_NAME + "' is missing from the property file.");
-        }
+            throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
+        }     
         
-        additionalHeaders.put("UserAgent", providerNameAndVersion);
+        return WriteValidationRequest(transactionId, certificateRequest).toEntity();
     }
-
+    
+    private HttpEntity CreateValidationRequest(String transactionId, ByteBuffer certificateRequest) throws IllegalArgumentException
+    {
+        CheckCertificateRequest(certificateRequest);
+        return WriteValidationRequest(transactionId, null).toEntity(certificateRequest);
+    }
+    
     /**
-     * Validates whether the given Certificate Request is a valid and from Microsoft Intune.
-     * If the request is not valid an exception will be thrown.  
-     * 
-     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
-     *  
-     * @param transactionId The transactionId of the Certificate Request
-     * @param certificateRequest Base 64 encoded PKCS10 packet
-     * @throws IntuneScepServiceException The Certificate Request failed validation
-     * @throws Exception Unexpected validation
+     * Writes the body of a validation request.
+     * @param certificateRequest Base 64 encoded PKCS10 packet or null to leave a gap for DER bytes.
      */
-    public void ValidateRequest(String transactionId, String certificateRequest) throws IntuneScepServiceException, Exception
+    private RequestWriter WriteValidationRequest(String transactionId, String certificateRequest) throws IllegalArgumentException
     {
         if(transactionId == null || transactionId.isEmpty())
         {
             throw new IllegalArgumentException("The argument 'transactionId' is missing");
         }     
         
-        if(certificateRequest == null || certificateRequest.isEmpty())
+        return new RequestWriter(64 + transactionId.length() + (certificateRequest == null ? 0 : certificateRequest.length()) + this.callerInfo.length)
+                .append(VALIDATION_REQUEST)
+                .appendString(transactionId)
+                .append(CERTIFICATE_REQUEST)
+                .appendCertificateRequest(certificateRequest)
+                .append(this.callerInfo)
+                .append(END);
+    }
+    
+    private static void CheckCertificateRequest(ByteBuffer certificateRequest) throws IllegalArgumentException
+    {
+        if(certificateRequest == null || !certificateRequest.hasRemaining())
         {
             throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
-        }     
-        
-        JSONObject requestBody = new JSONObject().put(
-                "request", (new JSONObject())
-                    .put("transactionId", transactionId)
-                    .put("certificateRequest", certificateRequest)
-                    .put("callerInfo", this.providerNameAndVersion));
-        
-        Post(requestBody, VALIDATION_URL, transactionId);
+        }
     }
     
     /**
@@ -139,14 +946,103 @@ public class IntuneScepServiceClient extends IntuneClient
      */
     public void SendSuccessNotification(String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority) throws IntuneScepServiceException, Exception
     {
-        if(transactionId == null || transactionId.isEmpty())
+        SendSuccessNotification(transactionId, certificateRequest, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority, null);
+    }
+    
+    /**
+     * Send a Success notification to the SCEP Service.
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param certThumbprint Thumbprint of the certificate issued.
+     * @param certSerialNumber Serial number of the certificate issued.
+     * @param certExpirationDate The date time string should be formated as web UTC time (YYYY-MM-DDThh:mm:ss.sssTZD) ISO 8601. 
+     * @param certIssuingAuthority Issuing Authority that issued the certificate.
+     * @param caConfiguration CA Configuration that issued the certificate.
+     * @param certificateAuthority Certificate Authority that issued the certificate.
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The service reported a failure in processing the notification examine the exception error code.
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected error
+     */
+    public void SendSuccessNotification(String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, RequestContext.getDeadline(deadline));
+        ThrowIfFailed(Post(CreateSuccessNotification(transactionId, certificateRequest, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority).toEntity(), NOTIFY_SUCCESS_URL, transactionId, context));
+    }
+    
+    /**
+     * Send a Success notification to the SCEP Service.
+     * 
+     * IMPORTANT: If an exception is thrown the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest DER encoded PKCS10 packet between the position and the limit of the buffer, it is 
+     * base 64 encoded while the request is sent.  The buffer must not be modified until the call returns.
+     * @param certThumbprint Thumbprint of the certificate issued.
+     * @param certSerialNumber Serial number of the certificate issued.
+     * @param certExpirationDate The date time string should be formated as web UTC time (YYYY-MM-DDThh:mm:ss.sssTZD) ISO 8601. 
+     * @param certIssuingAuthority Issuing Authority that issued the certificate.
+     * @param caConfiguration CA Configuration that issued the certificate.
+     * @param certificateAuthority Certificate Authority that issued the certificate.
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The service reported a failure in processing the notification examine the exception error code.
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected error
+     */
+    public void SendSuccessNotification(String transactionId, ByteBuffer certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, RequestContext.getDeadline(deadline));
+        CheckCertificateRequest(certificateRequest);
+        RequestWriter requestBody = WriteSuccessNotification(transactionId, null, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority);
+        ThrowIfFailed(Post(requestBody.toEntity(certificateRequest), NOTIFY_SUCCESS_URL, transactionId, context));
+    }
+    
+    /**
+     * Send a Success notification to the SCEP Service without blocking the caller.
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param certThumbprint Thumbprint of the certificate issued.
+     * @param certSerialNumber Serial number of the certificate issued.
+     * @param certExpirationDate The date time string should be formated as web UTC time (YYYY-MM-DDThh:mm:ss.sssTZD) ISO 8601. 
+     * @param certIssuingAuthority Issuing Authority that issued the certificate.
+     * @param caConfiguration CA Configuration that issued the certificate.
+     * @param certificateAuthority Certificate Authority that issued the certificate.
+     * @param deadline Time allowed for the whole call including the time queued, null for no deadline.
+     * @return A future that completes when the notification was accepted, or exceptionally with the same exceptions 
+     * as {@link #ValidateRequestAsync(String, String, Duration)}.
+     */
+    public CompletableFuture<Void> SendSuccessNotificationAsync(String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority, Duration deadline) throws IllegalArgumentException
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, RequestContext.getDeadline(deadline));
+        return PostAsync(CreateSuccessNotification(transactionId, certificateRequest, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority).toEntity(), NOTIFY_SUCCESS_URL, transactionId, context);
+    }
+    
+    /**
+     * Writes the body of a success notification.
+     */
+    RequestWriter CreateSuccessNotification(String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority) throws IllegalArgumentException
+    {
+        if(certificateRequest == null || certificateRequest.isEmpty())
         {
-            throw new IllegalArgumentException("The argument 'transactionId' is missing");
+            throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
         }     
         
-        if(certificateRequest == null || certificateRequest.isEmpty())
+        return WriteSuccessNotification(transactionId, certificateRequest, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority);
+    }
+    
+    /**
+     * Writes the body of a success notification.
+     * @param certificateRequest Base 64 encoded PKCS10 packet or null to leave a gap for DER bytes.
+     */
+    private RequestWriter WriteSuccessNotification(String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority) throws IllegalArgumentException
+    {
+        if(transactionId == null || transactionId.isEmpty())
         {
-            throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
+            throw new IllegalArgumentException("The argument 'transactionId' is missing");
         }     
         
         if(certThumbprint == null || certThumbprint.isEmpty())
@@ -169,19 +1065,32 @@ public class IntuneScepServiceClient extends IntuneClient
             throw new IllegalArgumentException("The argument 'certIssuingAuthority' is missing");
         }     
         
-        JSONObject requestBody = new JSONObject().put(
-                "notification", (new JSONObject())
-                    .put("transactionId", transactionId)
-                    .put("certificateRequest", certificateRequest)
-                    .put("certificateThumbprint", certThumbprint)
-                    .put("certificateSerialNumber", certSerialNumber)
-                    .put("certificateExpirationDateUtc", certExpirationDate)
-                    .put("issuingCertificateAuthority", certIssuingAuthority)
-                    .put("callerInfo", this.providerNameAndVersion)
-                    .put("caConfiguration", caConfiguration)
-                    .put("certificateAuthority", certificateAuthority));
+        RequestWriter requestBody = new RequestWriter(384 + transactionId.length() + (certificateRequest == null ? 0 : certificateRequest.length()) + this.callerInfo.length)
+                .append(NOTIFICATION)
+                .appendString(transactionId)
+                .append(CERTIFICATE_REQUEST)
+                .appendCertificateRequest(certificateRequest)
+                .append(CERTIFICATE_THUMBPRINT)
+                .appendString(certThumbprint)
+                .append(CERTIFICATE_SERIAL_NUMBER)
+                .appendString(certSerialNumber)
+                .append(CERTIFICATE_EXPIRATION_DATE)
+                .appendString(certExpirationDate)
+                .append(ISSUING_CERTIFICATE_AUTHORITY)
+                .appendString(certIssuingAuthority)
+                .append(this.callerInfo);
+        
+        // Optional values are left out when null, as the service has always received them
+        if(caConfiguration != null)
+        {
+            requestBody.append(CA_CONFIGURATION).appendString(caConfiguration);
+        }
+        if(certificateAuthority != null)
+        {
+            requestBody.append(CERTIFICATE_AUTHORITY).appendString(certificateAuthority);
+        }
         
-        Post(requestBody, NOTIFY_SUCCESS_URL, transactionId);
+        return requestBody.append(END);
     }
     
     /**
@@ -200,71 +1109,362 @@ public class IntuneScepServiceClient extends IntuneClient
      */
     public void SendFailureNotification(String transactionId, String certificateRequest, long hResult, String errorDescription) throws IntuneScepServiceException, Exception
     {
-        if(transactionId == null || transactionId.isEmpty())
-        {
-            throw new IllegalArgumentException("The argument 'transactionId' is missing");
-        }     
-        
+        SendFailureNotification(transactionId, certificateRequest, hResult, errorDescription, null);
+    }
+    
+    /**
+     * Send a Failure notification to the SCEP service. 
+     * 
+     * IMPORTANT: If this method is called the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param hResult 32-bit error code formulated using the instructions specified in https://msdn.microsoft.com/en-us/library/cc231198.aspx. 
+     * @param errorDescription Description of what error occurred. Max length = 255 chars
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The service reported a failure in processing the notification examine the exception error code.
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected error
+     */
+    public void SendFailureNotification(String transactionId, String certificateRequest, long hResult, String errorDescription, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, RequestContext.getDeadline(deadline));
+        ThrowIfFailed(Post(CreateFailureNotification(transactionId, certificateRequest, hResult, errorDescription).toEntity(), NOTIFY_FAILURE_URL, transactionId, context));
+    }
+    
+    /**
+     * Send a Failure notification to the SCEP service. 
+     * 
+     * IMPORTANT: If this method is called the SCEP server should not issue a certificate to the client.
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest DER encoded PKCS10 packet between the position and the limit of the buffer, it is 
+     * base 64 encoded while the request is sent.  The buffer must not be modified until the call returns.
+     * @param hResult 32-bit error code formulated using the instructions specified in https://msdn.microsoft.com/en-us/library/cc231198.aspx. 
+     * @param errorDescription Description of what error occurred. Max length = 255 chars
+     * @param deadline Time allowed for the whole call including token acquisition, service discovery and retries, null for no deadline.
+     * @throws IntuneScepServiceException The service reported a failure in processing the notification examine the exception error code.
+     * @throws IntuneTimeoutException The deadline passed, the exception names the phase that ran out of time.
+     * @throws Exception Unexpected error
+     */
+    public void SendFailureNotification(String transactionId, ByteBuffer certificateRequest, long hResult, String errorDescription, Duration deadline) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, RequestContext.getDeadline(deadline));
+        CheckCertificateRequest(certificateRequest);
+        RequestWriter requestBody = WriteFailureNotification(transactionId, null, hResult, errorDescription);
+        ThrowIfFailed(Post(requestBody.toEntity(certificateRequest), NOTIFY_FAILURE_URL, transactionId, context));
+    }
+    
+    /**
+     * Send a Failure notification to the SCEP service without blocking the caller. 
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param hResult 32-bit error code formulated using the instructions specified in https://msdn.microsoft.com/en-us/library/cc231198.aspx. 
+     * @param errorDescription Description of what error occurred. Max length = 255 chars
+     * @param deadline Time allowed for the whole call including the time queued, null for no deadline.
+     * @return A future that completes when the notification was accepted, or exceptionally with the same exceptions 
+     * as {@link #ValidateRequestAsync(String, String, Duration)}.
+     */
+    public CompletableFuture<Void> SendFailureNotificationAsync(String transactionId, String certificateRequest, long hResult, String errorDescription, Duration deadline) throws IllegalArgumentException
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, RequestContext.getDeadline(deadline));
+        return PostAsync(CreateFailureNotification(transactionId, certificateRequest, hResult, errorDescription).toEntity(), NOTIFY_FAILURE_URL, transactionId, context);
+    }
+    
+    /**
+     * Writes the body of a failure notification.
+     */
+    RequestWriter CreateFailureNotification(String transactionId, String certificateRequest, long hResult, String errorDescription) throws IllegalArgumentException
+    {
         if(certificateRequest == null || certificateRequest.isEmpty())
         {
             throw new IllegalArgumentException("The argument 'certificateRequest' is missing");
         }       
         
+        return WriteFailureNotification(transactionId, certificateRequest, hResult, errorDescription);
+    }
+    
+    /**
+     * Writes the body of a failure notification.
+     * @param certificateRequest Base 64 encoded PKCS10 packet or null to leave a gap for DER bytes.
+     */
+    private RequestWriter WriteFailureNotification(String transactionId, String certificateRequest, long hResult, String errorDescription) throws IllegalArgumentException
+    {
+        if(transactionId == null || transactionId.isEmpty())
+        {
+            throw new IllegalArgumentException("The argument 'transactionId' is missing");
+        }     
+        
         if(errorDescription == null || errorDescription.isEmpty())
         {
             throw new IllegalArgumentException("The argument 'errorDescription' is missing");
         }  
         
-        JSONObject requestBody = new JSONObject().put(
-                "notification", (new JSONObject())
-                    .put("transactionId", transactionId)
-                    .put("certificateRequest", certificateRequest)
-                    .put("hResult", hResult)
-                    .put("errorDescription", errorDescription)
-                    .put("callerInfo", this.providerNameAndVersion));
+        return new RequestWriter(128 + transactionId.length() + (certificateRequest == null ? 0 : certificateRequest.length()) + errorDescription.length() + this.callerInfo.length)
+                .append(NOTIFICATION)
+                .appendString(transactionId)
+                .append(CERTIFICATE_REQUEST)
+                .appendCertificateRequest(certificateRequest)
+                .append(HRESULT)
+                .appendNumber(hResult)
+                .append(ERROR_DESCRIPTION)
+                .appendString(errorDescription)
+                .append(this.callerInfo)
+                .append(END);
+    }
+    
+    /**
+     * Runs Post on the executor of the bulkhead of the operation class.
+     */
+    private CompletableFuture<Void> PostAsync(final HttpEntity requestBody, final String urlSuffix, final String transactionId, final RequestContext context)
+    {
+        return RunAsync(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                ThrowIfFailed(Post(requestBody, urlSuffix, transactionId, context));
+                return null;
+            }}, context);
+    }
+    
+    /**
+     * Runs a call on the executor of the bulkhead of the operation class.
+     */
+    private <T> CompletableFuture<T> RunAsync(Callable<T> callable, RequestContext context)
+    {
+        AsyncCall<T> call = new AsyncCall<T>(callable, context);
+        
+        try
+        {
+            this.bulkheads.get(context.getOperationClass()).getExecutor().execute(call);
+        }
+        catch(RejectedExecutionException e)
+        {
+            call.completeExceptionally(new IntuneConcurrencyLimitException("The " + context.getOperationClass() + " bulkhead queue is full."));
+        }
         
-        Post(requestBody, NOTIFY_FAILURE_URL, transactionId);
+        return call;
+    }
+    
+    /**
+     * Sends a notification that was created by CreateSuccessNotification or CreateFailureNotification.
+     */
+    void SendNotification(byte[] requestBody, boolean success, String transactionId) throws IntuneScepServiceException, Exception
+    {
+        RequestContext context = new RequestContext(OperationClass.Notification, false, null);
+        context.disableRetries();
+        ThrowIfFailed(Post(new ByteArrayEntity(requestBody), success ? NOTIFY_SUCCESS_URL : NOTIFY_FAILURE_URL, transactionId, context));
     }
     
-    private void Post(JSONObject requestBody, String urlSuffix, String transactionId) throws IntuneScepServiceException, Exception
+    /**
+     * Sends a request to the SCEP service.
+     * @return The answer of the service, failures it reports are returned and not thrown.
+     */
+    private ValidationOutcome Post(HttpEntity requestBody, String urlSuffix, String transactionId, RequestContext context) throws Exception
     {
         UUID activityId = UUID.randomUUID();
+        long startNanos = System.nanoTime();
+        JSONObject result;
         
         try 
         {
-            JSONObject result = this.PostRequest(VALIDATION_SERVICE_NAME, 
-                     urlSuffix, 
-                     serviceVersion, 
-                     requestBody,
-                     activityId,
-                     additionalHeaders);
+            // Only validation is hedged, notifications are not idempotent
+            result = this.hedgeEnabled && context.getOperationClass() == OperationClass.Validation ? 
+                    HedgedPostRequest(urlSuffix, requestBody, activityId, context) :
+                    this.PostRequest(VALIDATION_SERVICE_NAME, 
+                        urlSuffix, 
+                        serviceVersion, 
+                        requestBody,
+                        activityId,
+                        additionalHeaders,
+                        context);
+        }
+        catch(Exception e)
+        { 
+            // Service lookup failures and error responses are already logged by IntuneClient.  Requests that are shed,
+            // limited or time out are expected under load, their stack is only written when debugging
+            if (!(e instanceof IntuneServiceNotFoundException) && !(e instanceof IntuneClientHttpErrorException))
+            {
+                log.warn("ActivityId:{},TransactionId:{},Exception:{}", activityId, transactionId, DescribeFailure(e));
+                log.debug("ActivityId:{} failed", activityId, e);
+            }
+            throw e;
+        }
+        
+        // A success is recognized from the code alone, without reading the description or formatting a message
+        ValidationOutcome outcome = ValidationOutcome.fromResponse(result, transactionId, activityId);
+        this.requestLog.completed(log, activityId, transactionId, startNanos, outcome.getOriginalErrorCode(), result);
+        if(!outcome.isSuccess())
+        {
+            log.warn("{}", outcome);
+        }
+        return outcome;
+    }
+    
+    /**
+     * Sends a request and, if it has not completed within the configured percentile of recent latencies, sends a 
+     * second copy of it to another endpoint of the service.  The first response wins and the other request is cancelled.
+     * Hedges are only sent while the hedge budget allows it so that a slow service does not see twice the load.
+     * 
+     * The first request is sent from the calling thread, a thread of the hedge executor is only used by the hedge.
+     */
+    private JSONObject HedgedPostRequest(String urlSuffix, HttpEntity requestBody, UUID activityId, RequestContext context) throws Exception
+    {
+        if(context.isCancelled())
+        {
+            throw new InterruptedException("The request was cancelled.");
+        }
+        
+        this.hedgeBudget.deposit();
+        long hedgeDelay = Math.max(this.hedgeMinDelayMillis, this.hedgeLatency.getPercentile(this.hedgePercentile, this.hedgeInitialDelayMillis));
+        long start = System.nanoTime();
+        
+        HedgedCall call = new HedgedCall(urlSuffix, requestBody, activityId, context.getDeadlineNanos(), hedgeDelay);
+        ScheduledFuture<?> timer = null;
+        try
+        {
+            timer = this.hedgeTimer.schedule(call, hedgeDelay, TimeUnit.MILLISECONDS);
+        }
+        catch(RejectedExecutionException e)
+        {
+            // The client was closed, calls are no longer hedged
+            call.finish();
+        }
+        
+        try
+        {
+            JSONObject result;
+            try
+            {
+                result = PostRequest(VALIDATION_SERVICE_NAME, 
+                        urlSuffix, 
+                        serviceVersion, 
+                        requestBody, 
+                        activityId, 
+                        additionalHeaders, 
+                        call.primaryContext);
+            }
+            catch(Exception e)
+            {
+                // Wait for the hedge before giving up, a hedge that succeeds aborts the first request
+                Future<JSONObject> hedge = call.finish();
+                if(hedge == null)
+                {
+                    throw e;
+                }
+                
+                try
+                {
+                    result = hedge.get();
+                }
+                catch(ExecutionException hedgeFailure)
+                {
+                    throw e;
+                }
+            }
             
-            log.info("Activity " + activityId + " has completed.");
-            log.info(result.toString());
+            this.hedgeLatency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            return result;
+        }
+        finally
+        {
+            if(timer != null)
+            {
+                timer.cancel(false);
+            }
+            call.cancel();
+        }
+    }
+    
+    /**
+     * A call whose first request is sent by the calling thread and that is hedged by a timer when it is slow.  The 
+     * hedge has its own activityId, the log links it to the activityId of the first request.
+     */
+    private class HedgedCall implements Runnable
+    {
+        final RequestContext primaryContext;
+        private final String urlSuffix;
+        private final HttpEntity requestBody;
+        private final UUID activityId;
+        private final Long deadlineNanos;
+        private final long hedgeDelay;
+        private boolean finished = false;
+        private RequestContext hedgeContext = null;
+        private Future<JSONObject> hedge = null;
+        
+        HedgedCall(String urlSuffix, HttpEntity requestBody, UUID activityId, Long deadlineNanos, long hedgeDelay)
+        {
+            this.primaryContext = new RequestContext(OperationClass.Validation, false, deadlineNanos);
+            this.urlSuffix = urlSuffix;
+            this.requestBody = requestBody;
+            this.activityId = activityId;
+            this.deadlineNanos = deadlineNanos;
+            this.hedgeDelay = hedgeDelay;
+        }
+        
+        /**
+         * Sends the hedge unless the first request has completed or the hedge budget is spent.
+         */
+        @Override
+        public synchronized void run()
+        {
+            if(this.finished || !hedgeBudget.tryWithdraw())
+            {
+                return;
+            }
             
-            String code = result.getString("code");
-            String errorDescription = result.getString("errorDescription");
+            final UUID hedgeActivityId = UUID.randomUUID();
+            final RequestContext hedgeContext = new RequestContext(OperationClass.Validation, true, this.deadlineNanos);
+            log.info("Activity {} did not complete within {}ms, sending hedged request {}.", this.activityId, this.hedgeDelay, hedgeActivityId);
             
-            IntuneScepServiceException e = new IntuneScepServiceException(code, errorDescription, transactionId, activityId);
-
-            if (e.getParsedErrorCode() != ErrorCode.Success)
+            // The hedge executor does not queue, when it is full the call is not hedged so that it can not wait behind other calls
+            try
             {
-                
-                log.warn(e.getMessage());
-                throw e;
+                this.hedge = hedgeExecutor.submit(new Callable<JSONObject>() {
+                    @Override
+                    public JSONObject call() throws Exception
+                    {
+                        JSONObject result = PostRequest(VALIDATION_SERVICE_NAME, 
+                                urlSuffix, 
+                                serviceVersion, 
+                                requestBody, 
+                                hedgeActivityId, 
+                                additionalHeaders, 
+                                hedgeContext);
+                        log.info("Hedged request {} of activity {} succeeded, cancelling the first request.", hedgeActivityId, activityId);
+                        primaryContext.cancel();
+                        return result;
+                    }});
+                this.hedgeContext = hedgeContext;
+            }
+            catch(RejectedExecutionException e)
+            {
+                log.info("Activity {} was not hedged because the hedge executor is full.", this.activityId);
             }
         }
-        catch(Exception e)
-        { 
-            if (!(e instanceof IntuneScepServiceException))
+        
+        /**
+         * Stops the timer from sending a hedge.
+         * @return The hedge that was sent or null if there is none.
+         */
+        synchronized Future<JSONObject> finish()
+        {
+            this.finished = true;
+            return this.hedge;
+        }
+        
+        /**
+         * Cancels the hedge if it is still in flight.
+         */
+        void cancel()
+        {
+            Future<JSONObject> hedge = finish();
+            if(hedge != null && !hedge.isDone())
             {
-                log.error(
-                        "ActivityId:" + activityId + "," +
-                        "TransactionId:" + transactionId + "," +
-                        "ExceptionMessage:" + e.getMessage()
-                        , e);
+                this.hedgeContext.cancel();
+                hedge.cancel(true);
             }
-            throw e;
         }
     }
 }
@@ -23,6 +23,8 @@
 
 package com.microsoft.intune.scepvalidation;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.UUID;
 
 import org.slf4j.Logger;
@@ -35,13 +37,14 @@ public class IntuneScepServiceException extends IntuneClientException
 {
     private static final long serialVersionUID = 2018_04_24_001L;
     
-    final Logger log = LoggerFactory.getLogger(IntuneScepServiceException.class);
+    private static final Logger log = LoggerFactory.getLogger(IntuneScepServiceException.class);
     
     private UUID activityId = null;
     private String errorCode = null;
     private String errorDescription = null;
     private ErrorCode parsedErrorCode = ErrorCode.Unknown;
     private String transactionId = null;
+    private String message = null;
     
     public enum ErrorCode{
         Unknown,
@@ -69,6 +72,25 @@ public class IntuneScepServiceException extends IntuneClientException
         BadCertificateRequestIdInChallenge,
         BadDeviceIdInChallenge,
         BadUserIdInChallenge;
+        
+        private static final Map<String, ErrorCode> CODES = new HashMap<String, ErrorCode>();
+        
+        static
+        {
+            for(ErrorCode code : values())
+            {
+                CODES.put(code.name(), code);
+            }
+        }
+        
+        /**
+         * Looks up the error code the service returned.
+         * @return The error code or null if the value is not known.
+         */
+        static ErrorCode lookup(String errorCode)
+        {
+            return errorCode == null ? null : CODES.get(errorCode);
+        }
     };
     
     /**
@@ -113,22 +135,55 @@ public class IntuneScepServiceException extends IntuneClientException
     
     public IntuneScepServiceException(String errorCode, String errorDescription, String transactionId, UUID activityId)
     {        
-        super("ActivityId:" + activityId + "," +
-              "TransactionId:" + transactionId + "," +
-              "ErrorCode:" + errorCode + "," +
-              "ErrorDescription:" + errorDescription);
+        this(parseErrorCode(errorCode), errorCode, errorDescription, transactionId, activityId, true);
+    }
+    
+    /**
+     * @param writableStackTrace False to skip capturing the stack trace, which is most of the cost of the exception.
+     */
+    IntuneScepServiceException(ErrorCode parsedErrorCode, String errorCode, String errorDescription, String transactionId, UUID activityId, boolean writableStackTrace)
+    {
+        super(null, null, true, writableStackTrace);
         
         this.activityId = activityId;
         this.transactionId = transactionId;
         this.errorCode = errorCode;
         this.errorDescription = errorDescription;
-        try
+        this.parsedErrorCode = parsedErrorCode;
+    }
+    
+    /**
+     * The message is only formatted when it is asked for.
+     */
+    @Override
+    public String getMessage()
+    {
+        if(this.message == null)
         {
-            parsedErrorCode = ErrorCode.valueOf(this.errorCode);
+            this.message = formatMessage(this.activityId, this.transactionId, this.errorCode, this.errorDescription);
         }
-        catch(IllegalArgumentException e)
+        return this.message;
+    }
+    
+    static String formatMessage(UUID activityId, String transactionId, String errorCode, String errorDescription)
+    {
+        return "ActivityId:" + activityId + "," +
+               "TransactionId:" + transactionId + "," +
+               "ErrorCode:" + errorCode + "," +
+               "ErrorDescription:" + errorDescription;
+    }
+    
+    /**
+     * Parses the error code the service returned, codes that are not known are Unknown.
+     */
+    static ErrorCode parseErrorCode(String errorCode)
+    {
+        ErrorCode parsed = ErrorCode.lookup(errorCode);
+        if(parsed == null)
         {
-            log.warn("Error Code value not expected: " + this.errorCode);
+            log.warn("Error Code value not expected: {}", errorCode);
+            return ErrorCode.Unknown;
         }
+        return parsed;
     }
 }
@@ -26,9 +26,34 @@ package com.microsoft.intune.scepvalidation;
 public class IntuneServiceNotFoundException extends IntuneClientException
 {    
     private static final long serialVersionUID = -8078207104310213630L;
+    
+    private final String serviceName;
+    private String message = null;
 
     public IntuneServiceNotFoundException(String serviceName)
     {
-        super("Did not find service named '" + serviceName + "' listed in Microsoft.Graph discovery service list.");
+        this(serviceName, true);
+    }
+    
+    /**
+     * @param writableStackTrace False to skip capturing the stack trace, which is most of the cost of the exception.
+     */
+    IntuneServiceNotFoundException(String serviceName, boolean writableStackTrace)
+    {
+        super(null, null, true, writableStackTrace);
+        this.serviceName = serviceName;
+    }
+    
+    /**
+     * The message names the service, it is only formatted when it is asked for.
+     */
+    @Override
+    public String getMessage()
+    {
+        if(this.message == null)
+        {
+            this.message = "Did not find service named '" + this.serviceName + "' listed in Microsoft.Graph discovery service list.";
+        }
+        return this.message;
     }
 }
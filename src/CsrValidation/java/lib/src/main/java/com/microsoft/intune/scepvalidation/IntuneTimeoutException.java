@@ -0,0 +1,71 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+/**
+ * Exception thrown when a call to Intune took longer than its timeout or deadline allowed.
+ */
+public class IntuneTimeoutException extends IntuneClientException
+{
+    private static final long serialVersionUID = 4431720657094431852L;
+    
+    /**
+     * The phases of a call to Intune.
+     */
+    public enum Phase
+    {
+        TokenAcquisition,
+        ServiceDiscovery,
+        ConnectionLease,
+        Connect,
+        Response,
+        RetryBackoff
+    }
+    
+    private Phase phase = null;
+    private boolean deadlineExceeded = false;
+    
+    /**
+     * The phase that was running when the time ran out.
+     */
+    public Phase getPhase()
+    {
+        return this.phase;
+    }
+    
+    /**
+     * true if the deadline given by the caller ran out, false if only the timeout of the phase did.
+     */
+    public boolean isDeadlineExceeded()
+    {
+        return this.deadlineExceeded;
+    }
+
+    public IntuneTimeoutException(Phase phase, boolean deadlineExceeded, Throwable cause)
+    {
+        super((deadlineExceeded ? "Deadline exceeded" : "Timed out") + " during " + phase + (cause == null ? "" : ": " + cause), cause);
+        this.phase = phase;
+        this.deadlineExceeded = deadlineExceeded;
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent request latencies so that percentiles can be computed from them.
+ */
+class LatencyTracker
+{
+    private final long[] samples;
+    private final int minSamples;
+    private int next = 0;
+    private int count = 0;
+    
+    /**
+     * Creates a tracker.
+     * @param size Number of recent latencies to keep.
+     * @param minSamples Number of latencies needed before a percentile is computed.
+     */
+    LatencyTracker(int size, int minSamples)
+    {
+        this.samples = new long[size];
+        this.minSamples = minSamples;
+    }
+    
+    /**
+     * Records the latency of a request.
+     * @param latencyMillis Latency in milliseconds.
+     */
+    synchronized void record(long latencyMillis)
+    {
+        this.samples[this.next] = latencyMillis;
+        this.next = (this.next + 1) % this.samples.length;
+        this.count = Math.min(this.count + 1, this.samples.length);
+    }
+    
+    /**
+     * Returns the given percentile of the recent latencies.
+     * @param percentile Percentile between 0 and 100.
+     * @param defaultValue Value returned while too few latencies have been recorded.
+     * @return Latency in milliseconds.
+     */
+    long getPercentile(double percentile, long defaultValue)
+    {
+        long[] sorted;
+        synchronized(this)
+        {
+            if(this.count < this.minSamples || this.count == 0)
+            {
+                return defaultValue;
+            }
+            sorted = Arrays.copyOf(this.samples, this.count);
+        }
+        
+        Arrays.sort(sorted);
+        int index = (int)Math.ceil(percentile / 100 * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+}
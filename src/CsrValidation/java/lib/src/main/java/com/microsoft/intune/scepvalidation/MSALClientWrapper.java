@@ -27,8 +27,13 @@ import java.net.MalformedURLException;
 import java.net.Proxy;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.naming.ServiceUnavailableException;
 import javax.net.ssl.SSLSocketFactory;
@@ -47,14 +52,31 @@ public class MSALClientWrapper
     private String authority = "https://login.microsoftonline.com/";
     private String azureAppId = null;
     private ExecutorService service = null;
+    private boolean ownsService = true;
+    private final ReentrantLock applicationLock = new ReentrantLock();
     private Builder builder = null;
+    private ConfidentialClientApplication app = null;
+    private long timeoutMillis = 30000;
     
     /**
-     * MSAL Authentication Client
+     * MSAL Authentication Client that runs token requests on AUTH_THREAD_POOL_SIZE threads of its own, or on a virtual 
+     * thread per request when virtual threads are enabled.
      * @param aadTenant - Azure tenant
      * @throws IllegalArgumentException
      */
     public MSALClientWrapper(String aadTenant, Properties props) throws IllegalArgumentException
+    {
+        this(aadTenant, props, null);
+    }
+    
+    /**
+     * MSAL Authentication Client that runs token requests on a shared executor.
+     * @param aadTenant - Azure tenant
+     * @param props - Properties object containing client configuration information.
+     * @param executor - Executor shared with other clients, the caller is responsible for shutting it down.
+     * @throws IllegalArgumentException
+     */
+    public MSALClientWrapper(String aadTenant, Properties props, ExecutorService executor) throws IllegalArgumentException
     {
         if(aadTenant == null || aadTenant.isEmpty())
         {
@@ -67,6 +89,7 @@ public class MSALClientWrapper
         }
         
         this.authority = props.getProperty("AUTH_AUTHORITY",this.authority);
+        this.timeoutMillis = IntuneClient.getLongProperty(props, "AUTH_TIMEOUT_MS", this.timeoutMillis);
         
         this.azureAppId = props.getProperty("AAD_APP_ID");
         if(this.azureAppId == null || this.azureAppId.isEmpty())
@@ -80,13 +103,25 @@ public class MSALClientWrapper
             throw new IllegalArgumentException("The argument 'AAD_APP_KEY' is missing");
         }
         
-        this.service = Executors.newFixedThreadPool(1);
+        if(executor == null)
+        {
+            this.service = ThreadFactories.isVirtualThreadsEnabled(props) ? 
+                    ThreadFactories.newVirtualThreadPerTaskExecutor("intune-msal-") : 
+                    Executors.newFixedThreadPool((int)IntuneClient.getLongProperty(props, "AUTH_THREAD_POOL_SIZE", 4), ThreadFactories.create("intune-msal-", false));
+        }
+        else
+        {
+            this.service = executor;
+            this.ownsService = false;
+        }
 
         try 
         {
+            // MSAL runs token requests on its own threads unless it is given an executor
             builder = ConfidentialClientApplication
                     .builder(azureAppId, ClientCredentialFactory.createFromSecret(azureAppKey))
-                    .authority(authority + aadTenant);
+                    .authority(authority + aadTenant)
+                    .executorService(this.service);
         }
         catch(MalformedURLException e)
         {
@@ -105,7 +140,16 @@ public class MSALClientWrapper
             throw new IllegalArgumentException("The argument 'factory' is missing.");
         }
         
-        this.builder.sslSocketFactory(factory);
+        this.applicationLock.lock();
+        try
+        {
+            this.builder.sslSocketFactory(factory);
+            this.app = null;
+        }
+        finally
+        {
+            this.applicationLock.unlock();
+        }
     }
     
     /**
@@ -114,7 +158,16 @@ public class MSALClientWrapper
      */
     public void SetProxy(Proxy proxy)
     {
-        this.builder.proxy(proxy);
+        this.applicationLock.lock();
+        try
+        {
+            this.builder.proxy(proxy);
+            this.app = null;
+        }
+        finally
+        {
+            this.applicationLock.unlock();
+        }
     }
     
     /**
@@ -122,16 +175,54 @@ public class MSALClientWrapper
      * @param sopes Scopes to request access for.
      * @return
      * @throws MalformedURLException 
-     * @throws ServiceUnavailableException 
+     * @throws ServiceUnavailableException The token could not be acquired within AUTH_TIMEOUT_MS.
+     * @throws CompletionException MSAL failed to acquire the token, the cause is the exception of MSAL.
      */    
     public String getAccessToken(Set<String> scopes) throws MalformedURLException, ServiceUnavailableException {
 
+        try
+        {
+            return getAccessToken(scopes, this.timeoutMillis);
+        }
+        catch(TimeoutException e)
+        {
+            throw new ServiceUnavailableException("Timed out after " + this.timeoutMillis + "ms acquiring a token");
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new ServiceUnavailableException("Interrupted while acquiring a token");
+        }
+    }
+    
+    /**
+     * Gets an access token from MSAL for the specified scopes.
+     * @param scopes Scopes to request access for.
+     * @param timeoutMillis Time to wait for the token, 0 to wait forever.
+     * @return
+     * @throws MalformedURLException 
+     * @throws ServiceUnavailableException 
+     * @throws TimeoutException The token was not acquired in time.
+     * @throws InterruptedException
+     * @throws CompletionException MSAL failed to acquire the token, the cause is the exception of MSAL.
+     */    
+    public String getAccessToken(Set<String> scopes, long timeoutMillis) throws MalformedURLException, ServiceUnavailableException, TimeoutException, InterruptedException {
+
         IAuthenticationResult result;
 
         ClientCredentialParameters params = ClientCredentialParameters.builder(scopes).build();
 
-        ConfidentialClientApplication app = builder.build();
-        result = app.acquireToken(params).join();
+        try
+        {
+            result = timeoutMillis > 0 ?
+                    getApplication().acquireToken(params).get(timeoutMillis, TimeUnit.MILLISECONDS) :
+                    getApplication().acquireToken(params).get();
+        }
+        catch(ExecutionException e)
+        {
+            // Keep throwing what join() used to throw, the failure of MSAL wrapped in a CompletionException
+            throw new CompletionException(e.getCause());
+        }
 
         if (result == null) 
         {
@@ -141,9 +232,34 @@ public class MSALClientWrapper
         return result.accessToken();
     }
     
+    /**
+     * Gets the application used to acquire tokens, it is reused so that its token cache is kept between requests.
+     * A lock is used instead of synchronized so that a virtual thread building the application does not pin its carrier.
+     */
+    private ConfidentialClientApplication getApplication()
+    {
+        this.applicationLock.lock();
+        try
+        {
+            if(this.app == null)
+            {
+                this.app = builder.build();
+            }
+            
+            return this.app;
+        }
+        finally
+        {
+            this.applicationLock.unlock();
+        }
+    }
+    
     @Override
     public void finalize()
     {
-        service.shutdown();
+        if(ownsService)
+        {
+            service.shutdown();
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,512 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.naming.ServiceUnavailableException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends SCEP success and failure notifications in the background so that the thread that issued the certificate does
+ * not wait for Intune.
+ * 
+ * Notifications are validated when they are accepted and then held in a bounded in-memory queue until a worker has 
+ * sent them.  Transport failures, timeouts and retryable status codes are retried with exponential backoff, each 
+ * attempt is sent once by the client so that its own retries do not multiply the attempts.  Errors returned by the 
+ * SCEP service and permanent status codes such as 400 or 403 are not retried.  When 
+ * the queue is full new notifications wait up to NOTIFICATION_ENQUEUE_TIMEOUT_MS and are then rejected, so callers 
+ * get backpressure instead of unbounded memory use.
+ * 
+ * Without NOTIFICATION_JOURNAL_DIR notifications are only kept in memory and are lost when the process stops.  With 
+ * it every accepted notification is appended to a durable journal in that directory before it is queued and is only
+ * removed once Intune accepted it or rejected it.  Notifications that were still pending when the process stopped, 
+ * or that failed on every attempt, are sent again in order when a dispatcher is created for the same directory.
+ * Appends are not forced to disk unless NOTIFICATION_JOURNAL_FSYNC is set, they survive a restart of the process but
+ * not a crash of the operating system.
+ * 
+ * Configured with the properties NOTIFICATION_QUEUE_SIZE, NOTIFICATION_WORKERS, NOTIFICATION_MAX_ATTEMPTS, 
+ * NOTIFICATION_RETRY_DELAY_MS, NOTIFICATION_RETRY_MAX_DELAY_MS, NOTIFICATION_ENQUEUE_TIMEOUT_MS, 
+ * NOTIFICATION_DRAIN_TIMEOUT_MS, NOTIFICATION_JOURNAL_DIR, NOTIFICATION_JOURNAL_SEGMENT_SIZE and 
+ * NOTIFICATION_JOURNAL_FSYNC.
+ */
+public class NotificationDispatcher implements Closeable
+{
+    private final IntuneScepServiceClient client;
+    
+    private int queueSize = 1000;
+    private int workers = 4;
+    private int maxAttempts = 5;
+    private long retryDelayMillis = 1000;
+    private long retryMaxDelayMillis = 60000;
+    private long enqueueTimeoutMillis = 0;
+    private long drainTimeoutMillis = 30000;
+    
+    // Permits are held from the time a notification is accepted until it was sent or dropped
+    private final Semaphore capacity;
+    private final DelayQueue<PendingNotification> queue = new DelayQueue<PendingNotification>();
+    private final ExecutorService executor;
+    private final NotificationJournal journal;
+    private final int replayedCount;
+    private volatile boolean closed = false;
+    private volatile boolean stopped = false;
+    
+    private final AtomicLong acceptedCount = new AtomicLong();
+    private final AtomicLong sentCount = new AtomicLong();
+    private final AtomicLong retriedCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    
+    static final Logger log = LoggerFactory.getLogger(NotificationDispatcher.class);
+    
+    /**
+     * Creates a dispatcher and starts its workers.
+     * @param client The client used to send the notifications.
+     * @param configProperties Properties object containing client configuration information.
+     * @throws IllegalArgumentException
+     * @throws IOException The journal could not be opened.
+     */
+    public NotificationDispatcher(IntuneScepServiceClient client, Properties configProperties) throws IllegalArgumentException, IOException
+    {
+        if(client == null)
+        {
+            throw new IllegalArgumentException("The argument 'client' is missing");
+        }
+        
+        if(configProperties == null)
+        {
+            throw new IllegalArgumentException("The argument 'configProperties' is missing");
+        }
+        
+        this.client = client;
+        this.queueSize = (int)IntuneClient.getLongProperty(configProperties, "NOTIFICATION_QUEUE_SIZE", this.queueSize);
+        this.workers = (int)IntuneClient.getLongProperty(configProperties, "NOTIFICATION_WORKERS", this.workers);
+        this.maxAttempts = (int)IntuneClient.getLongProperty(configProperties, "NOTIFICATION_MAX_ATTEMPTS", this.maxAttempts);
+        this.retryDelayMillis = IntuneClient.getLongProperty(configProperties, "NOTIFICATION_RETRY_DELAY_MS", this.retryDelayMillis);
+        this.retryMaxDelayMillis = IntuneClient.getLongProperty(configProperties, "NOTIFICATION_RETRY_MAX_DELAY_MS", this.retryMaxDelayMillis);
+        this.enqueueTimeoutMillis = IntuneClient.getLongProperty(configProperties, "NOTIFICATION_ENQUEUE_TIMEOUT_MS", this.enqueueTimeoutMillis);
+        this.drainTimeoutMillis = IntuneClient.getLongProperty(configProperties, "NOTIFICATION_DRAIN_TIMEOUT_MS", this.drainTimeoutMillis);
+        if(this.queueSize < 1 || this.workers < 1 || this.maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("'NOTIFICATION_QUEUE_SIZE', 'NOTIFICATION_WORKERS' and 'NOTIFICATION_MAX_ATTEMPTS' must be at least 1.");
+        }
+        
+        List<PendingNotification> replayed = new ArrayList<PendingNotification>();
+        String journalDirectory = configProperties.getProperty("NOTIFICATION_JOURNAL_DIR");
+        if(journalDirectory != null && !journalDirectory.isEmpty())
+        {
+            this.journal = NotificationJournal.open(new File(journalDirectory), 
+                    (int)IntuneClient.getLongProperty(configProperties, "NOTIFICATION_JOURNAL_SEGMENT_SIZE", 16 * 1024 * 1024),
+                    Boolean.parseBoolean(configProperties.getProperty("NOTIFICATION_JOURNAL_FSYNC", "false")));
+            for(NotificationJournal.Record record : this.journal.getReplayed())
+            {
+                PendingNotification notification = new PendingNotification(record.body, record.success, record.transactionId);
+                notification.journalId = record.id;
+                replayed.add(notification);
+            }
+        }
+        else
+        {
+            this.journal = null;
+        }
+        
+        // Replayed notifications are pending from the start, when there are more than fit the queue new ones wait
+        this.replayedCount = replayed.size();
+        this.capacity = new Semaphore(this.queueSize - this.replayedCount);
+        this.queue.addAll(replayed);
+        
+        this.executor = Executors.newFixedThreadPool(this.workers, 
+                ThreadFactories.create("intune-notification-", ThreadFactories.isVirtualThreadsEnabled(configProperties)));
+        for(int i = 0; i < this.workers; i++)
+        {
+            this.executor.execute(new Runnable() {
+                @Override
+                public void run()
+                {
+                    Work();
+                }});
+        }
+    }
+    
+    /**
+     * Queues a Success notification to the SCEP Service.
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param certThumbprint Thumbprint of the certificate issued.
+     * @param certSerialNumber Serial number of the certificate issued.
+     * @param certExpirationDate The date time string should be formated as web UTC time (YYYY-MM-DDThh:mm:ss.sssTZD) ISO 8601. 
+     * @param certIssuingAuthority Issuing Authority that issued the certificate.
+     * @param caConfiguration CA Configuration that issued the certificate.
+     * @param certificateAuthority Certificate Authority that issued the certificate.
+     * @throws IntuneRequestShedException The queue stayed full for NOTIFICATION_ENQUEUE_TIMEOUT_MS.
+     * @throws IOException The notification could not be written to the journal.
+     * @throws IllegalStateException The dispatcher was closed.
+     */
+    public void SendSuccessNotification(String transactionId, String certificateRequest, String certThumbprint, String certSerialNumber, String certExpirationDate, String certIssuingAuthority, String caConfiguration, String certificateAuthority) throws IntuneRequestShedException, InterruptedException, IOException, IllegalArgumentException
+    {
+        byte[] requestBody = this.client.CreateSuccessNotification(transactionId, certificateRequest, certThumbprint, certSerialNumber, certExpirationDate, certIssuingAuthority, caConfiguration, certificateAuthority).toByteArray();
+        Enqueue(new PendingNotification(requestBody, true, transactionId));
+    }
+    
+    /**
+     * Queues a Failure notification to the SCEP service. 
+     * 
+     * @param transactionId The transactionId of the CSR
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     * @param hResult 32-bit error code formulated using the instructions specified in https://msdn.microsoft.com/en-us/library/cc231198.aspx. 
+     * @param errorDescription Description of what error occurred. Max length = 255 chars
+     * @throws IntuneRequestShedException The queue stayed full for NOTIFICATION_ENQUEUE_TIMEOUT_MS.
+     * @throws IOException The notification could not be written to the journal.
+     * @throws IllegalStateException The dispatcher was closed.
+     */
+    public void SendFailureNotification(String transactionId, String certificateRequest, long hResult, String errorDescription) throws IntuneRequestShedException, InterruptedException, IOException, IllegalArgumentException
+    {
+        byte[] requestBody = this.client.CreateFailureNotification(transactionId, certificateRequest, hResult, errorDescription).toByteArray();
+        Enqueue(new PendingNotification(requestBody, false, transactionId));
+    }
+    
+    /**
+     * The number of notifications that are waiting to be sent, including notifications waiting for a retry.
+     */
+    public int getQueueDepth()
+    {
+        return this.queue.size();
+    }
+    
+    /**
+     * The number of notifications accepted that have not been sent or dropped yet.
+     */
+    public int getPendingCount()
+    {
+        return this.queueSize - this.capacity.availablePermits();
+    }
+    
+    /**
+     * The time in milliseconds the oldest notification waiting to be sent has been queued, 0 if the queue is empty.
+     */
+    public long getOldestAgeMillis()
+    {
+        long now = System.nanoTime();
+        long oldest = 0;
+        for(PendingNotification notification : this.queue)
+        {
+            oldest = Math.max(oldest, now - notification.acceptedNanos);
+        }
+        return TimeUnit.NANOSECONDS.toMillis(oldest);
+    }
+    
+    /**
+     * The maximum number of notifications that can be pending.
+     */
+    public int getQueueSize()
+    {
+        return this.queueSize;
+    }
+    
+    public long getAcceptedCount()
+    {
+        return this.acceptedCount.get();
+    }
+    
+    public long getSentCount()
+    {
+        return this.sentCount.get();
+    }
+    
+    public long getRetriedCount()
+    {
+        return this.retriedCount.get();
+    }
+    
+    /**
+     * The number of notifications dropped because they failed on every attempt or could not be retried.
+     */
+    public long getFailedCount()
+    {
+        return this.failedCount.get();
+    }
+    
+    /**
+     * The number of notifications read from the journal when the dispatcher was created.
+     */
+    public int getReplayedCount()
+    {
+        return this.replayedCount;
+    }
+    
+    /**
+     * The number of notifications rejected because the queue was full.
+     */
+    public long getRejectedCount()
+    {
+        return this.rejectedCount.get();
+    }
+    
+    /**
+     * Stops accepting notifications and waits up to NOTIFICATION_DRAIN_TIMEOUT_MS for the pending notifications to 
+     * be sent.  Notifications still pending after that are dropped, or kept in the journal if there is one.
+     */
+    @Override
+    public void close()
+    {
+        if(this.closed)
+        {
+            return;
+        }
+        this.closed = true;
+        
+        try
+        {
+            // All permits are free once every pending notification was sent or dropped
+            if(this.capacity.tryAcquire(this.queueSize, this.drainTimeoutMillis, TimeUnit.MILLISECONDS))
+            {
+                this.capacity.release(this.queueSize);
+            }
+            else
+            {
+                log.warn("Dropping {} notifications that were not sent within {}ms of closing.", getPendingCount(), this.drainTimeoutMillis);
+            }
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            this.stopped = true;
+            this.executor.shutdownNow();
+            CloseJournal();
+        }
+    }
+    
+    private void CloseJournal()
+    {
+        if(this.journal == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            this.executor.awaitTermination(this.drainTimeoutMillis, TimeUnit.MILLISECONDS);
+            this.journal.close();
+        }
+        catch(InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch(IOException e)
+        {
+            log.error("Failed to close the notification journal.", e);
+        }
+    }
+    
+    private void Enqueue(PendingNotification notification) throws IntuneRequestShedException, InterruptedException, IOException
+    {
+        if(this.closed)
+        {
+            throw new IllegalStateException("The notification dispatcher is closed.");
+        }
+        
+        if(!this.capacity.tryAcquire(this.enqueueTimeoutMillis, TimeUnit.MILLISECONDS))
+        {
+            this.rejectedCount.incrementAndGet();
+            throw new IntuneRequestShedException(OperationClass.Notification, IntuneRequestShedException.Reason.QueueFull);
+        }
+        
+        if(this.journal != null)
+        {
+            try
+            {
+                notification.journalId = this.journal.append(notification.success, notification.transactionId, notification.requestBody);
+            }
+            catch(IOException e)
+            {
+                this.capacity.release();
+                throw e;
+            }
+        }
+        
+        this.acceptedCount.incrementAndGet();
+        this.queue.add(notification);
+    }
+    
+    private void Work()
+    {
+        while(!this.stopped)
+        {
+            PendingNotification notification;
+            try
+            {
+                notification = this.queue.take();
+            }
+            catch(InterruptedException e)
+            {
+                return;
+            }
+            
+            Dispatch(notification);
+        }
+    }
+    
+    private void Dispatch(PendingNotification notification)
+    {
+        notification.attempts++;
+        try
+        {
+            this.client.SendNotification(notification.requestBody, notification.success, notification.transactionId);
+            this.sentCount.incrementAndGet();
+            Acknowledge(notification);
+            this.capacity.release();
+            return;
+        }
+        catch(Exception e)
+        {
+            boolean retryable = IsRetryable(e);
+            if(retryable && notification.attempts < this.maxAttempts && !this.stopped)
+            {
+                long backoff = this.retryDelayMillis << Math.min(notification.attempts - 1, 20);
+                long delay = Math.min(this.retryMaxDelayMillis, backoff);
+                delay = delay / 2 + (long)(ThreadLocalRandom.current().nextDouble() * delay / 2);
+                
+                log.warn("Notification for transaction {} failed on attempt {} with {}, retrying in {}ms.", notification.transactionId, notification.attempts, IntuneClient.DescribeFailure(e), delay);
+                notification.readyAtNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+                this.retriedCount.incrementAndGet();
+                this.queue.add(notification);
+                return;
+            }
+            
+            this.failedCount.incrementAndGet();
+            if(retryable && this.journal != null)
+            {
+                // Intune never answered, keep the notification in the journal so that it is sent after a restart
+                log.error("Notification for transaction {} failed after {} attempts with {}, it stays in the journal.", notification.transactionId, notification.attempts, IntuneClient.DescribeFailure(e));
+            }
+            else
+            {
+                log.error("Dropping notification for transaction {} after {} attempts with {}.", notification.transactionId, notification.attempts, IntuneClient.DescribeFailure(e));
+                Acknowledge(notification);
+            }
+            log.debug("Notification for transaction {} failed", notification.transactionId, e);
+            this.capacity.release();
+        }
+    }
+    
+    /**
+     * Whether a notification that failed can succeed when it is sent again.  Sending it again after an answer of the 
+     * service, such as an error code or a 400 or 403 status, gives the same answer.
+     */
+    private boolean IsRetryable(Exception e)
+    {
+        // Turned away by this client or failed to get a token, the notification did not reach Intune
+        if(e instanceof IntuneCircuitOpenException ||
+           e instanceof IntuneRequestShedException ||
+           e instanceof IntuneConcurrencyLimitException ||
+           e instanceof IntuneRateLimitException ||
+           e instanceof ServiceUnavailableException)
+        {
+            return true;
+        }
+        
+        return this.client.retryPolicy.isTransient(e);
+    }
+    
+    private void Acknowledge(PendingNotification notification)
+    {
+        if(this.journal == null)
+        {
+            return;
+        }
+        
+        try
+        {
+            this.journal.acknowledge(notification.journalId);
+        }
+        catch(IOException e)
+        {
+            // The notification is sent again after a restart
+            log.error("Failed to acknowledge notification for transaction {} in the journal.", notification.transactionId, e);
+        }
+    }
+    
+    /**
+     * A notification waiting in the queue, it becomes available to the workers once its retry delay has passed.
+     */
+    private static class PendingNotification implements Delayed
+    {
+        private static final AtomicLong nextSequence = new AtomicLong();
+        
+        final byte[] requestBody;
+        final boolean success;
+        final String transactionId;
+        final long acceptedNanos;
+        final long sequence = nextSequence.incrementAndGet();
+        volatile long readyAtNanos;
+        long journalId = -1;
+        int attempts = 0;
+        
+        PendingNotification(byte[] requestBody, boolean success, String transactionId)
+        {
+            this.requestBody = requestBody;
+            this.success = success;
+            this.transactionId = transactionId;
+            this.acceptedNanos = System.nanoTime();
+            this.readyAtNanos = this.acceptedNanos;
+        }
+        
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(this.readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        
+        @Override
+        public int compareTo(Delayed other)
+        {
+            // Notifications that are ready at the same time are sent in the order they were accepted
+            PendingNotification notification = (PendingNotification)other;
+            long diff = this.readyAtNanos - notification.readyAtNanos;
+            if(diff == 0)
+            {
+                diff = this.sequence - notification.sequence;
+            }
+            return diff < 0 ? -1 : diff > 0 ? 1 : 0;
+        }
+    }
+}
@@ -0,0 +1,599 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of notifications that have not been acknowledged yet, stored in memory-mapped segment files.
+ * 
+ * Every record carries a CRC32 so that a record torn by a crash is detected on replay.  Acknowledgements are 
+ * appended as records of their own, usually to a later segment than the notification they refer to.  A segment is 
+ * deleted once it is no longer written to, every notification in it was acknowledged and every segment before it was 
+ * deleted, so that the acknowledgements it holds are never needed again.  When the journal is opened the notifications that were not acknowledged are returned in 
+ * the order they were appended and rewritten to a new segment, so old segments never have to be read twice.
+ * 
+ * Appends are written to the page cache and survive a restart of the process.  To also survive a crash of the 
+ * operating system the journal can force every append to disk, appends that arrive while a force is running are 
+ * committed together by the next one.
+ */
+class NotificationJournal implements Closeable
+{
+    private static final int MAGIC = 0x494E4A31; // INJ1
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final byte NOTIFICATION_RECORD = 1;
+    private static final byte ACK_RECORD = 2;
+    private static final String SEGMENT_PREFIX = "notifications-";
+    private static final String SEGMENT_SUFFIX = ".journal";
+    
+    private static final Logger log = LoggerFactory.getLogger(NotificationJournal.class);
+    
+    private final File directory;
+    private final int segmentSize;
+    private final boolean fsync;
+    
+    // Appends and acknowledgements hold the lock, forcing to disk holds the sync lock so that appends can continue
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock syncLock = new ReentrantLock();
+    private final Map<Long,Segment> owners = new HashMap<Long,Segment>();
+    private final List<Segment> segments = new ArrayList<Segment>();
+    private final CRC32 crc = new CRC32();
+    private Segment current = null;
+    private long nextSequence = 0;
+    private long nextId = 1;
+    private volatile long syncedId = 0;
+    private List<Record> replayed = Collections.emptyList();
+    private boolean closed = false;
+    
+    private NotificationJournal(File directory, int segmentSize, boolean fsync)
+    {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.fsync = fsync;
+    }
+    
+    /**
+     * Opens the journal in a directory and replays the notifications that were not acknowledged.
+     * @param directory The directory of the segment files, it is created if it does not exist.
+     * @param segmentSize The size of a segment file in bytes.
+     * @param fsync Whether every append is forced to disk before it returns.
+     * @throws IOException
+     */
+    static NotificationJournal open(File directory, int segmentSize, boolean fsync) throws IOException
+    {
+        if(segmentSize < 4096)
+        {
+            throw new IllegalArgumentException("The journal segment size must be at least 4096 bytes.");
+        }
+        
+        if(!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Could not create the notification journal directory '" + directory + "'");
+        }
+        
+        NotificationJournal journal = new NotificationJournal(directory, segmentSize, fsync);
+        File[] files = journal.ListSegments();
+        
+        // Later records win, an acknowledgement removes the notification it refers to
+        Map<Long,Record> pending = new LinkedHashMap<Long,Record>();
+        for(File file : files)
+        {
+            journal.nextSequence = Math.max(journal.nextSequence, ParseSequence(file) + 1);
+            journal.nextId = Math.max(journal.nextId, ReadSegment(file, pending) + 1);
+        }
+        
+        // Rewrite what is left so that the old segments can be deleted
+        journal.lock.lock();
+        try
+        {
+            for(Record record : pending.values())
+            {
+                journal.Append(record.id, record.success, record.transactionId, record.body);
+            }
+            if(journal.current != null)
+            {
+                journal.current.buffer.force();
+            }
+        }
+        finally
+        {
+            journal.lock.unlock();
+        }
+        
+        for(File file : files)
+        {
+            if(!file.delete())
+            {
+                log.warn("Could not delete replayed journal segment '" + file + "'");
+            }
+        }
+        
+        journal.replayed = Collections.unmodifiableList(new ArrayList<Record>(pending.values()));
+        if(!journal.replayed.isEmpty())
+        {
+            log.info("Replayed " + journal.replayed.size() + " unacknowledged notifications from '" + directory + "'");
+        }
+        return journal;
+    }
+    
+    /**
+     * The notifications that were not acknowledged when the journal was opened, in the order they were appended.
+     */
+    List<Record> getReplayed()
+    {
+        return this.replayed;
+    }
+    
+    /**
+     * Appends a notification.
+     * @return The id used to acknowledge the notification.
+     * @throws IOException
+     */
+    long append(boolean success, String transactionId, byte[] body) throws IOException
+    {
+        long id;
+        this.lock.lock();
+        try
+        {
+            id = this.nextId++;
+            Append(id, success, transactionId, body);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        
+        if(this.fsync)
+        {
+            Sync(id);
+        }
+        return id;
+    }
+    
+    /**
+     * Records that a notification no longer has to be sent.  Acknowledgements are not forced to disk, a lost 
+     * acknowledgement causes the notification to be sent again after a restart.
+     * @param id The id returned by append.
+     * @throws IOException
+     */
+    void acknowledge(long id) throws IOException
+    {
+        this.lock.lock();
+        try
+        {
+            Segment owner = this.owners.remove(id);
+            if(owner == null)
+            {
+                return;
+            }
+            
+            Write(ACK_RECORD, id, null, null, null);
+            owner.pending--;
+            if(owner.pending == 0)
+            {
+                Compact();
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * The number of segment files in use.
+     */
+    int getSegmentCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.segments.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * The number of notifications appended and not acknowledged yet.
+     */
+    int getPendingCount()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.owners.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    @Override
+    public void close() throws IOException
+    {
+        this.lock.lock();
+        try
+        {
+            if(this.closed)
+            {
+                return;
+            }
+            this.closed = true;
+            
+            for(Segment segment : this.segments)
+            {
+                segment.buffer.force();
+                segment.channel.close();
+            }
+            this.segments.clear();
+            this.current = null;
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    private void Append(long id, boolean success, String transactionId, byte[] body) throws IOException
+    {
+        Segment segment = Write(NOTIFICATION_RECORD, id, success, transactionId.getBytes(StandardCharsets.UTF_8), body);
+        segment.pending++;
+        this.owners.put(id, segment);
+    }
+    
+    /**
+     * Writes a record to the current segment, starting a new segment when it does not fit.  Must hold the lock.
+     */
+    private Segment Write(byte type, long id, Boolean success, byte[] transactionId, byte[] body) throws IOException
+    {
+        if(this.closed)
+        {
+            throw new IOException("The notification journal is closed.");
+        }
+        
+        int length = 1 + 8 + (type == NOTIFICATION_RECORD ? 1 + 2 + transactionId.length + body.length : 0);
+        if(length + RECORD_HEADER_SIZE > this.segmentSize - HEADER_SIZE)
+        {
+            throw new IOException("The notification of " + length + " bytes does not fit into a journal segment of " + this.segmentSize + " bytes.");
+        }
+        
+        if(this.current == null || this.current.buffer.remaining() < length + RECORD_HEADER_SIZE)
+        {
+            Roll();
+        }
+        
+        MappedByteBuffer buffer = this.current.buffer;
+        int start = buffer.position();
+        int payloadStart = start + RECORD_HEADER_SIZE;
+        
+        // The length is written last so that a reader never sees a partially written record as complete
+        ((Buffer)buffer).position(payloadStart);
+        buffer.put(type).putLong(id);
+        if(type == NOTIFICATION_RECORD)
+        {
+            buffer.put((byte)(success ? 1 : 0)).putShort((short)transactionId.length).put(transactionId).put(body);
+        }
+        
+        ByteBuffer payload = buffer.duplicate();
+        ((Buffer)payload).position(payloadStart);
+        ((Buffer)payload).limit(payloadStart + length);
+        this.crc.reset();
+        this.crc.update(payload);
+        buffer.putInt(start + 4, (int)this.crc.getValue());
+        buffer.putInt(start, length);
+        
+        return this.current;
+    }
+    
+    /**
+     * Starts a new segment.  Must hold the lock.
+     */
+    private void Roll() throws IOException
+    {
+        Segment previous = this.current;
+        if(previous != null && this.fsync)
+        {
+            previous.buffer.force();
+        }
+        
+        File file = new File(this.directory, String.format("%s%016d%s", SEGMENT_PREFIX, this.nextSequence++, SEGMENT_SUFFIX));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FileChannel channel = raf.getChannel();
+        MappedByteBuffer buffer;
+        try
+        {
+            raf.setLength(this.segmentSize);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, this.segmentSize);
+        }
+        catch(IOException e)
+        {
+            channel.close();
+            throw e;
+        }
+        buffer.putInt(0, MAGIC);
+        ((Buffer)buffer).position(HEADER_SIZE);
+        
+        this.current = new Segment(file, channel, buffer);
+        this.segments.add(this.current);
+        
+        if(previous != null && previous.pending == 0)
+        {
+            Compact();
+        }
+    }
+    
+    /**
+     * Removes the oldest segments as long as all of their notifications were acknowledged.  Must hold the lock.
+     * 
+     * A segment also holds the acknowledgements of notifications in older segments, so it is only removed once those 
+     * segments are gone.  Removing it earlier would bring the acknowledged notifications back on the next open.
+     */
+    private void Compact() throws IOException
+    {
+        while(!this.segments.isEmpty())
+        {
+            Segment oldest = this.segments.get(0);
+            if(oldest == this.current || oldest.pending > 0)
+            {
+                return;
+            }
+            Compact(oldest);
+        }
+    }
+    
+    /**
+     * Removes a segment whose notifications were all acknowledged.  Must hold the lock.
+     */
+    private void Compact(Segment segment) throws IOException
+    {
+        // Clearing the header first means the segment is skipped on replay even if the file can not be deleted yet,
+        // a mapped file can not be deleted on Windows until the mapping is garbage collected
+        segment.buffer.putInt(0, 0);
+        if(this.fsync)
+        {
+            segment.buffer.force();
+        }
+        segment.channel.close();
+        this.segments.remove(segment);
+        if(!segment.file.delete())
+        {
+            log.debug("Journal segment '" + segment.file + "' will be deleted when the journal is opened again.");
+        }
+    }
+    
+    /**
+     * Forces the journal to disk up to at least the given record, committing all records appended so far.
+     */
+    private void Sync(long id) throws IOException
+    {
+        if(this.syncedId >= id)
+        {
+            return;
+        }
+        
+        this.syncLock.lock();
+        try
+        {
+            if(this.syncedId >= id)
+            {
+                return;
+            }
+            
+            long target;
+            MappedByteBuffer buffer;
+            this.lock.lock();
+            try
+            {
+                if(this.current == null)
+                {
+                    throw new IOException("The notification journal is closed.");
+                }
+                
+                // Segments before the current one were forced when the journal rolled over
+                target = this.nextId - 1;
+                buffer = this.current.buffer;
+            }
+            finally
+            {
+                this.lock.unlock();
+            }
+            
+            buffer.force();
+            this.syncedId = target;
+        }
+        finally
+        {
+            this.syncLock.unlock();
+        }
+    }
+    
+    private File[] ListSegments()
+    {
+        File[] files = this.directory.listFiles();
+        List<File> result = new ArrayList<File>();
+        if(files != null)
+        {
+            for(File file : files)
+            {
+                if(file.isFile() && file.getName().startsWith(SEGMENT_PREFIX) && file.getName().endsWith(SEGMENT_SUFFIX) && ParseSequence(file) >= 0)
+                {
+                    result.add(file);
+                }
+            }
+        }
+        
+        File[] sorted = result.toArray(new File[result.size()]);
+        Arrays.sort(sorted);
+        return sorted;
+    }
+    
+    private static long ParseSequence(File file)
+    {
+        String name = file.getName();
+        try
+        {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        catch(NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+    
+    /**
+     * Reads the records of a segment into the pending notifications.
+     * @return The highest id found.
+     */
+    private static long ReadSegment(File file, Map<Long,Record> pending) throws IOException
+    {
+        long maxId = 0;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            // Read instead of mapped so that the file can be deleted right away
+            ByteBuffer buffer = ByteBuffer.allocate((int)Math.min(Integer.MAX_VALUE, raf.length()));
+            FileChannel channel = raf.getChannel();
+            while(buffer.hasRemaining() && channel.read(buffer) >= 0)
+            {
+            }
+            ((Buffer)buffer).flip();
+            
+            if(buffer.remaining() < HEADER_SIZE || buffer.getInt(0) != MAGIC)
+            {
+                return maxId;
+            }
+            ((Buffer)buffer).position(HEADER_SIZE);
+            
+            CRC32 crc = new CRC32();
+            while(buffer.remaining() >= RECORD_HEADER_SIZE)
+            {
+                int start = buffer.position();
+                int length = buffer.getInt();
+                int checksum = buffer.getInt();
+                if(length == 0)
+                {
+                    break;
+                }
+                
+                if(length < 9 || length > buffer.remaining())
+                {
+                    log.warn("Journal segment '" + file + "' has an invalid record at offset " + start + ", the rest of the segment is ignored.");
+                    break;
+                }
+                
+                ByteBuffer payload = buffer.slice();
+                ((Buffer)payload).limit(length);
+                crc.reset();
+                crc.update(payload.duplicate());
+                if((int)crc.getValue() != checksum)
+                {
+                    log.warn("Journal segment '" + file + "' has a record with a bad checksum at offset " + start + ", the rest of the segment is ignored.");
+                    break;
+                }
+                
+                byte type = payload.get();
+                long id = payload.getLong();
+                maxId = Math.max(maxId, id);
+                if(type == NOTIFICATION_RECORD)
+                {
+                    boolean success = payload.get() == 1;
+                    byte[] transactionId = new byte[payload.getShort() & 0xFFFF];
+                    payload.get(transactionId);
+                    byte[] body = new byte[payload.remaining()];
+                    payload.get(body);
+                    pending.put(id, new Record(id, success, new String(transactionId, StandardCharsets.UTF_8), body));
+                }
+                else if(type == ACK_RECORD)
+                {
+                    pending.remove(id);
+                }
+                
+                ((Buffer)buffer).position(start + RECORD_HEADER_SIZE + length);
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+        return maxId;
+    }
+    
+    /**
+     * A notification read from the journal.
+     */
+    static class Record
+    {
+        final long id;
+        final boolean success;
+        final String transactionId;
+        final byte[] body;
+        
+        Record(long id, boolean success, String transactionId, byte[] body)
+        {
+            this.id = id;
+            this.success = success;
+            this.transactionId = transactionId;
+            this.body = body;
+        }
+    }
+    
+    private static class Segment
+    {
+        final File file;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int pending = 0;
+        
+        Segment(File file, FileChannel channel, MappedByteBuffer buffer)
+        {
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Budget for extra requests, such as retries, expressed as a percentage of the regular traffic.
+ * 
+ * Every regular request deposits a fraction of a token and every extra request withdraws a whole token, so extra 
+ * requests can never add more than the configured percentage of load.  A small number of extra requests per second 
+ * is always allowed so that clients with little traffic can still recover from a single failure.
+ */
+class RequestBudget
+{
+    private static final long TOKEN = 1000;
+    
+    private final long depositPerRequest;
+    private final long minPerSecond;
+    private final long maxBalance;
+    
+    private long balance = 0;
+    private long windowStart = System.nanoTime();
+    private long windowCount = 0;
+    
+    /**
+     * Creates a budget.
+     * @param percent Extra requests allowed as a percentage of regular requests.
+     * @param minPerSecond Extra requests allowed each second regardless of traffic.
+     * @throws IllegalArgumentException
+     */
+    RequestBudget(double percent, long minPerSecond) throws IllegalArgumentException
+    {
+        if(percent < 0 || minPerSecond < 0)
+        {
+            throw new IllegalArgumentException("The request budget can not be negative.");
+        }
+        
+        this.depositPerRequest = (long)(percent * TOKEN / 100);
+        this.minPerSecond = minPerSecond;
+        
+        // Do not let a long quiet period build up enough tokens to amplify an outage
+        this.maxBalance = Math.max(10, (long)percent) * TOKEN;
+    }
+    
+    /**
+     * Records a regular request.
+     */
+    synchronized void deposit()
+    {
+        this.balance = Math.min(this.maxBalance, this.balance + this.depositPerRequest);
+    }
+    
+    /**
+     * Takes a token for an extra request.
+     * @return true if the extra request is within the budget.
+     */
+    synchronized boolean tryWithdraw()
+    {
+        long now = System.nanoTime();
+        if(now - this.windowStart >= TimeUnit.SECONDS.toNanos(1))
+        {
+            this.windowStart = now;
+            this.windowCount = 0;
+        }
+        
+        if(this.windowCount < this.minPerSecond)
+        {
+            this.windowCount++;
+            return true;
+        }
+        
+        if(this.balance >= TOKEN)
+        {
+            this.balance -= TOKEN;
+            return true;
+        }
+        
+        return false;
+    }
+}
@@ -0,0 +1,206 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+/**
+ * State of a single call to PostRequest that is shared with the caller, which can use it to cancel the call.
+ */
+class RequestContext
+{
+    private volatile boolean cancelled = false;
+    private volatile HttpUriRequest currentRequest = null;
+    private OperationClass operationClass = OperationClass.Validation;
+    private boolean useAlternateEndpoint = false;
+    private boolean retryEnabled = true;
+    private boolean hasDeadline = false;
+    private long deadlineNanos = 0;
+    
+    /**
+     * Creates the context of a validation call that is sent to the primary endpoint of the service and has no deadline.
+     */
+    RequestContext()
+    {
+    }
+    
+    /**
+     * Creates the context of a call.
+     * @param operationClass The class of the call, which decides the bulkhead it uses.
+     * @param useAlternateEndpoint true to send the call to another endpoint of the service if discovery listed one.
+     * @param deadline Deadline of the call or null if it has none, see {@link #getDeadline(Duration)}.
+     */
+    RequestContext(OperationClass operationClass, boolean useAlternateEndpoint, Long deadline)
+    {
+        this.operationClass = operationClass;
+        this.useAlternateEndpoint = useAlternateEndpoint;
+        if(deadline != null)
+        {
+            this.hasDeadline = true;
+            this.deadlineNanos = deadline;
+        }
+    }
+    
+    /**
+     * Converts the time a caller is willing to wait into a deadline on the {@link System#nanoTime()} clock.
+     * @param timeout The time the caller is willing to wait or null to wait forever.
+     * @return The deadline or null if there is none.
+     */
+    static Long getDeadline(Duration timeout) throws IllegalArgumentException
+    {
+        if(timeout == null)
+        {
+            return null;
+        }
+        
+        if(timeout.isNegative() || timeout.isZero())
+        {
+            throw new IllegalArgumentException("The argument 'deadline' must be positive");
+        }
+        
+        return System.nanoTime() + timeout.toNanos();
+    }
+    
+    /**
+     * Whether the call has a deadline.
+     */
+    boolean hasDeadline()
+    {
+        return this.hasDeadline;
+    }
+    
+    /**
+     * The deadline on the {@link System#nanoTime()} clock, or null when the call has no deadline.
+     */
+    Long getDeadlineNanos()
+    {
+        return this.hasDeadline ? this.deadlineNanos : null;
+    }
+    
+    /**
+     * Whether the deadline of the call has passed.
+     */
+    boolean isExpired()
+    {
+        return this.hasDeadline && this.deadlineNanos - System.nanoTime() <= 0;
+    }
+    
+    /**
+     * Returns the time a phase of the call may take.
+     * @param timeoutMillis The timeout configured for the phase.
+     * @return The smaller of the phase timeout and the time left until the deadline.  It is never 0 when there is a 
+     * deadline because 0 means no timeout, callers check {@link #isExpired()} first.
+     */
+    long getRemainingMillis(long timeoutMillis)
+    {
+        if(!this.hasDeadline)
+        {
+            return timeoutMillis;
+        }
+        
+        long remaining = TimeUnit.NANOSECONDS.toMillis(this.deadlineNanos - System.nanoTime());
+        return Math.max(1, timeoutMillis > 0 ? Math.min(timeoutMillis, remaining) : remaining);
+    }
+    
+    /**
+     * Throws if the deadline of the call has passed.
+     * @param phase The phase about to start.
+     */
+    void checkDeadline(IntuneTimeoutException.Phase phase) throws IntuneTimeoutException
+    {
+        if(isExpired())
+        {
+            throw new IntuneTimeoutException(phase, true, null);
+        }
+    }
+    
+    /**
+     * The class of the call.
+     */
+    OperationClass getOperationClass()
+    {
+        return this.operationClass;
+    }
+    
+    /**
+     * Whether the call should go to another endpoint than the primary one.
+     */
+    boolean useAlternateEndpoint()
+    {
+        return this.useAlternateEndpoint;
+    }
+    
+    /**
+     * Whether a failed attempt may be retried by the client.
+     */
+    boolean isRetryEnabled()
+    {
+        return this.retryEnabled;
+    }
+    
+    /**
+     * Sends the call only once, for callers that retry on their own.
+     */
+    void disableRetries()
+    {
+        this.retryEnabled = false;
+    }
+    
+    /**
+     * Whether the call has been cancelled, no further attempts should be made.
+     */
+    boolean isCancelled()
+    {
+        return this.cancelled;
+    }
+    
+    /**
+     * Cancels the call and aborts the HTTP request that is in flight.
+     */
+    void cancel()
+    {
+        this.cancelled = true;
+        HttpUriRequest request = this.currentRequest;
+        if(request != null)
+        {
+            request.abort();
+        }
+    }
+    
+    /**
+     * Records the HTTP request of the current attempt so that it can be aborted.
+     * @param request The request about to be sent.
+     */
+    void setCurrentRequest(HttpUriRequest request)
+    {
+        this.currentRequest = request;
+        if(this.cancelled)
+        {
+            request.abort();
+        }
+    }
+}
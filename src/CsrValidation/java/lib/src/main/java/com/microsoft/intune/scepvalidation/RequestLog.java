@@ -0,0 +1,121 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.MDC;
+
+/**
+ * Logs the completion of requests to Intune.  Serializing the full response is sampled with LOG_PAYLOAD_SAMPLE_RATE 
+ * and, when LOG_STRUCTURED_ENABLED is set, the fields of the activity are put into the MDC so that a structured 
+ * layout can emit them instead of parsing the message.  Nothing is formatted when INFO is disabled.
+ */
+final class RequestLog
+{
+    static final String MDC_ACTIVITY_ID = "activityId";
+    static final String MDC_TRANSACTION_ID = "transactionId";
+    static final String MDC_LATENCY = "latency";
+    static final String MDC_CODE = "code";
+    
+    private final boolean structured;
+    private final double payloadSampleRate;
+    
+    RequestLog(boolean structured, double payloadSampleRate)
+    {
+        this.structured = structured;
+        this.payloadSampleRate = payloadSampleRate;
+    }
+    
+    static RequestLog create(Properties configProperties)
+    {
+        boolean structured = Boolean.parseBoolean(configProperties.getProperty("LOG_STRUCTURED_ENABLED", "false"));
+        double payloadSampleRate = IntuneClient.getDoubleProperty(configProperties, "LOG_PAYLOAD_SAMPLE_RATE", 1);
+        if(payloadSampleRate < 0 || payloadSampleRate > 1)
+        {
+            throw new IllegalArgumentException("The property 'LOG_PAYLOAD_SAMPLE_RATE' must be between 0 and 1.");
+        }
+        return new RequestLog(structured, payloadSampleRate);
+    }
+    
+    /**
+     * Logs that an activity has completed.
+     * @param startNanos System.nanoTime() when the activity started.
+     * @param code The code the service returned or null if the response has none.
+     * @param result The response, it is only serialized for the sampled share of the calls.
+     */
+    void completed(Logger log, UUID activityId, String transactionId, long startNanos, String code, JSONObject result)
+    {
+        if(!log.isInfoEnabled())
+        {
+            return;
+        }
+        
+        if(!this.structured)
+        {
+            log.info("Activity {} has completed.", activityId);
+            if(isPayloadSampled())
+            {
+                log.info("{}", result);
+            }
+            return;
+        }
+        
+        long latencyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        MDC.put(MDC_ACTIVITY_ID, String.valueOf(activityId));
+        MDC.put(MDC_TRANSACTION_ID, transactionId);
+        MDC.put(MDC_LATENCY, Long.toString(latencyMillis));
+        if(code != null)
+        {
+            MDC.put(MDC_CODE, code);
+        }
+        try
+        {
+            log.info("Activity {} has completed in {}ms.", activityId, latencyMillis);
+            if(isPayloadSampled())
+            {
+                log.info("{}", result);
+            }
+        }
+        finally
+        {
+            MDC.remove(MDC_ACTIVITY_ID);
+            MDC.remove(MDC_TRANSACTION_ID);
+            MDC.remove(MDC_LATENCY);
+            MDC.remove(MDC_CODE);
+        }
+    }
+    
+    private boolean isPayloadSampled()
+    {
+        return this.payloadSampleRate >= 1 || 
+               (this.payloadSampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.payloadSampleRate);
+    }
+}
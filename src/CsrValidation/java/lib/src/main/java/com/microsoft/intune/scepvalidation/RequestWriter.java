@@ -0,0 +1,229 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.ByteArrayEntity;
+
+/**
+ * Writes a JSON request body straight into a byte array.
+ * 
+ * Request bodies have a fixed shape, so the clients keep the constant parts, the property names and punctuation and 
+ * values that do not change such as callerInfo, as pre-encoded fragments and only escape the variable values.  This 
+ * avoids building a JSONObject tree for every call and serializing it through a String.
+ * 
+ * The output is ASCII, characters outside of it are written as unicode escapes so that the body means the same in 
+ * any charset.
+ */
+final class RequestWriter
+{
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] NULL = fragment("null");
+    
+    private byte[] buffer;
+    private int length = 0;
+    private int certificateRequestOffset = -1;
+    
+    /**
+     * Creates a writer.
+     * @param capacity The expected length of the body, the buffer grows when it is exceeded.
+     */
+    RequestWriter(int capacity)
+    {
+        this.buffer = new byte[Math.max(capacity, 16)];
+    }
+    
+    /**
+     * Encodes a constant part of a request body.
+     * @param json JSON text, it must be ASCII.
+     */
+    static byte[] fragment(String json)
+    {
+        return json.getBytes(StandardCharsets.US_ASCII);
+    }
+    
+    /**
+     * Encodes a string value, quoted and escaped, so that it can be written as a fragment.
+     * @param value The value or null for a JSON null.
+     */
+    static byte[] fragmentOf(String value)
+    {
+        RequestWriter writer = new RequestWriter(value == null ? 4 : value.length() + 2);
+        writer.appendString(value);
+        return writer.toByteArray();
+    }
+    
+    /**
+     * Appends a pre-encoded fragment.
+     */
+    RequestWriter append(byte[] fragment)
+    {
+        ensureCapacity(fragment.length);
+        System.arraycopy(fragment, 0, this.buffer, this.length, fragment.length);
+        this.length += fragment.length;
+        return this;
+    }
+    
+    /**
+     * Appends a string value, quoted and escaped.
+     * @param value The value or null for a JSON null.
+     */
+    RequestWriter appendString(String value)
+    {
+        if(value == null)
+        {
+            return append(NULL);
+        }
+        
+        ensureCapacity(value.length() + 2);
+        this.buffer[this.length++] = '"';
+        appendEscaped(value, true);
+        ensureCapacity(1);
+        this.buffer[this.length++] = '"';
+        return this;
+    }
+    
+    /**
+     * Appends a number value.
+     */
+    RequestWriter appendNumber(long value)
+    {
+        String digits = Long.toString(value);
+        ensureCapacity(digits.length());
+        for(int i = 0; i < digits.length(); i++)
+        {
+            this.buffer[this.length++] = (byte)digits.charAt(i);
+        }
+        return this;
+    }
+    
+    /**
+     * Appends JSON text that was serialized by another library, characters outside of ASCII are escaped.
+     */
+    RequestWriter appendJson(String json)
+    {
+        ensureCapacity(json.length());
+        appendEscaped(json, false);
+        return this;
+    }
+    
+    /**
+     * Appends the value of the certificateRequest property, quoted.  
+     * @param certificateRequest Base 64 encoded PKCS10 packet or null to leave a gap that is filled by {@link #toEntity(ByteBuffer)}.
+     */
+    RequestWriter appendCertificateRequest(String certificateRequest)
+    {
+        ensureCapacity(2);
+        this.buffer[this.length++] = '"';
+        if(certificateRequest == null)
+        {
+            this.certificateRequestOffset = this.length;
+        }
+        else
+        {
+            appendEscaped(certificateRequest, true);
+        }
+        ensureCapacity(1);
+        this.buffer[this.length++] = '"';
+        return this;
+    }
+    
+    /**
+     * The body that was written.
+     */
+    byte[] toByteArray()
+    {
+        return Arrays.copyOf(this.buffer, this.length);
+    }
+    
+    /**
+     * The body that was written as a repeatable entity, without copying it.
+     */
+    HttpEntity toEntity()
+    {
+        return new ByteArrayEntity(this.buffer, 0, this.length);
+    }
+    
+    /**
+     * The body that was written as a repeatable entity with a certificate request given as DER bytes in the gap 
+     * left by appendCertificateRequest.
+     * @param certificateRequest DER encoded PKCS10 packet, the bytes between its position and limit are sent.
+     */
+    HttpEntity toEntity(ByteBuffer certificateRequest)
+    {
+        if(this.certificateRequestOffset < 0)
+        {
+            throw new IllegalStateException("The request body has no gap for the certificate request.");
+        }
+        
+        return new CertificateRequestEntity(
+                Arrays.copyOfRange(this.buffer, 0, this.certificateRequestOffset), 
+                certificateRequest, 
+                Arrays.copyOfRange(this.buffer, this.certificateRequestOffset, this.length));
+    }
+    
+    /**
+     * Writes characters, escaping what is not allowed in a JSON string when inString is set and anything outside of ASCII.
+     */
+    private void appendEscaped(String value, boolean inString)
+    {
+        for(int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if(c < 0x7F && (!inString || (c >= 0x20 && c != '"' && c != '\\')))
+            {
+                ensureCapacity(1);
+                this.buffer[this.length++] = (byte)c;
+            }
+            else if(inString && (c == '"' || c == '\\'))
+            {
+                ensureCapacity(2);
+                this.buffer[this.length++] = '\\';
+                this.buffer[this.length++] = (byte)c;
+            }
+            else
+            {
+                ensureCapacity(6);
+                this.buffer[this.length++] = '\\';
+                this.buffer[this.length++] = 'u';
+                this.buffer[this.length++] = HEX[(c >> 12) & 0xF];
+                this.buffer[this.length++] = HEX[(c >> 8) & 0xF];
+                this.buffer[this.length++] = HEX[(c >> 4) & 0xF];
+                this.buffer[this.length++] = HEX[c & 0xF];
+            }
+        }
+    }
+    
+    private void ensureCapacity(int count)
+    {
+        if(this.length + count > this.buffer.length)
+        {
+            this.buffer = Arrays.copyOf(this.buffer, Math.max(2 * this.buffer.length, this.length + count));
+        }
+    }
+}
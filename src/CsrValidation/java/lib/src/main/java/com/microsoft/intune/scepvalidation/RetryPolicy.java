@@ -0,0 +1,233 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.json.JSONObject;
+
+import com.microsoft.intune.carequest.CARequestErrorCodes;
+
+/**
+ * Decides whether a failed request to Intune is retried and how long to wait before retrying it.
+ * 
+ * Requests are retried with exponential backoff and full jitter, or after the delay the service asked for in a 
+ * Retry-After header.  Retries are limited by a budget shared by the clients that share their resources, so that 
+ * retries can not amplify an outage.
+ * 
+ * Validation is idempotent and is retried after any transient failure.  Notifications and revocation results are 
+ * not, they are only retried when the request provably never reached Intune: the connection could not be made or 
+ * the service turned the request away with a Retry-After header.  A request that timed out or lost its connection 
+ * while waiting for the response may already have been processed.
+ */
+class RetryPolicy
+{
+    private final RequestBudget retryBudget;
+    
+    private int maxAttempts = 3;
+    private long baseDelayMillis = 100;
+    private long maxDelayMillis = 5000;
+    private Set<Integer> retryableStatusCodes = new HashSet<Integer>();
+    
+    /**
+     * Creates a retry policy from the client configuration.
+     * @param configProperties Properties object containing client configuration information.
+     * @param retryBudget The budget of retries, created by {@link #createBudget(Properties)}.
+     * @throws IllegalArgumentException
+     */
+    RetryPolicy(Properties configProperties, RequestBudget retryBudget) throws IllegalArgumentException
+    {
+        this.retryBudget = retryBudget;
+        
+        this.maxAttempts = (int)IntuneClient.getLongProperty(configProperties, "RETRY_MAX_ATTEMPTS", this.maxAttempts);
+        if(this.maxAttempts < 1)
+        {
+            throw new IllegalArgumentException("'RETRY_MAX_ATTEMPTS' must be at least 1.");
+        }
+        
+        this.baseDelayMillis = IntuneClient.getLongProperty(configProperties, "RETRY_BASE_DELAY_MS", this.baseDelayMillis);
+        this.maxDelayMillis = IntuneClient.getLongProperty(configProperties, "RETRY_MAX_DELAY_MS", this.maxDelayMillis);
+        
+        String statusCodes = configProperties.getProperty("RETRY_STATUS_CODES", "408,429,500,502,503,504");
+        for(String statusCode : statusCodes.split(","))
+        {
+            if(!statusCode.trim().isEmpty())
+            {
+                try
+                {
+                    this.retryableStatusCodes.add(Integer.parseInt(statusCode.trim()));
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("'RETRY_STATUS_CODES' must be a comma separated list of HTTP status codes.", e);
+                }
+            }
+        }
+    }
+    
+    /**
+     * Creates the budget of retries from the client configuration.
+     * @param configProperties Properties object containing client configuration information.
+     * @throws IllegalArgumentException
+     */
+    static RequestBudget createBudget(Properties configProperties) throws IllegalArgumentException
+    {
+        return new RequestBudget(
+                IntuneClient.getDoubleProperty(configProperties, "RETRY_BUDGET_PERCENT", 10), 
+                IntuneClient.getLongProperty(configProperties, "RETRY_BUDGET_MIN_PER_SECOND", 10));
+    }
+    
+    /**
+     * Records a request that is not a retry, which adds to the retry budget.
+     */
+    void onRequest()
+    {
+        this.retryBudget.deposit();
+    }
+    
+    /**
+     * Gets how long to wait before retrying a failed attempt.
+     * @param attempt The attempt that failed, starting at 1.
+     * @param e The failure of the attempt.
+     * @param operationClass The class of the request, only validation is idempotent.
+     * @return The delay in milliseconds, or -1 if the request should not be retried.
+     */
+    long getRetryDelayMillis(int attempt, Exception e, OperationClass operationClass)
+    {
+        if(attempt >= this.maxAttempts || !isRetryable(e, operationClass))
+        {
+            return -1;
+        }
+        
+        long backoff = this.baseDelayMillis << Math.min(attempt - 1, 20);
+        long delay = (long)(ThreadLocalRandom.current().nextDouble() * Math.min(this.maxDelayMillis, backoff));
+        
+        if(e instanceof IntuneClientHttpErrorException)
+        {
+            Long retryAfter = ((IntuneClientHttpErrorException)e).getRetryAfterMillis();
+            if(retryAfter != null)
+            {
+                if(retryAfter > this.maxDelayMillis)
+                {
+                    // The service will not be ready in a time the caller is willing to wait
+                    return -1;
+                }
+                delay = Math.max(delay, retryAfter);
+            }
+        }
+        
+        if(!this.retryBudget.tryWithdraw())
+        {
+            return -1;
+        }
+        
+        return delay;
+    }
+    
+    /**
+     * Whether a failure is transient and the request can be sent again.
+     * @param e The failure of an attempt.
+     * @param operationClass The class of the request, only validation is idempotent.
+     */
+    boolean isRetryable(Exception e, OperationClass operationClass)
+    {
+        return operationClass == OperationClass.Validation ? isTransient(e) : isNotSent(e);
+    }
+    
+    /**
+     * Whether a failure is a transport failure, a timeout or a status code that is worth trying again, as opposed to an
+     * answer of the service that does not change.
+     * @param e The failure of an attempt.
+     */
+    boolean isTransient(Exception e)
+    {
+        if(e instanceof IntuneClientHttpErrorException)
+        {
+            IntuneClientHttpErrorException httpError = (IntuneClientHttpErrorException)e;
+            if(this.retryableStatusCodes.contains(httpError.getStatusCode()))
+            {
+                return true;
+            }
+            
+            CARequestErrorCodes errorCode = getErrorCode(httpError.getResponse());
+            return errorCode != null && errorCode.isRetryable();
+        }
+        
+        if(e instanceof IntuneTimeoutException)
+        {
+            // Once the deadline of the call has passed another attempt can not finish in time
+            return !((IntuneTimeoutException)e).isDeadlineExceeded();
+        }
+        
+        // UnknownHostException and SSL failures are not transient, the connection was never attempted
+        return e instanceof NoHttpResponseException ||
+               e instanceof ConnectTimeoutException ||
+               e instanceof SocketTimeoutException ||
+               e instanceof SocketException;
+    }
+    
+    /**
+     * Whether a failure proves that the request was not processed by Intune.
+     */
+    private static boolean isNotSent(Exception e)
+    {
+        if(e instanceof IntuneClientHttpErrorException)
+        {
+            // The service asked to come back later instead of processing the request
+            IntuneClientHttpErrorException httpError = (IntuneClientHttpErrorException)e;
+            return (httpError.getStatusCode() == 429 || httpError.getStatusCode() == 503) && httpError.getRetryAfterMillis() != null;
+        }
+        
+        if(e instanceof IntuneTimeoutException)
+        {
+            IntuneTimeoutException timeout = (IntuneTimeoutException)e;
+            return !timeout.isDeadlineExceeded() && 
+                   (timeout.getPhase() == IntuneTimeoutException.Phase.ConnectionLease || timeout.getPhase() == IntuneTimeoutException.Phase.Connect);
+        }
+        
+        // Includes a timeout leasing a connection from the pool and a refused connection
+        return e instanceof ConnectTimeoutException ||
+               e instanceof ConnectException;
+    }
+    
+    private static CARequestErrorCodes getErrorCode(JSONObject response)
+    {
+        if(response == null)
+        {
+            return null;
+        }
+        
+        JSONObject error = response.optJSONObject("error");
+        String code = error != null ? error.optString("code", null) : response.optString("code", null);
+        return CARequestErrorCodes.fromString(code);
+    }
+}
@@ -0,0 +1,88 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+/**
+ * The result of one item of a bulk validation.  It has the outcome if the service answered, or the exception the 
+ * single validation would have thrown if the request could not be validated.
+ * 
+ * IMPORTANT: If the result is not a success the SCEP server should not issue a certificate to the client.
+ */
+public final class ScepValidationResult
+{
+    private final ScepValidationItem item;
+    private final int index;
+    private final ValidationOutcome outcome;
+    private final Exception exception;
+    
+    ScepValidationResult(ScepValidationItem item, int index, ValidationOutcome outcome, Exception exception)
+    {
+        this.item = item;
+        this.index = index;
+        this.outcome = outcome;
+        this.exception = exception;
+    }
+    
+    /**
+     * The item this is the result of.
+     */
+    public ScepValidationItem getItem()
+    {
+        return this.item;
+    }
+    
+    /**
+     * The position of the item in the collection that was validated.
+     */
+    public int getIndex()
+    {
+        return this.index;
+    }
+    
+    /**
+     * True if the request passed validation.
+     */
+    public boolean isSuccess()
+    {
+        return this.outcome != null && this.outcome.isSuccess();
+    }
+    
+    /**
+     * The answer of the validation, null if the request could not be validated.
+     */
+    public ValidationOutcome getOutcome()
+    {
+        return this.outcome;
+    }
+    
+    /**
+     * Why the request could not be validated, for example an IntuneTimeoutException or an IllegalArgumentException 
+     * for an item with a missing value.  Null if there is an outcome.
+     */
+    public Exception getException()
+    {
+        return this.exception;
+    }
+}
@@ -0,0 +1,108 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Creates the threads of the executors owned by the clients.
+ * 
+ * When VIRTUAL_THREADS_ENABLED is set and the JVM supports virtual threads the executors start a virtual thread for 
+ * every task, so that token acquisition, service discovery and HTTP calls that block do not hold a platform thread.  
+ * Virtual threads are not pooled, the number of calls in flight is limited by the permits of the bulkheads and 
+ * limiters instead of the size of a pool.  Otherwise the executors use pools of daemon platform threads.
+ */
+final class ThreadFactories
+{
+    private static final Logger log = LoggerFactory.getLogger(ThreadFactories.class);
+    private static final AtomicBoolean warnedUnsupported = new AtomicBoolean();
+    
+    private ThreadFactories()
+    {
+    }
+    
+    /**
+     * Whether the executors of a client should use virtual threads.
+     * @param configProperties Properties object containing client configuration information.
+     */
+    static boolean isVirtualThreadsEnabled(Properties configProperties)
+    {
+        if(!Boolean.parseBoolean(configProperties.getProperty("VIRTUAL_THREADS_ENABLED", "false")))
+        {
+            return false;
+        }
+        
+        if(!VirtualThreads.isSupported())
+        {
+            if(warnedUnsupported.compareAndSet(false, true))
+            {
+                log.warn("'VIRTUAL_THREADS_ENABLED' is set but the JVM does not support virtual threads, using platform threads.");
+            }
+            return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Creates a thread factory.
+     * @param namePrefix The name of the threads, followed by a counter.
+     * @param virtualThreads Whether to create virtual threads, see {@link #isVirtualThreadsEnabled(Properties)}.
+     */
+    static ThreadFactory create(final String namePrefix, boolean virtualThreads)
+    {
+        if(virtualThreads)
+        {
+            return VirtualThreads.newThreadFactory(namePrefix);
+        }
+        
+        return new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, namePrefix + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+    
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     * @param namePrefix The name of the threads, followed by a counter.
+     * @throws UnsupportedOperationException The JVM does not support virtual threads, see {@link #isVirtualThreadsEnabled(Properties)}.
+     */
+    static ExecutorService newVirtualThreadPerTaskExecutor(String namePrefix)
+    {
+        return VirtualThreads.newThreadPerTaskExecutor(namePrefix);
+    }
+}
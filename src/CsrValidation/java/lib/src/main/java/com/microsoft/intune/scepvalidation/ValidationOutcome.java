@@ -0,0 +1,138 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import java.util.UUID;
+
+import org.json.JSONObject;
+
+import com.microsoft.intune.scepvalidation.IntuneScepServiceException.ErrorCode;
+
+/**
+ * The answer to a validation, returned by the TryValidateRequest methods instead of throwing an 
+ * IntuneScepServiceException when the request failed validation.
+ * 
+ * IMPORTANT: If the outcome is not a success the SCEP server should not issue a certificate to the client.
+ */
+public final class ValidationOutcome
+{
+    private final ErrorCode parsedErrorCode;
+    private final String errorCode;
+    private final String errorDescription;
+    private final String transactionId;
+    private final UUID activityId;
+    
+    ValidationOutcome(String errorCode, String errorDescription, String transactionId, UUID activityId)
+    {
+        this(IntuneScepServiceException.parseErrorCode(errorCode), errorCode, errorDescription, transactionId, activityId);
+    }
+    
+    private ValidationOutcome(ErrorCode parsedErrorCode, String errorCode, String errorDescription, String transactionId, UUID activityId)
+    {
+        this.parsedErrorCode = parsedErrorCode;
+        this.errorCode = errorCode;
+        this.errorDescription = errorDescription;
+        this.transactionId = transactionId;
+        this.activityId = activityId;
+    }
+    
+    /**
+     * Reads the outcome from a response of the service.  The description of a success is not read.
+     */
+    static ValidationOutcome fromResponse(JSONObject result, String transactionId, UUID activityId)
+    {
+        String code = result.getString("code");
+        if(ErrorCode.lookup(code) == ErrorCode.Success)
+        {
+            return new ValidationOutcome(ErrorCode.Success, code, null, transactionId, activityId);
+        }
+        
+        return new ValidationOutcome(code, result.getString("errorDescription"), transactionId, activityId);
+    }
+    
+    /**
+     * True if the request passed validation.
+     */
+    public boolean isSuccess()
+    {
+        return this.parsedErrorCode == ErrorCode.Success;
+    }
+    
+    /**
+     * The Unique code that describes the reason for the failure parsed from what the server returned.
+     */
+    public ErrorCode getParsedErrorCode()
+    {
+        return this.parsedErrorCode;
+    }
+    
+    /**
+     * The Unique code that describes the reason for the failure as returned from the server.
+     */
+    public String getOriginalErrorCode()
+    {
+        return this.errorCode;
+    }
+    
+    /**
+     * A short description for the error the service returned, null for a success.
+     */
+    public String getErrorDescription()
+    {
+        return this.errorDescription;
+    }
+    
+    /**
+     * The transaction Id used for to correlate all SCEP service parts of the service call.
+     */
+    public String getTransactionId()
+    {
+        return this.transactionId;
+    }
+    
+    /**
+     * The ID that is provided to Intune to correlate all parts of the service call, null if Intune was not called.
+     * A result that was answered from the validation cache has the ID of the call that returned it first.
+     */
+    public UUID getActivityId()
+    {
+        return this.activityId;
+    }
+    
+    /**
+     * Creates the exception the throwing methods report this outcome with.
+     * @param stackless Create the exception without capturing a stack trace.
+     */
+    IntuneScepServiceException toException(boolean stackless)
+    {
+        return new IntuneScepServiceException(this.parsedErrorCode, this.errorCode, this.errorDescription, this.transactionId, this.activityId, !stackless);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return IntuneScepServiceException.formatMessage(this.activityId, this.transactionId, this.errorCode, this.errorDescription);
+    }
+}
@@ -0,0 +1,310 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+package com.microsoft.intune.scepvalidation;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.microsoft.intune.scepvalidation.IntuneScepServiceException.ErrorCode;
+
+/**
+ * Remembers the outcome of recent validations so that a SCEP client that sends the same request again, with the same
+ * transactionId and CSR, is answered without calling Intune.
+ * 
+ * Successful validations are kept for VALIDATION_CACHE_POSITIVE_TTL_MS.  Failures that will not change when the same 
+ * request is sent again, the error codes returned by the service other than Unknown, are kept for 
+ * VALIDATION_CACHE_NEGATIVE_TTL_MS.  Timeouts, transport and HTTP errors are never cached.  When the cache holds 
+ * VALIDATION_CACHE_MAX_ENTRIES results the least recently used one is evicted.
+ */
+public class ValidationResultCache
+{
+    private final int maxEntries;
+    private final long positiveTtlNanos;
+    private final long negativeTtlNanos;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final LinkedHashMap<String,Entry> entries;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+    
+    /**
+     * Creates a cache.
+     * @param maxEntries Number of results the cache holds.
+     * @param positiveTtlMillis Time a successful validation is remembered.
+     * @param negativeTtlMillis Time a failed validation is remembered, 0 to not remember failures.
+     */
+    ValidationResultCache(int maxEntries, long positiveTtlMillis, long negativeTtlMillis)
+    {
+        if(maxEntries < 1 || positiveTtlMillis < 0 || negativeTtlMillis < 0)
+        {
+            throw new IllegalArgumentException("The validation cache must hold at least 1 entry and its TTLs can not be negative.");
+        }
+        
+        this.maxEntries = maxEntries;
+        this.positiveTtlNanos = TimeUnit.MILLISECONDS.toNanos(positiveTtlMillis);
+        this.negativeTtlNanos = TimeUnit.MILLISECONDS.toNanos(negativeTtlMillis);
+        this.entries = new LinkedHashMap<String,Entry>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String,Entry> eldest)
+            {
+                if(size() > ValidationResultCache.this.maxEntries)
+                {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+    
+    /**
+     * Creates the cache from the configuration.
+     * @param configProperties Properties object containing client configuration information.
+     * @return The cache or null if VALIDATION_CACHE_ENABLED is not set.
+     */
+    static ValidationResultCache create(Properties configProperties) throws IllegalArgumentException
+    {
+        if(!Boolean.parseBoolean(configProperties.getProperty("VALIDATION_CACHE_ENABLED", "false")))
+        {
+            return null;
+        }
+        
+        return new ValidationResultCache(
+                (int)IntuneClient.getLongProperty(configProperties, "VALIDATION_CACHE_MAX_ENTRIES", 10000),
+                IntuneClient.getLongProperty(configProperties, "VALIDATION_CACHE_POSITIVE_TTL_MS", 60000),
+                IntuneClient.getLongProperty(configProperties, "VALIDATION_CACHE_NEGATIVE_TTL_MS", 300000));
+    }
+    
+    /**
+     * Gets the key of a validation request, the transactionId and a digest of the CSR so that the CSR is not retained.
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest Base 64 encoded PKCS10 packet
+     */
+    static String getKey(String transactionId, String certificateRequest)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(certificateRequest.getBytes(StandardCharsets.UTF_8));
+        return getKey(transactionId, digest.digest());
+    }
+    
+    /**
+     * Gets the key of a validation request with a certificate request given as DER bytes.  The same certificate 
+     * request given as base 64 has a different key.
+     * @param transactionId The transactionId of the Certificate Request
+     * @param certificateRequest DER encoded PKCS10 packet
+     */
+    static String getKey(String transactionId, ByteBuffer certificateRequest)
+    {
+        MessageDigest digest = newDigest();
+        digest.update(certificateRequest.duplicate());
+        return getKey(transactionId, digest.digest());
+    }
+    
+    private static MessageDigest newDigest()
+    {
+        try
+        {
+            return MessageDigest.getInstance("SHA-256");
+        }
+        catch(NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static String getKey(String transactionId, byte[] digest)
+    {
+        StringBuilder key = new StringBuilder(transactionId.length() + 1 + 2 * digest.length);
+        key.append(transactionId).append(':');
+        for(byte b : digest)
+        {
+            key.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return key.toString();
+    }
+    
+    /**
+     * Looks up the outcome of an earlier validation of the same request.
+     * @param key The key returned by getKey.
+     * @return The outcome of the original validation or null if there is no result for it.
+     */
+    ValidationOutcome get(String key)
+    {
+        Entry entry;
+        this.lock.lock();
+        try
+        {
+            entry = this.entries.get(key);
+            if(entry != null && System.nanoTime() - entry.expiresAtNanos >= 0)
+            {
+                this.entries.remove(key);
+                entry = null;
+            }
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+        
+        if(entry == null)
+        {
+            this.missCount.incrementAndGet();
+            return null;
+        }
+        
+        this.hitCount.incrementAndGet();
+        return entry.outcome;
+    }
+    
+    /**
+     * Remembers the outcome of a validation.
+     * @param key The key returned by getKey.
+     */
+    void put(String key, ValidationOutcome outcome)
+    {
+        long ttlNanos = this.positiveTtlNanos;
+        if(!outcome.isSuccess())
+        {
+            if(outcome.getParsedErrorCode() == ErrorCode.Unknown)
+            {
+                return;
+            }
+            ttlNanos = this.negativeTtlNanos;
+        }
+        
+        if(ttlNanos <= 0)
+        {
+            return;
+        }
+        
+        Entry entry = new Entry(System.nanoTime() + ttlNanos, outcome);
+        this.lock.lock();
+        try
+        {
+            this.entries.put(key, entry);
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * Removes all results.
+     */
+    public void clear()
+    {
+        this.lock.lock();
+        try
+        {
+            this.entries.clear();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * The number of results held, including ones that expired but were not looked up since.
+     */
+    public int getSize()
+    {
+        this.lock.lock();
+        try
+        {
+            return this.entries.size();
+        }
+        finally
+        {
+            this.lock.unlock();
+        }
+    }
+    
+    /**
+     * The maximum number of results held.
+     */
+    public int getMaxEntries()
+    {
+        return this.maxEntries;
+    }
+    
+    /**
+     * The number of validations answered from the cache.
+     */
+    public long getHitCount()
+    {
+        return this.hitCount.get();
+    }
+    
+    /**
+     * The number of validations that had to be sent to Intune.
+     */
+    public long getMissCount()
+    {
+        return this.missCount.get();
+    }
+    
+    /**
+     * The number of results removed to make room for newer ones before they expired.
+     */
+    public long getEvictionCount()
+    {
+        return this.evictionCount.get();
+    }
+    
+    /**
+     * The share of validations answered from the cache, between 0 and 1.
+     */
+    public double getHitRatio()
+    {
+        long hits = this.hitCount.get();
+        long total = hits + this.missCount.get();
+        return total == 0 ? 0 : (double)hits / total;
+    }
+    
+    private static class Entry
+    {
+        final long expiresAtNanos;
+        final ValidationOutcome outcome;
+        
+        Entry(long expiresAtNanos, ValidationOutcome outcome)
+        {
+            this.expiresAtNanos = expiresAtNanos;
+            this.outcome = outcome;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+package com.microsoft.intune.scepvalidation;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates virtual threads on JVMs that support them.
+ * 
+ * This is the version for Java 8 to 20, the jar contains a Java 21 version of this class under 
+ * META-INF/versions/21 that is loaded instead on newer JVMs.
+ */
+final class VirtualThreads
+{
+    private VirtualThreads()
+    {
+    }
+    
+    /**
+     * Whether the JVM running the client supports virtual threads.
+     */
+    static boolean isSupported()
+    {
+        return false;
+    }
+    
+    /**
+     * Creates a factory of virtual threads.
+     * @param namePrefix The name of the threads, followed by a counter.
+     * @throws UnsupportedOperationException The JVM does not support virtual threads.
+     */
+    static ThreadFactory newThreadFactory(String namePrefix)
+    {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+    }
+    
+    /**
+     * Creates an executor that starts a new virtual thread for every task.
+     * @param namePrefix The name of the threads, followed by a counter.
+     * @throws UnsupportedOperationException The JVM does not support virtual threads.
+     */
+    static ExecutorService newThreadPerTaskExecutor(String namePrefix)
+    {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later.");
+    }
+}
@@ -0,0 +1,550 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+import static org.junit.Assert.*;
+
+import com.microsoft.intune.scepvalidation.*;
+
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.naming.ServiceUnavailableException;
+import javax.net.ssl.SSLContext;
+
+import org.apache.http.client.methods.HttpUriRequest;
+import org.mockito.ArgumentMatcher;
+import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Shares one client between many threads that start at the same time to check that it is safe for concurrent use.
+ */
+public class ConcurrencyTests 
+{
+    private static final int THREADS = 32;
+    private static final int CALLS_PER_THREAD = 50;
+    
+    private static final ArgumentMatcher<HttpUriRequest> SERVICE_REQUEST = new ArgumentMatcher<HttpUriRequest>() {
+        @Override
+        public boolean matches(HttpUriRequest resp) {
+            return resp != null && resp.getURI().getHost().equals(Helper.SERVICE_URL);
+        }};
+    
+    private static final ArgumentMatcher<HttpUriRequest> DISCOVERY_REQUEST = new ArgumentMatcher<HttpUriRequest>() {
+        @Override
+        public boolean matches(HttpUriRequest resp) {
+            return resp != null && resp.getURI().getHost().equals(Helper.MSAL_URL);
+        }};
+    
+    @org.junit.Test
+    public void Concurrency_SharedClientDiscoversServiceOnce() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        final AtomicInteger missingUserAgent = new AtomicInteger();
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    if(((HttpUriRequest)invocation.getArgument(0)).getFirstHeader("UserAgent") == null)
+                    {
+                        missingUserAgent.incrementAndGet();
+                    }
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        List<Throwable> failures = RunConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                client.ValidateRequest(UUID.randomUUID().toString(), "test");
+                return null;
+            }});
+        
+        assertEquals(new ArrayList<Throwable>(), failures);
+        assertEquals(0, missingUserAgent.get());
+        verify(helper.httpClient, times(1)).execute(argThat(DISCOVERY_REQUEST));
+        verify(helper.httpClient, times(THREADS * CALLS_PER_THREAD)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Concurrency_ServiceMapStaysConsistentWhileCleared() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "100000");
+        
+        when(helper.msalResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.GOOD_MSAL_SERVICE_DISCOVERY_RESPONSE.getBytes());
+                }});
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        // Every third call can not resolve the host, which clears the service map while other threads read it
+        final AtomicInteger calls = new AtomicInteger();
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    if(calls.incrementAndGet() % 3 == 0)
+                    {
+                        throw new UnknownHostException(Helper.SERVICE_URL);
+                    }
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        List<Throwable> failures = RunConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                try
+                {
+                    client.ValidateRequest(UUID.randomUUID().toString(), "test");
+                }
+                catch(UnknownHostException e)
+                {
+                    // Expected for every third call
+                }
+                return null;
+            }});
+        
+        assertEquals(new ArrayList<Throwable>(), failures);
+        assertEquals(THREADS * CALLS_PER_THREAD, calls.get());
+    }
+    
+    /**
+     * Runs a call CALLS_PER_THREAD times on each of THREADS threads that are released at the same time.
+     * @return The unexpected failures.
+     */
+    @org.junit.Test
+    public void Concurrency_RequestsSucceedOnTransportCreatedBySslSocketFactory() throws IntuneScepServiceException, Exception 
+    {
+        // A real connection pool is needed here, the transport is not mocked
+        final AtomicInteger validations = new AtomicInteger();
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        ExecutorService serverExecutor = Executors.newCachedThreadPool();
+        server.setExecutor(serverExecutor);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                InputStream in = exchange.getRequestBody();
+                while(in.read(new byte[1024]) >= 0)
+                {
+                }
+                
+                String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+                String response;
+                if("GET".equals(exchange.getRequestMethod()))
+                {
+                    response = "{value:[{providerName:" + IntuneScepServiceClient.VALIDATION_SERVICE_NAME + ",uri:'" + url + "scep'}]}";
+                }
+                else
+                {
+                    validations.incrementAndGet();
+                    response = Helper.VALID_SCEP_RESPONSE;
+                }
+                
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }});
+        server.start();
+        
+        try
+        {
+            Helper helper = new Helper();
+            helper.properties.setProperty("MS_GRAPH_RESOURCE_URL", "http://127.0.0.1:" + server.getAddress().getPort() + "/");
+            
+            final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, null);
+            client.SetSslSocketFactory(SSLContext.getDefault().getSocketFactory());
+            
+            // Replace the transport while requests are using it
+            final CountDownLatch done = new CountDownLatch(1);
+            Thread replacer = new Thread(new Runnable() {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        while(!done.await(5, TimeUnit.MILLISECONDS))
+                        {
+                            client.SetSslSocketFactory(SSLContext.getDefault().getSocketFactory());
+                        }
+                    }
+                    catch(Exception e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }});
+            replacer.start();
+            
+            List<Throwable> failures = RunConcurrently(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception
+                {
+                    client.ValidateRequest(UUID.randomUUID().toString(), "test");
+                    return null;
+                }});
+            done.countDown();
+            replacer.join();
+            
+            assertEquals(new ArrayList<Throwable>(), failures);
+            assertEquals(THREADS * CALLS_PER_THREAD, validations.get());
+        }
+        finally
+        {
+            server.stop(0);
+            serverExecutor.shutdownNow();
+        }
+    }
+    
+    private static List<Throwable> RunConcurrently(final Callable<Void> call) throws InterruptedException
+    {
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        for(int i = 0; i < THREADS; i++)
+        {
+            results.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception
+                {
+                    start.await();
+                    for(int j = 0; j < CALLS_PER_THREAD; j++)
+                    {
+                        call.call();
+                    }
+                    return null;
+                }}));
+        }
+        
+        start.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(60, TimeUnit.SECONDS));
+        
+        List<Throwable> failures = new ArrayList<Throwable>();
+        for(Future<Void> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch(ExecutionException e)
+            {
+                failures.add(e.getCause());
+            }
+        }
+        return failures;
+    }
+    
+    @org.junit.Test
+    public void Concurrency_DuplicateValidationsShareOneRequest() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.ERROR_SCEP_RESPONSE.getBytes());
+                }});
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    sending.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        final String transactionId = UUID.randomUUID().toString();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try
+        {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for(int i = 0; i < THREADS; i++)
+            {
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        client.ValidateRequest(transactionId, "test");
+                        return null;
+                    }}));
+                if(i == 0)
+                {
+                    assertTrue(sending.await(10, TimeUnit.SECONDS));
+                }
+            }
+            
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while(client.getCoalescedValidationCount() < THREADS - 1 && System.currentTimeMillis() < waitUntil)
+            {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            
+            for(Future<Void> result : results)
+            {
+                try
+                {
+                    result.get(10, TimeUnit.SECONDS);
+                    fail();
+                }
+                catch(ExecutionException e)
+                {
+                    assertTrue(e.getCause() instanceof IntuneScepServiceException);
+                    assertEquals(IntuneScepServiceException.ErrorCode.ChallengeDecodingError, ((IntuneScepServiceException)e.getCause()).getParsedErrorCode());
+                }
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        assertEquals(THREADS - 1, client.getCoalescedValidationCount());
+        verify(helper.httpClient, times(1)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Concurrency_DuplicateValidationDoesNotHangWhenSharedRequestThrowsError() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger requests = new AtomicInteger();
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.ERROR_SCEP_RESPONSE.getBytes());
+                }});
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    if(requests.incrementAndGet() == 1)
+                    {
+                        sending.countDown();
+                        release.await(10, TimeUnit.SECONDS);
+                        throw new AssertionError("Unexpected failure");
+                    }
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        final String transactionId = UUID.randomUUID().toString();
+        
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try
+        {
+            Callable<Void> validation = new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    client.ValidateRequest(transactionId, "test");
+                    return null;
+                }};
+            Future<Void> first = executor.submit(validation);
+            assertTrue(sending.await(10, TimeUnit.SECONDS));
+            Future<Void> second = executor.submit(validation);
+            
+            long waitUntil = System.currentTimeMillis() + 10000;
+            while(client.getCoalescedValidationCount() < 1 && System.currentTimeMillis() < waitUntil)
+            {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            
+            try
+            {
+                first.get(10, TimeUnit.SECONDS);
+                fail();
+            }
+            catch(ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof AssertionError);
+            }
+            
+            // The waiter sends its own request instead of waiting for the failed one forever
+            try
+            {
+                second.get(10, TimeUnit.SECONDS);
+                fail();
+            }
+            catch(ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof IntuneScepServiceException);
+            }
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        assertEquals(1, client.getCoalescedValidationCount());
+        verify(helper.httpClient, times(2)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Concurrency_BulkValidationBoundsParallelismAndReportsEveryItem() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("BULK_VALIDATION_PARALLELISM", "4");
+        
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    int current = inFlight.incrementAndGet();
+                    int max = maxInFlight.get();
+                    while(current > max && !maxInFlight.compareAndSet(max, current))
+                    {
+                        max = maxInFlight.get();
+                    }
+                    Thread.sleep(5);
+                    inFlight.decrementAndGet();
+                    return helper.intuneResponse;
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        List<ScepValidationItem> items = new ArrayList<ScepValidationItem>();
+        for(int i = 0; i < 40; i++)
+        {
+            items.add(new ScepValidationItem(i == 7 ? null : UUID.randomUUID().toString(), "test"));
+        }
+        
+        List<ScepValidationResult> results = client.ValidateRequests(items, null);
+        
+        assertEquals(items.size(), results.size());
+        for(int i = 0; i < items.size(); i++)
+        {
+            ScepValidationResult result = results.get(i);
+            assertSame(items.get(i), result.getItem());
+            assertEquals(i, result.getIndex());
+            if(i == 7)
+            {
+                assertFalse(result.isSuccess());
+                assertTrue(result.getException() instanceof IllegalArgumentException);
+            }
+            else
+            {
+                assertTrue(result.isSuccess());
+            }
+        }
+        assertTrue(maxInFlight.get() <= 4);
+        verify(helper.httpClient, times(1)).execute(argThat(DISCOVERY_REQUEST));
+        verify(helper.httpClient, times(39)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Concurrency_BulkValidationSucceedsWhenPreparationFails() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        // Only the token acquired while preparing the batch fails
+        when(helper.msal.getAccessToken(ArgumentMatchers.<String>anySet()))
+            .thenThrow(new ServiceUnavailableException("AAD is not reachable"))
+            .thenReturn("accessToken");
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        List<ScepValidationItem> items = new ArrayList<ScepValidationItem>();
+        for(int i = 0; i < 10; i++)
+        {
+            items.add(new ScepValidationItem(UUID.randomUUID().toString(), "test"));
+        }
+        
+        List<ScepValidationResult> results = client.ValidateRequests(items, null);
+        
+        assertEquals(items.size(), results.size());
+        for(ScepValidationResult result : results)
+        {
+            assertTrue(result.isSuccess());
+        }
+        verify(helper.httpClient, times(10)).execute(argThat(SERVICE_REQUEST));
+    }
+}
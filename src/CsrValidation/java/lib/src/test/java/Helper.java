@@ -87,6 +87,14 @@ public class Helper
     public static final String SERVICE_URL = "fef.dmsua01.manage-dogfood.microsoft.com";
     public static final String VALID_SCEP_RESPONSE = "{code:"+IntuneScepServiceException.ErrorCode.Success.name()+",errorDescription:''}";
     public static final String ERROR_SCEP_RESPONSE = "{code:"+IntuneScepServiceException.ErrorCode.ChallengeDecodingError.name()+",errorDescription:''}";
+    // PKCS#10 requests for CN=device with a P-256 key, with and without a challengePassword attribute
+    public static final String CSR_WITH_CHALLENGE = 
+            "MIHnMIGNAgEAMBExDzANBgNVBAMMBmRldmljZTBZMBMGByqGSM49AgEGCCqGSM49AwEHA0IABNq/Lf3erlRolvH6ZW4sPLUpA9Y7NPDllfgfV4pM5RV4kBBC/DDP4Aopv\r\n" +
+            "aXxxZoBpkPxtFnL9f1QvA1/5slCuVagGjAYBgkqhkiG9w0BCQcxCwwJY2hhbGxlbmdlMAoGCCqGSM49BAMCA0kAMEYCIQChdYjc2PYt4qX6Mykx2VFcHesWH+bexnAGC\r\n" +
+            "hgIDU9K9AIhAKlfbw6LO6GWM8UjnQWk+XTOv2jDC6iFjZ/f09JhLQ/Z";
+    public static final String CSR_WITHOUT_CHALLENGE = 
+            "MIHLMHMCAQAwETEPMA0GA1UEAwwGZGV2aWNlMFkwEwYHKoZIzj0CAQYIKoZIzj0DAQcDQgAEik7N7wqvCT3IYmHAxCz3ioEDXYMMe/pPuZDG2t0g1iXyd0/bPbDhIj5xs+9n8" +
+            "w58tv+rD3+femKLYoIY9ngatKAAMAoGCCqGSM49BAMCA0gAMEUCIDzSeDy3Vz3gEyy95lLiMx40NCtB4W/TItHLSaQ1I+hoAiEAuomeBqJPF1TolQtTiktc+voHxD6Y9Ml6yLZtvLerJ7s=";
     
     CloseableHttpClient httpClient = mock(CloseableHttpClient.class);
     HttpClientBuilder httpBuilder = mock(HttpClientBuilder.class);
@@ -189,6 +197,12 @@ public class Helper
             .thenReturn(new ByteArrayInputStream(GOOD_GRAPH_SERVICE_DISCOVERY_RESPONSE.getBytes()));
     }
     
+    public void resetIntuneResponse() throws UnsupportedOperationException, IOException
+    {
+        when(intuneResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream(VALID_SCEP_RESPONSE.getBytes()));
+    }
+    
     public void resetMsalRequest() throws UnsupportedOperationException, IOException
     {
         when(msalResponseEntity.getContent())
@@ -0,0 +1,876 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+import static org.junit.Assert.*;
+
+import com.microsoft.intune.scepvalidation.*;
+
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.message.BasicHeader;
+import org.mockito.ArgumentMatcher;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+public class ResilienceTests 
+{
+    private static final ArgumentMatcher<HttpUriRequest> SERVICE_REQUEST = new ArgumentMatcher<HttpUriRequest>() {
+        @Override
+        public boolean matches(HttpUriRequest resp) {
+            return resp != null && resp.getURI().getHost().equals(Helper.SERVICE_URL);
+        }};
+    
+    @org.junit.Test
+    public void CircuitBreaker_OpensAfterConsecutiveFailures() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "2");
+        
+        when(helper.intuneStatus.getStatusCode())
+            .thenReturn(503);
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        final List<CircuitBreaker.State> transitions = new ArrayList<CircuitBreaker.State>();
+        client.addCircuitBreakerListener(new CircuitBreakerListener() {
+            @Override
+            public void onStateChange(CircuitBreaker circuitBreaker, CircuitBreaker.State from, CircuitBreaker.State to) {
+                transitions.add(to);
+            }});
+        
+        String transactionId = UUID.randomUUID().toString();
+        for(int i = 0; i < 2; i++)
+        {
+            try 
+            {
+                client.ValidateRequest(transactionId, "test");
+                fail();
+            }
+            catch(IntuneClientHttpErrorException e)
+            {
+                assertEquals(503, e.getStatusCode());
+            }
+        }
+        
+        try 
+        {
+            client.ValidateRequest(transactionId, "test");
+            fail();
+        }
+        catch(IntuneCircuitOpenException e)
+        {
+            assertTrue(e.getRetryAfterMillis() > 0);
+        }
+        
+        verify(helper.httpClient, times(2)).execute(argThat(SERVICE_REQUEST));
+        
+        assertEquals(1, transitions.size());
+        assertEquals(CircuitBreaker.State.Open, transitions.get(0));
+        
+        CircuitBreaker circuitBreaker = client.getCircuitBreakers().iterator().next();
+        assertEquals(CircuitBreaker.State.Open, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getFailureCount());
+        assertEquals(1, circuitBreaker.getRejectedCount());
+    }
+    
+    @org.junit.Test
+    public void CircuitBreaker_ClosesAfterSuccessfulTrial() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "1");
+        helper.properties.setProperty("CIRCUIT_BREAKER_OPEN_MS", "0");
+        
+        StatusLine errorStatus = mock(StatusLine.class);
+        when(errorStatus.getStatusCode())
+            .thenReturn(500);
+        when(helper.intuneResponse.getStatusLine())
+            .thenReturn(errorStatus, helper.intuneStatus);
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        String transactionId = UUID.randomUUID().toString();
+        try 
+        {
+            client.ValidateRequest(transactionId, "test");
+            fail();
+        }
+        catch(IntuneClientHttpErrorException e)
+        {
+        }
+        
+        CircuitBreaker circuitBreaker = client.getCircuitBreakers().iterator().next();
+        assertEquals(CircuitBreaker.State.Open, circuitBreaker.getState());
+        
+        helper.resetIntuneResponse();
+        client.ValidateRequest(transactionId, "test");
+        
+        assertEquals(CircuitBreaker.State.Closed, circuitBreaker.getState());
+    }
+    
+    @org.junit.Test
+    public void ConcurrencyLimiter_ShrinksWhenServiceIsThrottling() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "0");
+        helper.properties.setProperty("ADAPTIVE_CONCURRENCY_ENABLED", "true");
+        helper.properties.setProperty("ADAPTIVE_CONCURRENCY_INITIAL_LIMIT", "10");
+        
+        when(helper.intuneStatus.getStatusCode())
+            .thenReturn(503);
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        try 
+        {
+            client.ValidateRequest(UUID.randomUUID().toString(), "test");
+            fail();
+        }
+        catch(IntuneClientHttpErrorException e)
+        {
+        }
+        
+        AdaptiveConcurrencyLimiter limiter = client.getConcurrencyLimiters().iterator().next();
+        assertEquals(9, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+        assertEquals(0, limiter.getRejectedCount());
+    }
+    
+    @org.junit.Test
+    public void Hedge_SentToAlternateEndpointWhenPrimaryIsSlow() throws IntuneScepServiceException, Exception 
+    {
+        final String alternateUrl = "fef.dmsua02.manage-dogfood.microsoft.com";
+        String discoveryResponse = "{"
+                + "value: ["
+                + "{"
+                    + "providerName:" + IntuneScepServiceClient.VALIDATION_SERVICE_NAME + ","
+                    + "uri:'https://" + Helper.SERVICE_URL + "/RACerts/ScepRequestValidationFEService'"
+                + "},"
+                + "{"
+                    + "providerName:" + IntuneScepServiceClient.VALIDATION_SERVICE_NAME + ","
+                    + "uri:'https://" + alternateUrl + "/RACerts/ScepRequestValidationFEService'"
+                + "}"
+            + "]}";
+        
+        Helper helper = new Helper();
+        helper.properties.setProperty("HEDGE_ENABLED", "true");
+        helper.properties.setProperty("HEDGE_INITIAL_DELAY_MS", "50");
+        
+        final List<Thread> primaryThreads = new ArrayList<Thread>();
+        final List<String> activityIds = new ArrayList<String>();
+        when(helper.msalResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream(discoveryResponse.getBytes()));
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    HttpPost request = invocation.getArgument(0);
+                    primaryThreads.add(Thread.currentThread());
+                    activityIds.add(request.getFirstHeader("client-request-id").getValue());
+                    
+                    // Like a connection that is aborted, the request only fails once the hedge cancels it
+                    long waitUntil = System.currentTimeMillis() + 10000;
+                    while(!request.isAborted() && System.currentTimeMillis() < waitUntil)
+                    {
+                        Thread.sleep(10);
+                    }
+                    throw new IOException("Request aborted");
+                }});
+        when(helper.httpClient.execute(argThat(new ArgumentMatcher<HttpUriRequest>() {
+                @Override
+                public boolean matches(HttpUriRequest resp) {
+                    return resp != null && resp.getURI().getHost().equals(alternateUrl);
+                }})))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    activityIds.add(((HttpPost)invocation.getArgument(0)).getFirstHeader("client-request-id").getValue());
+                    return helper.intuneResponse;
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        long start = System.currentTimeMillis();
+        client.ValidateRequest(UUID.randomUUID().toString(), "test");
+        assertTrue(System.currentTimeMillis() - start < 10000);
+        client.close();
+        
+        verify(helper.httpClient, times(1)).execute(argThat(SERVICE_REQUEST));
+        
+        // The first request is sent from the calling thread and the hedge has its own activityId
+        assertEquals(Thread.currentThread(), primaryThreads.get(0));
+        assertEquals(2, activityIds.size());
+        assertNotEquals(activityIds.get(0), activityIds.get(1));
+    }
+    
+    @org.junit.Test
+    public void Deadline_ReportsResponsePhaseWhenReadTimesOut() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        final List<Integer> socketTimeouts = new ArrayList<Integer>();
+        
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    socketTimeouts.add(((HttpPost)invocation.getArgument(0)).getConfig().getSocketTimeout());
+                    Thread.sleep(300);
+                    throw new SocketTimeoutException("Read timed out");
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        try 
+        {
+            client.ValidateRequest(UUID.randomUUID().toString(), "test", Duration.ofMillis(200));
+            fail();
+        }
+        catch(IntuneTimeoutException e)
+        {
+            assertEquals(IntuneTimeoutException.Phase.Response, e.getPhase());
+            assertTrue(e.isDeadlineExceeded());
+            assertTrue(e.getCause() instanceof SocketTimeoutException);
+        }
+        
+        // The read timeout is cut down to the time left and the expired call is not retried
+        assertEquals(1, socketTimeouts.size());
+        assertTrue(socketTimeouts.get(0) > 0 && socketTimeouts.get(0) <= 200);
+    }
+    
+    @org.junit.Test
+    public void Deadline_ReadTimeoutsOpenCircuitAndShrinkLimit() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "2");
+        helper.properties.setProperty("ADAPTIVE_CONCURRENCY_ENABLED", "true");
+        helper.properties.setProperty("ADAPTIVE_CONCURRENCY_INITIAL_LIMIT", "10");
+        helper.properties.setProperty("HTTP_READ_TIMEOUT_MS", "30000");
+        
+        // The service hangs until the deadline, which is shorter than the read timeout, cuts the read short
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    Thread.sleep(150);
+                    throw new SocketTimeoutException("Read timed out");
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        for(int i = 0; i < 2; i++)
+        {
+            try 
+            {
+                client.ValidateRequest(UUID.randomUUID().toString(), "test", Duration.ofMillis(100));
+                fail();
+            }
+            catch(IntuneTimeoutException e)
+            {
+                assertEquals(IntuneTimeoutException.Phase.Response, e.getPhase());
+            }
+        }
+        
+        CircuitBreaker circuitBreaker = client.getCircuitBreakers().iterator().next();
+        assertEquals(CircuitBreaker.State.Open, circuitBreaker.getState());
+        assertEquals(2, circuitBreaker.getFailureCount());
+        
+        AdaptiveConcurrencyLimiter limiter = client.getConcurrencyLimiters().iterator().next();
+        assertTrue(limiter.getLimit() < 10);
+    }
+    
+    @org.junit.Test
+    public void Retry_NotificationsAreOnlyRetriedWhenNotSent() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_BASE_DELAY_MS", "1");
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "0");
+        
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenThrow(new SocketTimeoutException("Read timed out"));
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        // The notification may have been processed before the response was lost
+        try 
+        {
+            client.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+            fail();
+        }
+        catch(SocketTimeoutException e)
+        {
+        }
+        verify(helper.httpClient, times(1)).execute(argThat(SERVICE_REQUEST));
+        
+        // Validation is idempotent
+        try 
+        {
+            client.ValidateRequest(UUID.randomUUID().toString(), "test");
+            fail();
+        }
+        catch(SocketTimeoutException e)
+        {
+        }
+        verify(helper.httpClient, times(4)).execute(argThat(SERVICE_REQUEST));
+        
+        // A refused connection never reached Intune
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenThrow(new ConnectException("Connection refused"));
+        try 
+        {
+            client.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+            fail();
+        }
+        catch(ConnectException e)
+        {
+        }
+        verify(helper.httpClient, times(7)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Deadline_DoesNotWaitForRetryThatCanNotFinishInTime() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_DELAY_MS", "5000");
+        
+        when(helper.intuneStatus.getStatusCode())
+            .thenReturn(503);
+        when(helper.intuneResponse.getFirstHeader("Retry-After"))
+            .thenReturn(new BasicHeader("Retry-After", "2"));
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        long start = System.currentTimeMillis();
+        try 
+        {
+            client.ValidateRequest(UUID.randomUUID().toString(), "test", Duration.ofSeconds(1));
+            fail();
+        }
+        catch(IntuneTimeoutException e)
+        {
+            assertEquals(IntuneTimeoutException.Phase.RetryBackoff, e.getPhase());
+            assertTrue(e.getCause() instanceof IntuneClientHttpErrorException);
+        }
+        assertTrue(System.currentTimeMillis() - start < 1000);
+        
+        verify(helper.httpClient, times(1)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Bulkhead_SaturatedNotificationsDoNotBlockValidation() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("BULKHEAD_NOTIFICATION_MAX_CONCURRENT", "1");
+        helper.properties.setProperty("BULKHEAD_NOTIFICATION_MAX_WAIT_MS", "0");
+        
+        final CountDownLatch notificationStarted = new CountDownLatch(1);
+        final CountDownLatch releaseNotification = new CountDownLatch(1);
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    if(((HttpUriRequest)invocation.getArgument(0)).getURI().getPath().endsWith("successNotification"))
+                    {
+                        notificationStarted.countDown();
+                        releaseNotification.await(10, TimeUnit.SECONDS);
+                    }
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        final String transactionId = UUID.randomUUID().toString();
+        
+        Thread blocked = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try
+                {
+                    client.SendSuccessNotification(transactionId, "test", "thumbprint", "serial", "2025-01-01T00:00:00.000Z", "authority", null, null);
+                }
+                catch(Exception e)
+                {
+                }
+            }});
+        blocked.start();
+        assertTrue(notificationStarted.await(10, TimeUnit.SECONDS));
+        
+        Bulkhead notifications = null;
+        for(Bulkhead bulkhead : client.getBulkheads())
+        {
+            if(bulkhead.getOperationClass() == OperationClass.Notification)
+            {
+                notifications = bulkhead;
+            }
+        }
+        assertEquals(1.0, notifications.getUtilization(), 0);
+        
+        try 
+        {
+            client.SendSuccessNotification(transactionId, "test", "thumbprint", "serial", "2025-01-01T00:00:00.000Z", "authority", null, null);
+            fail();
+        }
+        catch(IntuneConcurrencyLimitException e)
+        {
+        }
+        assertEquals(1, notifications.getRejectedCount());
+        
+        client.ValidateRequest(transactionId, "test");
+        
+        releaseNotification.countDown();
+        blocked.join(10000);
+        assertEquals(0, notifications.getInUse());
+    }
+    
+    @org.junit.Test
+    public void Bulkhead_UnboundedUnlessConfigured() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("BULKHEAD_REVOCATION_MAX_CONCURRENT", "5");
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        for(Bulkhead bulkhead : client.getBulkheads())
+        {
+            if(bulkhead.getOperationClass() == OperationClass.Revocation)
+            {
+                assertTrue(bulkhead.isBounded());
+                assertEquals(5, bulkhead.getMaxConcurrent());
+            }
+            else
+            {
+                assertFalse(bulkhead.isBounded());
+                assertEquals(0, bulkhead.getMaxConcurrent());
+                assertEquals(0, bulkhead.getUtilization(), 0);
+            }
+        }
+        
+        client.ValidateRequest(UUID.randomUUID().toString(), "test");
+        for(Bulkhead bulkhead : client.getBulkheads())
+        {
+            assertEquals(0, bulkhead.getInUse());
+            assertEquals(0, bulkhead.getRejectedCount());
+        }
+    }
+    
+    @org.junit.Test
+    public void Admission_AdmitsValidationFirstAndShedsOverflow() throws IntuneScepServiceException, Exception 
+    {
+        final Helper helper = new Helper();
+        helper.properties.setProperty("ADMISSION_CONTROL_ENABLED", "true");
+        helper.properties.setProperty("ADMISSION_MAX_CONCURRENT", "1");
+        helper.properties.setProperty("ADMISSION_QUEUE_SIZE", "1");
+        // The validations are identical, they must each reach admission control instead of waiting for the first
+        helper.properties.setProperty("VALIDATION_COALESCING_ENABLED", "false");
+        
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        final List<String> sent = Collections.synchronizedList(new ArrayList<String>());
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    String path = ((HttpUriRequest)invocation.getArgument(0)).getURI().getPath();
+                    sent.add(path.substring(path.lastIndexOf('/') + 1));
+                    if(sent.size() == 1)
+                    {
+                        firstStarted.countDown();
+                        releaseFirst.await(10, TimeUnit.SECONDS);
+                    }
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        final String transactionId = UUID.randomUUID().toString();
+        final AdmissionController admission = client.getAdmissionController();
+        
+        Runnable validation = new Runnable() {
+            @Override
+            public void run() {
+                try
+                {
+                    client.ValidateRequest(transactionId, "test");
+                }
+                catch(Exception e)
+                {
+                }
+            }};
+        Runnable notification = new Runnable() {
+            @Override
+            public void run() {
+                try
+                {
+                    client.SendFailureNotification(transactionId, "test", 0x80004005L, "failed");
+                }
+                catch(Exception e)
+                {
+                }
+            }};
+        
+        Thread first = new Thread(validation);
+        first.start();
+        assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+        
+        Thread queuedNotification = new Thread(notification);
+        queuedNotification.start();
+        while(admission.getQueued(OperationClass.Notification) == 0)
+        {
+            Thread.sleep(10);
+        }
+        
+        Thread queuedValidation = new Thread(validation);
+        queuedValidation.start();
+        while(admission.getQueued(OperationClass.Validation) == 0)
+        {
+            Thread.sleep(10);
+        }
+        
+        try
+        {
+            client.SendFailureNotification(transactionId, "test", 0x80004005L, "failed");
+            fail();
+        }
+        catch(IntuneRequestShedException e)
+        {
+            assertEquals(IntuneRequestShedException.Reason.QueueFull, e.getReason());
+        }
+        
+        try
+        {
+            client.ValidateRequest(transactionId, "test", Duration.ofMillis(100));
+            fail();
+        }
+        catch(IntuneRequestShedException e)
+        {
+            assertEquals(IntuneRequestShedException.Reason.QueueFull, e.getReason());
+        }
+        
+        releaseFirst.countDown();
+        first.join(10000);
+        queuedNotification.join(10000);
+        queuedValidation.join(10000);
+        
+        assertEquals(3, sent.size());
+        assertEquals("validateRequest", sent.get(1));
+        assertEquals("failureNotification", sent.get(2));
+        assertEquals(2, admission.getShedCount(OperationClass.Notification) + admission.getShedCount(OperationClass.Validation));
+        assertEquals(0, admission.getInFlight());
+    }
+    
+    @org.junit.Test
+    public void Admission_ShedsQueuedCallWhenDeadlineIsUnreachable() throws IntuneScepServiceException, Exception 
+    {
+        final Helper helper = new Helper();
+        helper.properties.setProperty("ADMISSION_CONTROL_ENABLED", "true");
+        helper.properties.setProperty("ADMISSION_MAX_CONCURRENT", "1");
+        helper.properties.setProperty("VALIDATION_COALESCING_ENABLED", "false");
+        
+        final CountDownLatch firstStarted = new CountDownLatch(1);
+        final CountDownLatch releaseFirst = new CountDownLatch(1);
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    firstStarted.countDown();
+                    releaseFirst.await(10, TimeUnit.SECONDS);
+                    return helper.intuneResponse;
+                }});
+        
+        final IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        final String transactionId = UUID.randomUUID().toString();
+        
+        Thread first = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try
+                {
+                    client.ValidateRequest(transactionId, "test");
+                }
+                catch(Exception e)
+                {
+                }
+            }});
+        first.start();
+        assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+        
+        try
+        {
+            client.ValidateRequest(transactionId, "test", Duration.ofMillis(100));
+            fail();
+        }
+        catch(IntuneRequestShedException e)
+        {
+            assertEquals(IntuneRequestShedException.Reason.DeadlineUnreachable, e.getReason());
+        }
+        
+        releaseFirst.countDown();
+        first.join(10000);
+        verify(helper.httpClient, times(1)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void RateLimiter_SlowsDownWhenServiceThrottles() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("RATE_LIMIT_ENABLED", "true");
+        helper.properties.setProperty("RATE_LIMIT_PER_SECOND", "10");
+        helper.properties.setProperty("RATE_LIMIT_MAX_WAIT_MS", "100");
+        
+        when(helper.intuneStatus.getStatusCode())
+            .thenReturn(429);
+        when(helper.intuneResponse.getFirstHeader("Retry-After"))
+            .thenReturn(new BasicHeader("Retry-After", "5"));
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        String transactionId = UUID.randomUUID().toString();
+        try 
+        {
+            client.ValidateRequest(transactionId, "test");
+            fail();
+        }
+        catch(IntuneClientHttpErrorException e)
+        {
+            assertEquals(429, e.getStatusCode());
+        }
+        
+        AdaptiveRateLimiter limiter = client.getRateLimiters().iterator().next();
+        assertEquals(1, limiter.getThrottledCount());
+        assertTrue(limiter.getCurrentRate() < limiter.getMaxRate());
+        assertTrue(limiter.getBlockedMillis() > 4000);
+        
+        try 
+        {
+            client.ValidateRequest(transactionId, "test");
+            fail();
+        }
+        catch(IntuneRateLimitException e)
+        {
+            assertTrue(e.getRetryAfterMillis() > 4000);
+        }
+        
+        assertEquals(1, limiter.getRejectedCount());
+        verify(helper.httpClient, times(1)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Dispatcher_RetriesFailedNotificationsAndDrainsOnClose() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("NOTIFICATION_RETRY_DELAY_MS", "10");
+        
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        final AtomicInteger calls = new AtomicInteger();
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    if(calls.incrementAndGet() == 1)
+                    {
+                        throw new NoHttpResponseException("The target server failed to respond");
+                    }
+                    return helper.intuneResponse;
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(client, helper.properties);
+        
+        dispatcher.SendSuccessNotification(UUID.randomUUID().toString(), "test", "thumbprint", "serial", "2025-01-01T00:00:00.000Z", "authority", null, null);
+        dispatcher.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+        dispatcher.close();
+        
+        assertEquals(2, dispatcher.getSentCount());
+        assertEquals(1, dispatcher.getRetriedCount());
+        assertEquals(0, dispatcher.getFailedCount());
+        assertEquals(0, dispatcher.getPendingCount());
+        verify(helper.httpClient, times(3)).execute(argThat(SERVICE_REQUEST));
+    }
+    
+    @org.junit.Test
+    public void Dispatcher_RetriesOnlyTransientFailuresOnce() throws IntuneScepServiceException, Exception 
+    {
+        File journalDirectory = Files.createTempDirectory("notifications").toFile();
+        
+        Helper helper = new Helper();
+        helper.properties.setProperty("NOTIFICATION_MAX_ATTEMPTS", "2");
+        helper.properties.setProperty("NOTIFICATION_RETRY_DELAY_MS", "10");
+        helper.properties.setProperty("NOTIFICATION_JOURNAL_DIR", journalDirectory.getAbsolutePath());
+        helper.properties.setProperty("CIRCUIT_BREAKER_FAILURE_THRESHOLD", "0");
+        
+        StatusLine unavailable = mock(StatusLine.class);
+        when(unavailable.getStatusCode())
+            .thenReturn(503);
+        StatusLine forbidden = mock(StatusLine.class);
+        when(forbidden.getStatusCode())
+            .thenReturn(403);
+        when(helper.intuneResponse.getStatusLine())
+            .thenReturn(unavailable, unavailable, forbidden);
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(client, helper.properties);
+        
+        // The dispatcher retries, the client sends each attempt once
+        dispatcher.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+        long deadline = System.currentTimeMillis() + 10000;
+        while(dispatcher.getPendingCount() > 0 && System.currentTimeMillis() < deadline)
+        {
+            Thread.sleep(10);
+        }
+        assertEquals(1, dispatcher.getRetriedCount());
+        assertEquals(1, dispatcher.getFailedCount());
+        verify(helper.httpClient, times(2)).execute(argThat(SERVICE_REQUEST));
+        
+        // A permanent error is not retried and not kept in the journal
+        dispatcher.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+        dispatcher.close();
+        assertEquals(1, dispatcher.getRetriedCount());
+        assertEquals(2, dispatcher.getFailedCount());
+        verify(helper.httpClient, times(3)).execute(argThat(SERVICE_REQUEST));
+        
+        dispatcher = new NotificationDispatcher(client, helper.properties);
+        assertEquals(1, dispatcher.getReplayedCount());
+        dispatcher.close();
+    }
+    
+    @org.junit.Test
+    public void Dispatcher_RejectsNotificationsWhenQueueIsFull() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("NOTIFICATION_QUEUE_SIZE", "1");
+        helper.properties.setProperty("NOTIFICATION_WORKERS", "1");
+        
+        final CountDownLatch sending = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    sending.countDown();
+                    release.await(10, TimeUnit.SECONDS);
+                    return helper.intuneResponse;
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(client, helper.properties);
+        
+        dispatcher.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+        assertTrue(sending.await(10, TimeUnit.SECONDS));
+        assertEquals(1, dispatcher.getPendingCount());
+        
+        try
+        {
+            dispatcher.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+            fail();
+        }
+        catch(IntuneRequestShedException e)
+        {
+            assertEquals(IntuneRequestShedException.Reason.QueueFull, e.getReason());
+        }
+        
+        release.countDown();
+        dispatcher.close();
+        
+        assertEquals(1, dispatcher.getSentCount());
+        assertEquals(1, dispatcher.getRejectedCount());
+    }
+    
+    @org.junit.Test
+    public void Dispatcher_ReplaysJournaledNotificationsAfterRestart() throws IntuneScepServiceException, Exception 
+    {
+        File journalDirectory = Files.createTempDirectory("notifications").toFile();
+        
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("NOTIFICATION_MAX_ATTEMPTS", "1");
+        helper.properties.setProperty("NOTIFICATION_JOURNAL_DIR", journalDirectory.getAbsolutePath());
+        when(helper.httpClient.execute(argThat(SERVICE_REQUEST)))
+            .thenThrow(new NoHttpResponseException("The target server failed to respond"));
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        NotificationDispatcher dispatcher = new NotificationDispatcher(client, helper.properties);
+        dispatcher.SendSuccessNotification(UUID.randomUUID().toString(), "test", "thumbprint", "serial", "2025-01-01T00:00:00.000Z", "authority", null, null);
+        dispatcher.SendFailureNotification(UUID.randomUUID().toString(), "test", 0x80004005L, "failed");
+        dispatcher.close();
+        assertEquals(2, dispatcher.getFailedCount());
+        
+        // Intune is reachable again after the restart
+        helper = new Helper();
+        helper.properties.setProperty("NOTIFICATION_JOURNAL_DIR", journalDirectory.getAbsolutePath());
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        dispatcher = new NotificationDispatcher(client, helper.properties);
+        assertEquals(2, dispatcher.getReplayedCount());
+        dispatcher.close();
+        assertEquals(2, dispatcher.getSentCount());
+        verify(helper.httpClient, times(2)).execute(argThat(SERVICE_REQUEST));
+        
+        // Everything was acknowledged, nothing is sent again
+        dispatcher = new NotificationDispatcher(client, helper.properties);
+        assertEquals(0, dispatcher.getReplayedCount());
+        dispatcher.close();
+    }
+}
@@ -30,14 +30,32 @@ import static org.mockito.ArgumentMatchers.argThat;
 import static org.mockito.Mockito.*;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import javax.naming.ServiceUnavailableException;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+import org.json.JSONObject;
+import org.mockito.ArgumentCaptor;
 import org.mockito.ArgumentMatcher;
 import org.mockito.ArgumentMatchers;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 public class Test 
 {
@@ -115,6 +133,395 @@ public class Test
         assertNotNull(null);
     }
     
+    @org.junit.Test
+    public void TestAsyncValidationSuccess() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        UUID transactionId = UUID.randomUUID();
+        String csr = "test";
+
+        CompletableFuture<Void> result = client.ValidateRequestAsync(transactionId.toString(), csr);
+        result.get(10, TimeUnit.SECONDS);
+        
+        verify(helper.httpClient, times(1)).execute(
+                argThat(new ArgumentMatcher<HttpUriRequest>() {
+                    @Override
+                    public boolean matches(HttpUriRequest resp) {
+                        return resp.getURI().getHost().equals(Helper.SERVICE_URL);
+                    }}));
+    }
+
+    @org.junit.Test
+    public void TestAsyncErrorCompletesExceptionally() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        when(helper.intuneResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream(Helper.ERROR_SCEP_RESPONSE.getBytes()));
+        when(helper.intuneResponseEntity.getContentLength())
+            .thenReturn((long)Helper.ERROR_SCEP_RESPONSE.length());
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        UUID transactionId = UUID.randomUUID();
+        String csr = "test";
+        try 
+        {
+            client.ValidateRequestAsync(transactionId.toString(), csr).get(10, TimeUnit.SECONDS);
+        }
+        catch(ExecutionException e)
+        {
+            assertTrue(e.getCause() instanceof IntuneScepServiceException);
+            assertTrue(((IntuneScepServiceException)e.getCause()).getParsedErrorCode() == IntuneScepServiceException.ErrorCode.ChallengeDecodingError);
+            return;
+        }
+        
+        assertNotNull(null);
+    }
+    
+    @org.junit.Test
+    public void TestValidationCacheAnswersRetransmissions() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("VALIDATION_CACHE_ENABLED", "true");
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        String transactionId = UUID.randomUUID().toString();
+        client.ValidateRequest(transactionId, "test");
+        client.ValidateRequest(transactionId, "test");
+        client.ValidateRequestAsync(transactionId, "test").get(10, TimeUnit.SECONDS);
+        
+        // A different CSR with the same transactionId is not a retransmission
+        client.ValidateRequest(transactionId, "other");
+        
+        assertEquals(2, client.getValidationCache().getHitCount());
+        assertEquals(2, client.getValidationCache().getMissCount());
+        verify(helper.httpClient, times(2)).execute(
+                argThat(new ArgumentMatcher<HttpUriRequest>() {
+                    @Override
+                    public boolean matches(HttpUriRequest resp) {
+                        return resp.getURI().getHost().equals(Helper.SERVICE_URL);
+                    }}));
+    }
+    
+    @org.junit.Test
+    public void TestValidationCacheRemembersFailures() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("VALIDATION_CACHE_ENABLED", "true");
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.ERROR_SCEP_RESPONSE.getBytes());
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        String transactionId = UUID.randomUUID().toString();
+        for(int i = 0; i < 2; i++)
+        {
+            try 
+            {
+                client.ValidateRequest(transactionId, "test");
+                fail();
+            }
+            catch(IntuneScepServiceException e)
+            {
+                assertEquals(IntuneScepServiceException.ErrorCode.ChallengeDecodingError, e.getParsedErrorCode());
+                assertEquals(transactionId, e.getTransactionId());
+            }
+        }
+        
+        assertEquals(1, client.getValidationCache().getHitCount());
+        verify(helper.httpClient, times(1)).execute(
+                argThat(new ArgumentMatcher<HttpUriRequest>() {
+                    @Override
+                    public boolean matches(HttpUriRequest resp) {
+                        return resp.getURI().getHost().equals(Helper.SERVICE_URL);
+                    }}));
+    }
+    
+    @org.junit.Test
+    public void TestPrecheckRejectsMalformedRequestsLocally() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("CSR_PRECHECK_ENABLED", "true");
+        helper.properties.setProperty("CSR_PRECHECK_MAX_LENGTH", "1024");
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        String tooLong = String.format("%2000s", "").replace(' ', 'A');
+        String[] malformed = { "not base64!", "test", Helper.CSR_WITH_CHALLENGE.substring(0, 100), tooLong };
+        for(String csr : malformed)
+        {
+            try 
+            {
+                client.ValidateRequest(UUID.randomUUID().toString(), csr);
+                fail();
+            }
+            catch(IntuneScepServiceException e)
+            {
+                assertEquals(IntuneScepServiceException.ErrorCode.CertificateRequestDecodingFailed, e.getParsedErrorCode());
+            }
+        }
+        
+        try 
+        {
+            client.ValidateRequestAsync(UUID.randomUUID().toString(), Helper.CSR_WITHOUT_CHALLENGE).get(10, TimeUnit.SECONDS);
+            fail();
+        }
+        catch(ExecutionException e)
+        {
+            assertEquals(IntuneScepServiceException.ErrorCode.ChallengePasswordMissing, ((IntuneScepServiceException)e.getCause()).getParsedErrorCode());
+        }
+        
+        assertEquals(5, client.getPrecheckRejectedCount());
+        verify(helper.msal, times(0)).getAccessToken(ArgumentMatchers.<String>anySet());
+        verify(helper.httpClient, times(0)).execute(ArgumentMatchers.<HttpUriRequest>any());
+    }
+    
+    @org.junit.Test
+    public void TestPrecheckAcceptsWellFormedRequests() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("CSR_PRECHECK_ENABLED", "true");
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        client.ValidateRequest(UUID.randomUUID().toString(), Helper.CSR_WITH_CHALLENGE);
+        
+        assertEquals(0, client.getPrecheckRejectedCount());
+        verify(helper.httpClient, times(1)).execute(
+                argThat(new ArgumentMatcher<HttpUriRequest>() {
+                    @Override
+                    public boolean matches(HttpUriRequest resp) {
+                        return resp.getURI().getHost().equals(Helper.SERVICE_URL);
+                    }}));
+    }
+    
+    @org.junit.Test
+    public void TestBinaryCertificateRequestIsEncodedIntoBody() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        byte[] der = Base64.getMimeDecoder().decode(Helper.CSR_WITH_CHALLENGE);
+        String transactionId = UUID.randomUUID().toString();
+        
+        // A buffer that starts within a larger array
+        byte[] padded = new byte[der.length + 10];
+        System.arraycopy(der, 0, padded, 5, der.length);
+        ByteBuffer buffer = ByteBuffer.wrap(padded, 5, der.length);
+        
+        client.ValidateRequest(transactionId, der);
+        client.ValidateRequest(transactionId, buffer, Duration.ofSeconds(10));
+        client.ValidateRequest(transactionId, new ByteArrayInputStream(der), null);
+        client.ValidateRequest(transactionId, Arrays.copyOf(der, der.length - 1));
+        client.ValidateRequest(transactionId, Arrays.copyOf(der, der.length - 2));
+        client.SendFailureNotification(transactionId, buffer, 0x80004005L, "failed \"quoted\" certificateRequest", null);
+        assertEquals(5, buffer.position());
+        
+        ArgumentCaptor<HttpUriRequest> requests = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(helper.httpClient, atLeastOnce()).execute(requests.capture());
+        List<JSONObject> bodies = new ArrayList<JSONObject>();
+        for(HttpUriRequest request : requests.getAllValues())
+        {
+            if(request.getURI().getHost().equals(Helper.SERVICE_URL))
+            {
+                HttpEntity entity = ((HttpPost)request).getEntity();
+                ByteArrayOutputStream written = new ByteArrayOutputStream();
+                entity.writeTo(written);
+                assertEquals(entity.getContentLength(), written.size());
+                assertEquals(written.toString("ISO-8859-1"), EntityUtils.toString(entity));
+                bodies.add(new JSONObject(written.toString("ISO-8859-1")));
+            }
+        }
+        
+        assertEquals(6, bodies.size());
+        for(int i = 0; i < 5; i++)
+        {
+            JSONObject request = bodies.get(i).getJSONObject("request");
+            byte[] expected = i < 3 ? der : Arrays.copyOf(der, der.length - (i - 2));
+            assertEquals(Base64.getEncoder().encodeToString(expected), request.getString("certificateRequest"));
+            assertEquals(transactionId, request.getString("transactionId"));
+        }
+        JSONObject notification = bodies.get(5).getJSONObject("notification");
+        assertEquals(Base64.getEncoder().encodeToString(der), notification.getString("certificateRequest"));
+        assertEquals("failed \"quoted\" certificateRequest", notification.getString("errorDescription"));
+    }
+
+    @org.junit.Test
+    public void TestTryValidateReturnsOutcome() throws IntuneScepServiceException, Exception
+    {
+        Helper helper = new Helper();
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.ERROR_SCEP_RESPONSE.getBytes());
+                }});
+
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+
+        String transactionId = UUID.randomUUID().toString();
+        ValidationOutcome outcome = client.TryValidateRequest(transactionId, "test");
+        assertFalse(outcome.isSuccess());
+        assertEquals(IntuneScepServiceException.ErrorCode.ChallengeDecodingError, outcome.getParsedErrorCode());
+        assertEquals(transactionId, outcome.getTransactionId());
+        assertNotNull(outcome.getActivityId());
+
+        outcome = client.TryValidateRequestAsync(transactionId, "test", null).get(10, TimeUnit.SECONDS);
+        assertEquals(IntuneScepServiceException.ErrorCode.ChallengeDecodingError, outcome.getParsedErrorCode());
+
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        assertTrue(client.TryValidateRequest(transactionId, "test").isSuccess());
+    }
+
+    @org.junit.Test
+    public void TestStacklessExceptions() throws IntuneScepServiceException, Exception
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("STACKLESS_EXCEPTIONS_ENABLED", "true");
+        when(helper.intuneResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream(Helper.ERROR_SCEP_RESPONSE.getBytes()));
+
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+
+        String transactionId = UUID.randomUUID().toString();
+        try
+        {
+            client.ValidateRequest(transactionId, "test");
+            fail();
+        }
+        catch(IntuneScepServiceException e)
+        {
+            assertEquals(0, e.getStackTrace().length);
+            assertEquals(IntuneScepServiceException.ErrorCode.ChallengeDecodingError, e.getParsedErrorCode());
+            assertTrue(e.getMessage().contains("TransactionId:" + transactionId));
+        }
+    }
+
+    @org.junit.Test
+    public void TestUnknownErrorCodeThrows() throws IntuneScepServiceException, Exception
+    {
+        Helper helper = new Helper();
+        when(helper.intuneResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream("{code:SomeNewError,errorDescription:'new'}".getBytes()));
+
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+
+        try
+        {
+            client.ValidateRequest(UUID.randomUUID().toString(), "test");
+            fail();
+        }
+        catch(IntuneScepServiceException e)
+        {
+            assertEquals(IntuneScepServiceException.ErrorCode.Unknown, e.getParsedErrorCode());
+            assertEquals("SomeNewError", e.getOriginalErrorCode());
+            assertEquals("new", e.getErrorDescription());
+        }
+    }
+
+    @org.junit.Test
+    public void TestRequestBodiesEscapeValues() throws IntuneScepServiceException, Exception
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("PROVIDER_NAME_AND_VERSION", "Provider \"\u00dcn\u00efcode\" 1.0");
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+
+        String transactionId = "tx\\\"\n\u00e9\u4e2d";
+        client.SendSuccessNotification(transactionId, "test", "thumb", "serial", "2026-01-01T00:00:00.000Z", "CN=Issuer \u00c9", null, "ca");
+
+        ArgumentCaptor<HttpUriRequest> requests = ArgumentCaptor.forClass(HttpUriRequest.class);
+        verify(helper.httpClient, atLeastOnce()).execute(requests.capture());
+        HttpUriRequest request = requests.getValue();
+        ByteArrayOutputStream written = new ByteArrayOutputStream();
+        ((HttpPost)request).getEntity().writeTo(written);
+        for(byte b : written.toByteArray())
+        {
+            assertTrue(b >= 0x20 && b < 0x7F);
+        }
+
+        JSONObject notification = new JSONObject(written.toString("US-ASCII")).getJSONObject("notification");
+        assertEquals(transactionId, notification.getString("transactionId"));
+        assertEquals("CN=Issuer \u00c9", notification.getString("issuingCertificateAuthority"));
+        assertEquals("Provider \"\u00dcn\u00efcode\" 1.0", notification.getString("callerInfo"));
+        assertEquals("ca", notification.getString("certificateAuthority"));
+        assertFalse(notification.has("caConfiguration"));
+    }
+
+    @org.junit.Test(expected = IllegalArgumentException.class)
+    public void TestAsyncInvalidArgumentThrows() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        client.ValidateRequestAsync(null, "test");
+    }
+    
+    @org.junit.Test(expected = IllegalArgumentException.class)
+    public void TestInvalidPayloadSampleRateThrows() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("LOG_PAYLOAD_SAMPLE_RATE", "2");
+        
+        new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+    }
+    
+    @org.junit.Test
+    public void TestStructuredLoggingDoesNotChangeResults() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("LOG_STRUCTURED_ENABLED", "true");
+        helper.properties.setProperty("LOG_PAYLOAD_SAMPLE_RATE", "0.5");
+        when(helper.intuneResponseEntity.getContent())
+            .thenAnswer(new Answer<Object>() {
+                @Override
+                public Object answer(InvocationOnMock invocation) throws Throwable {
+                    return new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes());
+                }});
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        for(int i = 0; i < 10; i++)
+        {
+            client.ValidateRequest(UUID.randomUUID().toString(), "test");
+        }
+        assertNull(org.slf4j.MDC.get("activityId"));
+    }
+    
     @org.junit.Test
     public void TestServiceRoleMismatchThrows() throws IntuneScepServiceException, Exception 
     {
@@ -155,6 +562,68 @@ public class Test
         assertNotNull(null);
     }
     
+    @org.junit.Test
+    public void TestTransientErrorIsRetried() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_BASE_DELAY_MS", "1");
+        
+        StatusLine unavailableStatus = mock(StatusLine.class);
+        when(unavailableStatus.getStatusCode())
+            .thenReturn(503);
+        when(helper.intuneResponse.getStatusLine())
+            .thenReturn(unavailableStatus, helper.intuneStatus);
+        when(helper.intuneResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream("Service Unavailable".getBytes()), new ByteArrayInputStream(Helper.VALID_SCEP_RESPONSE.getBytes()));
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        UUID transactionId = UUID.randomUUID();
+        String csr = "test";
+
+        client.ValidateRequest(transactionId.toString(), csr);
+        
+        verify(helper.httpClient, times(2)).execute(
+                argThat(new ArgumentMatcher<HttpUriRequest>() {
+                    @Override
+                    public boolean matches(HttpUriRequest resp) {
+                        return resp.getURI().getHost().equals(Helper.SERVICE_URL);
+                    }}));
+    }
+    
+    @org.junit.Test
+    public void TestRetriesStopAtMaxAttempts() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        helper.properties.setProperty("RETRY_BASE_DELAY_MS", "1");
+        helper.properties.setProperty("RETRY_MAX_ATTEMPTS", "2");
+        
+        when(helper.intuneStatus.getStatusCode())
+            .thenReturn(503);
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        UUID transactionId = UUID.randomUUID();
+        String csr = "test";
+        try 
+        {
+            client.ValidateRequest(transactionId.toString(), csr);
+        }
+        catch(IntuneClientHttpErrorException e)
+        {
+            assertEquals(503, e.getStatusCode());
+            verify(helper.httpClient, times(2)).execute(
+                    argThat(new ArgumentMatcher<HttpUriRequest>() {
+                        @Override
+                        public boolean matches(HttpUriRequest resp) {
+                            return resp.getURI().getHost().equals(Helper.SERVICE_URL);
+                        }}));
+            return;
+        }
+        
+        assertNotNull(null);
+    }
+    
     @org.junit.Test
     public void TestFailedToGetTokenThrows() throws IntuneScepServiceException, Exception 
     {
@@ -242,6 +711,58 @@ public class Test
         assertNotNull(null);
     }
     
+    @org.junit.Test
+    public void TestServiceEndpointNotFoundIsCached() throws IntuneScepServiceException, Exception 
+    {
+        Helper helper = new Helper();
+        
+        when(helper.msal.getAccessToken(ArgumentMatchers.<String>anySet()))
+            .thenThrow(new ServiceUnavailableException());
+            
+        when(helper.graphResponseEntity.getContent())
+            .thenReturn(new ByteArrayInputStream(Helper.NO_SERVICE_DISCOVERY_RESPONSE.getBytes()));
+        when(helper.graphResponseEntity.getContentLength())
+            .thenReturn((long)Helper.NO_SERVICE_DISCOVERY_RESPONSE.length());
+        
+        IntuneScepServiceClient client = new IntuneScepServiceClient(helper.properties, helper.msal, helper.adal, helper.httpBuilder);
+        
+        UUID transactionId = UUID.randomUUID();
+        String csr = "test";
+        IntuneServiceNotFoundException first = null;
+        IntuneServiceNotFoundException second = null;
+        try 
+        {
+            client.ValidateRequest(transactionId.toString(), csr);
+        }
+        catch(IntuneServiceNotFoundException e)
+        {
+            first = e;
+        }
+        
+        try 
+        {
+            client.ValidateRequest(transactionId.toString(), csr);
+        }
+        catch(IntuneServiceNotFoundException e)
+        {
+            second = e;
+        }
+        
+        assertNotNull(first);
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertEquals(first.getMessage(), second.getMessage());
+        
+        // The second lookup was answered from the negative cache
+        verify(helper.adal, times(1)).getAccessTokenFromCredential(anyString());
+        verify(helper.httpClient, times(1)).execute(
+                argThat(new ArgumentMatcher<HttpUriRequest>() {
+                    @Override
+                    public boolean matches(HttpUriRequest resp) {
+                        return resp.getURI().getHost().equals(Helper.GRAPH_URL);
+                    }}));
+    }
+    
     @org.junit.Test
     public void TestServiceMapClearMockito() throws IntuneScepServiceException, Exception 
     {
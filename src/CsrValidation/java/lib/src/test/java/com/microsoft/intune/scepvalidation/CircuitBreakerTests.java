@@ -0,0 +1,73 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+
+/**
+ * Tests of the circuit breaker state machine with outcomes arriving in a controlled order.
+ */
+public class CircuitBreakerTests 
+{
+    @org.junit.Test
+    public void CircuitBreaker_IgnoresOutcomesOfEarlierGenerations() throws Exception 
+    {
+        CircuitBreaker circuitBreaker = new CircuitBreaker("endpoint", 1, 0, 1, new ArrayList<CircuitBreakerListener>());
+        
+        // Two requests are let through while closed, one of them fails and opens the circuit
+        long slowFailure = circuitBreaker.acquirePermission();
+        long slowSuccess = circuitBreaker.acquirePermission();
+        circuitBreaker.onFailure(circuitBreaker.acquirePermission());
+        assertEquals(CircuitBreaker.State.Open, circuitBreaker.getState());
+        
+        // The open period is over, the trial request is let through
+        long trial = circuitBreaker.acquirePermission();
+        assertEquals(CircuitBreaker.State.HalfOpen, circuitBreaker.getState());
+        
+        // The slow requests complete during the trial and do not change its outcome
+        circuitBreaker.onSuccess(slowSuccess);
+        assertEquals(CircuitBreaker.State.HalfOpen, circuitBreaker.getState());
+        circuitBreaker.onFailure(slowFailure);
+        assertEquals(CircuitBreaker.State.HalfOpen, circuitBreaker.getState());
+        circuitBreaker.onIgnored(slowFailure);
+        
+        // The trial is still the only request in flight
+        try
+        {
+            circuitBreaker.acquirePermission();
+            fail();
+        }
+        catch(IntuneCircuitOpenException e)
+        {
+        }
+        
+        circuitBreaker.onSuccess(trial);
+        assertEquals(CircuitBreaker.State.Closed, circuitBreaker.getState());
+        assertEquals(1, circuitBreaker.getOpenedCount());
+        assertEquals(1, circuitBreaker.getRejectedCount());
+    }
+}
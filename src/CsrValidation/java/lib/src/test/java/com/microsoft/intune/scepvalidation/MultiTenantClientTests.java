@@ -0,0 +1,329 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.ServiceUnavailableException;
+
+import org.junit.After;
+import org.junit.Before;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of the multi-tenant client against a local stub of the Intune service, tokens are not requested from 
+ * Azure Active Directory.
+ */
+public class MultiTenantClientTests 
+{
+    private HttpServer intune;
+    private ExecutorService intuneExecutor;
+    private final ExecutorService callers = Executors.newCachedThreadPool();
+    
+    // Validations with a transactionId starting with "slow" wait for a permit of this semaphore
+    private final Semaphore slowRequestsReleased = new Semaphore(0);
+    private final Semaphore slowRequestsReceived = new Semaphore(0);
+    
+    private IntuneMultiTenantScepServiceClient client;
+    
+    @Before
+    public void StartIntune() throws IOException
+    {
+        this.intune = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.intuneExecutor = Executors.newCachedThreadPool();
+        this.intune.setExecutor(this.intuneExecutor);
+        this.intune.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                StringBuilder body = new StringBuilder();
+                InputStream in = exchange.getRequestBody();
+                byte[] buffer = new byte[1024];
+                int read;
+                while((read = in.read(buffer)) >= 0)
+                {
+                    body.append(new String(buffer, 0, read, StandardCharsets.UTF_8));
+                }
+                
+                String response;
+                if("GET".equals(exchange.getRequestMethod()))
+                {
+                    response = "{value:[{providerName:" + IntuneScepServiceClient.VALIDATION_SERVICE_NAME + ",uri:'" + getIntuneUrl() + "scep'}]}";
+                }
+                else
+                {
+                    if(body.indexOf("\"slow") >= 0)
+                    {
+                        slowRequestsReceived.release();
+                        try
+                        {
+                            slowRequestsReleased.tryAcquire(10, TimeUnit.SECONDS);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    response = "{code:" + IntuneScepServiceException.ErrorCode.Success.name() + ",errorDescription:''}";
+                }
+                
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }});
+        this.intune.start();
+    }
+    
+    @After
+    public void Stop()
+    {
+        this.slowRequestsReleased.release(100);
+        if(this.client != null)
+        {
+            this.client.close();
+        }
+        this.callers.shutdownNow();
+        this.intune.stop(0);
+        this.intuneExecutor.shutdownNow();
+    }
+    
+    @org.junit.Test
+    public void MultiTenant_LimitsConcurrentRequestsPerTenant() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("MAX_CONCURRENT_REQUESTS_PER_TENANT", "1");
+        properties.setProperty("TENANT_PERMIT_TIMEOUT_MS", "10");
+        this.client = CreateClient(properties);
+        
+        Future<Void> slow = ValidateInBackground("tenantA", "slow");
+        assertTrue(this.slowRequestsReceived.tryAcquire(10, TimeUnit.SECONDS));
+        assertEquals(1, this.client.getInFlightRequests("TENANTA"));
+        
+        try
+        {
+            this.client.ValidateRequest("TenantA", UUID.randomUUID().toString(), "csr");
+            fail();
+        }
+        catch(IntuneConcurrencyLimitException e)
+        {
+        }
+        
+        // Other tenants are not affected
+        this.client.ValidateRequest("tenantB", UUID.randomUUID().toString(), "csr");
+        
+        this.slowRequestsReleased.release();
+        slow.get(10, TimeUnit.SECONDS);
+        assertEquals(0, this.client.getInFlightRequests("tenantA"));
+        this.client.ValidateRequest("tenantA", UUID.randomUUID().toString(), "csr");
+    }
+    
+    @org.junit.Test
+    public void MultiTenant_SharesConnectionPoolAndBulkheads() throws Exception 
+    {
+        this.client = CreateClient(new Properties());
+        
+        Future<Void> a = ValidateInBackground("tenantA", "slow");
+        Future<Void> b = ValidateInBackground("tenantB", "slow");
+        assertTrue(this.slowRequestsReceived.tryAcquire(2, 10, TimeUnit.SECONDS));
+        
+        // Both tenants hold a connection of the same pool and a permit of the same bulkhead
+        assertEquals(2, this.client.connectionManager.getTotalStats().getLeased());
+        Bulkhead validation = null;
+        for(Bulkhead bulkhead : this.client.getBulkheads())
+        {
+            if(bulkhead.getOperationClass() == OperationClass.Validation)
+            {
+                validation = bulkhead;
+            }
+        }
+        assertEquals(2, validation.getInUse());
+        assertSame(this.client.tenants.get("tenanta").client.bulkheads, this.client.tenants.get("tenantb").client.bulkheads);
+        
+        this.slowRequestsReleased.release(2);
+        a.get(10, TimeUnit.SECONDS);
+        b.get(10, TimeUnit.SECONDS);
+        assertEquals(0, this.client.connectionManager.getTotalStats().getLeased());
+        assertEquals(0, validation.getInUse());
+    }
+    
+    @org.junit.Test
+    public void MultiTenant_RemovesTenants() throws Exception 
+    {
+        this.client = CreateClient(new Properties());
+        
+        this.client.ValidateRequest("tenantA", UUID.randomUUID().toString(), "csr");
+        this.client.ValidateRequest("TENANTA", UUID.randomUUID().toString(), "csr");
+        assertEquals(1, this.client.getTenantCount());
+        
+        this.client.RemoveTenant("TenantA");
+        assertEquals(0, this.client.getTenantCount());
+        
+        this.client.ValidateRequest("tenantA", UUID.randomUUID().toString(), "csr");
+        assertEquals(1, this.client.getTenantCount());
+        
+        try
+        {
+            this.client.RemoveTenant(null);
+            fail();
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+    }
+    
+    @org.junit.Test
+    public void MultiTenant_EvictsIdleTenants() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("TENANT_IDLE_TIMEOUT_MS", "50");
+        properties.setProperty("HEDGE_ENABLED", "true");
+        properties.setProperty("HEDGE_INITIAL_DELAY_MS", "60000");
+        this.client = CreateClient(properties);
+        
+        this.client.ValidateRequest("idle", UUID.randomUUID().toString(), "csr");
+        IntuneScepServiceClient idle = this.client.tenants.get("idle").client;
+        Future<Void> busy = ValidateInBackground("busy", "slow");
+        assertTrue(this.slowRequestsReceived.tryAcquire(10, TimeUnit.SECONDS));
+        Thread.sleep(100);
+        
+        // Adding a tenant removes the idle one but not the one with a request in flight
+        this.client.ValidateRequest("new", UUID.randomUUID().toString(), "csr");
+        assertFalse(this.client.tenants.containsKey("idle"));
+        assertTrue(this.client.tenants.containsKey("busy"));
+        assertTrue(this.client.tenants.containsKey("new"));
+        assertTrue(idle.hedgeExecutor.isShutdown());
+        assertFalse(this.client.tenants.get("busy").client.hedgeExecutor.isShutdown());
+        
+        this.slowRequestsReleased.release();
+        busy.get(10, TimeUnit.SECONDS);
+    }
+    
+    @org.junit.Test
+    public void MultiTenant_EvictsLeastRecentlyUsedTenantsAboveLimit() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("MAX_TENANTS", "2");
+        this.client = CreateClient(properties);
+        
+        this.client.ValidateRequest("first", UUID.randomUUID().toString(), "csr");
+        this.client.ValidateRequest("second", UUID.randomUUID().toString(), "csr");
+        this.client.ValidateRequest("first", UUID.randomUUID().toString(), "csr");
+        this.client.ValidateRequest("third", UUID.randomUUID().toString(), "csr");
+        
+        assertEquals(2, this.client.getTenantCount());
+        assertTrue(this.client.tenants.containsKey("first"));
+        assertFalse(this.client.tenants.containsKey("second"));
+        assertTrue(this.client.tenants.containsKey("third"));
+    }
+    
+    @org.junit.Test
+    public void MultiTenant_CloseReleasesSharedResources() throws Exception 
+    {
+        this.client = CreateClient(new Properties());
+        this.client.ValidateRequest("tenantA", UUID.randomUUID().toString(), "csr");
+        
+        this.client.close();
+        assertEquals(0, this.client.getTenantCount());
+        
+        // The shared pool is shut down and no tenant can be added on it
+        
+        try
+        {
+            this.client.ValidateRequest("tenantA", UUID.randomUUID().toString(), "csr");
+            fail();
+        }
+        catch(IllegalStateException e)
+        {
+        }
+        assertEquals(0, this.client.getTenantCount());
+        
+        this.client = null;
+    }
+    
+    private IntuneMultiTenantScepServiceClient CreateClient(Properties properties)
+    {
+        properties.setProperty("AAD_APP_ID", "test");
+        properties.setProperty("AAD_APP_KEY", "test");
+        properties.setProperty("PROVIDER_NAME_AND_VERSION", "test");
+        properties.setProperty("MS_GRAPH_RESOURCE_URL", getIntuneUrl());
+        
+        return new IntuneMultiTenantScepServiceClient(properties) {
+            @Override
+            MSALClientWrapper createMsalClient(String tenant, Properties tenantProperties)
+            {
+                return new MSALClientWrapper(tenant, tenantProperties) {
+                    @Override
+                    public String getAccessToken(Set<String> scopes) throws ServiceUnavailableException
+                    {
+                        return "token";
+                    }
+                    
+                    @Override
+                    public String getAccessToken(Set<String> scopes, long timeoutMillis) throws ServiceUnavailableException
+                    {
+                        return "token";
+                    }
+                };
+            }
+        };
+    }
+    
+    private Future<Void> ValidateInBackground(final String tenant, final String transactionId)
+    {
+        return this.callers.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception
+            {
+                client.ValidateRequest(tenant, transactionId, "csr");
+                return null;
+            }});
+    }
+    
+    private String getIntuneUrl()
+    {
+        return "http://127.0.0.1:" + this.intune.getAddress().getPort() + "/";
+    }
+}
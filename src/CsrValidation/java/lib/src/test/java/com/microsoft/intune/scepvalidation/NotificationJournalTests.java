@@ -0,0 +1,159 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests of the journal itself, which is internal to the package.
+ */
+public class NotificationJournalTests 
+{
+    private static final int SEGMENT_SIZE = 4096;
+    
+    // A notification of this size leaves room for two of them in a segment
+    private static final byte[] BODY = new byte[1900];
+    
+    @org.junit.Test
+    public void Journal_KeepsAcknowledgementsOfOlderSegmentsWhenCompacting() throws Exception 
+    {
+        File directory = Files.createTempDirectory("journal").toFile();
+        
+        NotificationJournal journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        long t1 = journal.append(true, "t1", BODY);
+        journal.append(true, "t2", BODY);
+        long t3 = journal.append(true, "t3", BODY);
+        assertEquals(2, journal.getSegmentCount());
+        
+        // The acknowledgement of t1 goes to the second segment
+        journal.acknowledge(t1);
+        long t4 = journal.append(true, "t4", BODY);
+        journal.append(true, "t5", BODY);
+        assertEquals(3, journal.getSegmentCount());
+        
+        // The second segment has nothing pending but still holds the acknowledgement of t1
+        journal.acknowledge(t3);
+        journal.acknowledge(t4);
+        assertEquals(3, journal.getSegmentCount());
+        journal.close();
+        
+        journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        assertEquals(listOf("t2", "t5"), transactionIds(journal.getReplayed()));
+        journal.close();
+    }
+    
+    @org.junit.Test
+    public void Journal_RemovesSegmentsOnceOlderSegmentsAreGone() throws Exception 
+    {
+        File directory = Files.createTempDirectory("journal").toFile();
+        
+        NotificationJournal journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        long t1 = journal.append(true, "t1", BODY);
+        long t2 = journal.append(true, "t2", BODY);
+        long t3 = journal.append(true, "t3", BODY);
+        journal.append(true, "t4", BODY);
+        journal.append(true, "t5", BODY);
+        assertEquals(3, journal.getSegmentCount());
+        
+        journal.acknowledge(t3);
+        assertEquals(3, journal.getSegmentCount());
+        
+        // Acknowledging the first segment removes the second one as well
+        journal.acknowledge(t1);
+        journal.acknowledge(t2);
+        assertEquals(2, journal.getSegmentCount());
+        journal.close();
+        
+        journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        assertEquals(listOf("t4", "t5"), transactionIds(journal.getReplayed()));
+        journal.close();
+    }
+    
+    @org.junit.Test
+    public void Journal_IgnoresRecordsWithBadChecksum() throws Exception 
+    {
+        File directory = Files.createTempDirectory("journal").toFile();
+        
+        NotificationJournal journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        journal.append(true, "t1", new byte[] { 1, 2, 3 });
+        journal.append(false, "t2", new byte[] { 4, 5, 6 });
+        journal.close();
+        
+        // Flip the last byte of the body of t2 as a write torn by a crash would
+        File[] files = directory.listFiles();
+        assertEquals(1, files.length);
+        int t1Length = 8 + 1 + 8 + 1 + 2 + 2 + 3;
+        int t2End = 8 + t1Length + t1Length;
+        RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+        try
+        {
+            raf.seek(t2End - 1);
+            raf.write(0x7F);
+        }
+        finally
+        {
+            raf.close();
+        }
+        
+        journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        List<NotificationJournal.Record> replayed = journal.getReplayed();
+        assertEquals(listOf("t1"), transactionIds(replayed));
+        assertArrayEquals(new byte[] { 1, 2, 3 }, replayed.get(0).body);
+        
+        // Appends continue after the replayed notifications
+        journal.append(true, "t3", new byte[] { 7 });
+        journal.close();
+        
+        journal = NotificationJournal.open(directory, SEGMENT_SIZE, false);
+        assertEquals(listOf("t1", "t3"), transactionIds(journal.getReplayed()));
+        journal.close();
+    }
+    
+    private static List<String> transactionIds(List<NotificationJournal.Record> records)
+    {
+        List<String> result = new ArrayList<String>();
+        for(NotificationJournal.Record record : records)
+        {
+            result.add(record.transactionId);
+        }
+        return result;
+    }
+    
+    private static List<String> listOf(String... values)
+    {
+        List<String> result = new ArrayList<String>();
+        for(String value : values)
+        {
+            result.add(value);
+        }
+        return result;
+    }
+}
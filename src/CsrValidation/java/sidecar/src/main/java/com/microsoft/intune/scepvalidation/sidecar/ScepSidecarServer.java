@@ -0,0 +1,571 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation.sidecar;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.microsoft.intune.scepvalidation.Bulkhead;
+import com.microsoft.intune.scepvalidation.IntuneCircuitOpenException;
+import com.microsoft.intune.scepvalidation.IntuneConcurrencyLimitException;
+import com.microsoft.intune.scepvalidation.IntuneRateLimitException;
+import com.microsoft.intune.scepvalidation.IntuneRequestShedException;
+import com.microsoft.intune.scepvalidation.IntuneScepServiceClient;
+import com.microsoft.intune.scepvalidation.IntuneScepServiceException;
+import com.microsoft.intune.scepvalidation.IntuneTimeoutException;
+import com.microsoft.intune.scepvalidation.ValidationOutcome;
+import com.microsoft.intune.scepvalidation.ValidationResultCache;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP front end for an IntuneScepServiceClient.
+ * 
+ * Several CA processes on the same host can share one client, and with it its token cache, connection pool, 
+ * validation cache and resilience state, instead of each process warming up a client of its own.  The server listens 
+ * on the loopback interface by default.  Requests must name this host in their Host header and operations must be 
+ * sent as application/json, so that a web page open in a browser on the host can not reach the server through DNS 
+ * rebinding or a cross-origin form post.  When SIDECAR_TOKEN is set every request must also carry it as a bearer 
+ * token in the Authorization header.
+ * 
+ * Every operation is a POST of a JSON object and answers with a JSON object:
+ *  /validate       {transactionId, certificateRequest}
+ *  /notifySuccess  {transactionId, certificateRequest, certificateThumbprint, certificateSerialNumber, 
+ *                   certificateExpirationDateUtc, issuingCertificateAuthority, caConfiguration, certificateAuthority}
+ *  /notifyFailure  {transactionId, certificateRequest, hResult, errorDescription}
+ * The answer is {success, code, errorDescription, transactionId, activityId} with status 200 when the Intune service 
+ * answered, 400 for a malformed request, 413 for a body over SIDECAR_MAX_BODY_BYTES, 503 with a Retry-After header 
+ * when the client shed the call or a limit was reached, 504 when the deadline passed and 502 for any other failure.  
+ * GET /health and GET /metrics report the state of the server and the client.
+ */
+public class ScepSidecarServer
+{
+    private static final Logger log = LoggerFactory.getLogger(ScepSidecarServer.class);
+    
+    private static final String JSON_CONTENT_TYPE = "application/json; charset=utf-8";
+    
+    private final IntuneScepServiceClient client;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Duration deadline;
+    private final int maxBodyBytes;
+    private final Set<String> allowedHosts = new HashSet<String>();
+    private final byte[] token;
+    
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong errorCount = new AtomicLong();
+    
+    /**
+     * Creates a server for the client, it accepts requests once started.
+     * @param configProperties Properties of the sidecar:
+     *  SIDECAR_BIND_ADDRESS  Address to listen on, 127.0.0.1 by default.
+     *  SIDECAR_PORT          Port to listen on, 8450 by default, 0 picks a free port.
+     *  SIDECAR_THREADS       Number of requests that are served at the same time, 16 by default.
+     *  SIDECAR_MAX_BODY_BYTES Largest request body that is accepted, 65536 by default.
+     *  SIDECAR_DEADLINE_MS   Time allowed for each call to the Intune service, 30000 by default.
+     *  SIDECAR_TOKEN         Bearer token that requests must carry, none by default.
+     * @param client The client that serves the requests, it is shared by all of them.
+     * @throws IllegalArgumentException
+     * @throws IOException When the server can not bind to the address.
+     */
+    public ScepSidecarServer(Properties configProperties, IntuneScepServiceClient client) throws IllegalArgumentException, IOException
+    {
+        if(configProperties == null)
+        {
+            throw new IllegalArgumentException("The argument 'configProperties' is missing");
+        }
+        
+        if(client == null)
+        {
+            throw new IllegalArgumentException("The argument 'client' is missing");
+        }
+        
+        this.client = client;
+        
+        String bindAddress = configProperties.getProperty("SIDECAR_BIND_ADDRESS", "127.0.0.1");
+        int port = getIntProperty(configProperties, "SIDECAR_PORT", 8450, 0);
+        int threads = getIntProperty(configProperties, "SIDECAR_THREADS", 16, 1);
+        this.maxBodyBytes = getIntProperty(configProperties, "SIDECAR_MAX_BODY_BYTES", 65536, 1);
+        this.deadline = Duration.ofMillis(getIntProperty(configProperties, "SIDECAR_DEADLINE_MS", 30000, 1));
+        
+        String token = configProperties.getProperty("SIDECAR_TOKEN");
+        this.token = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+        
+        InetAddress address = InetAddress.getByName(bindAddress);
+        if(!address.isLoopbackAddress() && this.token == null)
+        {
+            log.warn("The sidecar is listening on {}, which is not a loopback address, without SIDECAR_TOKEN. It should only be reachable from this host.", bindAddress);
+        }
+        
+        this.allowedHosts.add("localhost");
+        this.allowedHosts.add("127.0.0.1");
+        this.allowedHosts.add("[::1]");
+        if(!address.isAnyLocalAddress())
+        {
+            this.allowedHosts.add(bindAddress.toLowerCase(Locale.ROOT));
+        }
+        
+        this.server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        this.executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+            
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, "scep-sidecar-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.server.setExecutor(this.executor);
+        
+        this.server.createContext("/validate", new OperationHandler() {
+            @Override
+            JSONObject call(JSONObject request) throws Exception
+            {
+                ValidationOutcome outcome = ScepSidecarServer.this.client.TryValidateRequest(
+                        request.getString("transactionId"), 
+                        request.getString("certificateRequest"), 
+                        ScepSidecarServer.this.deadline);
+                return toJson(outcome);
+            }
+        });
+        
+        this.server.createContext("/notifySuccess", new OperationHandler() {
+            @Override
+            JSONObject call(JSONObject request) throws Exception
+            {
+                String transactionId = request.getString("transactionId");
+                try
+                {
+                    ScepSidecarServer.this.client.SendSuccessNotification(
+                            transactionId, 
+                            request.getString("certificateRequest"), 
+                            request.getString("certificateThumbprint"), 
+                            request.getString("certificateSerialNumber"), 
+                            request.getString("certificateExpirationDateUtc"), 
+                            request.getString("issuingCertificateAuthority"), 
+                            request.optString("caConfiguration", null), 
+                            request.optString("certificateAuthority", null), 
+                            ScepSidecarServer.this.deadline);
+                }
+                catch(IntuneScepServiceException e)
+                {
+                    return toJson(e);
+                }
+                return new JSONObject().put("success", true).put("transactionId", transactionId);
+            }
+        });
+        
+        this.server.createContext("/notifyFailure", new OperationHandler() {
+            @Override
+            JSONObject call(JSONObject request) throws Exception
+            {
+                String transactionId = request.getString("transactionId");
+                try
+                {
+                    ScepSidecarServer.this.client.SendFailureNotification(
+                            transactionId, 
+                            request.getString("certificateRequest"), 
+                            request.getLong("hResult"), 
+                            request.getString("errorDescription"), 
+                            ScepSidecarServer.this.deadline);
+                }
+                catch(IntuneScepServiceException e)
+                {
+                    return toJson(e);
+                }
+                return new JSONObject().put("success", true).put("transactionId", transactionId);
+            }
+        });
+        
+        this.server.createContext("/health", new SidecarHandler("GET") {
+            @Override
+            void serve(HttpExchange exchange) throws IOException
+            {
+                send(exchange, 200, new JSONObject().put("status", "ok"));
+            }
+        });
+        
+        this.server.createContext("/metrics", new SidecarHandler("GET") {
+            @Override
+            void serve(HttpExchange exchange) throws IOException
+            {
+                send(exchange, 200, getMetrics());
+            }
+        });
+    }
+    
+    /**
+     * Starts accepting requests.
+     */
+    public void start()
+    {
+        this.server.start();
+        log.info("SCEP validation sidecar listening on {}", getAddress());
+    }
+    
+    /**
+     * Stops accepting requests and waits for the ones in progress.
+     * @param delaySeconds The longest time to wait for requests in progress.
+     */
+    public void stop(int delaySeconds)
+    {
+        this.server.stop(delaySeconds);
+        this.executor.shutdown();
+        log.info("SCEP validation sidecar stopped");
+    }
+    
+    /**
+     * The address the server listens on, with the port that was picked when SIDECAR_PORT is 0.
+     */
+    public InetSocketAddress getAddress()
+    {
+        return this.server.getAddress();
+    }
+    
+    /**
+     * Counters of the server and the shared client.
+     */
+    public JSONObject getMetrics()
+    {
+        JSONObject metrics = new JSONObject();
+        metrics.put("requests", this.requestCount.get());
+        metrics.put("errors", this.errorCount.get());
+        metrics.put("precheckRejected", this.client.getPrecheckRejectedCount());
+        metrics.put("coalescedValidations", this.client.getCoalescedValidationCount());
+        
+        ValidationResultCache cache = this.client.getValidationCache();
+        if(cache != null)
+        {
+            metrics.put("validationCache", new JSONObject()
+                    .put("size", cache.getSize())
+                    .put("maxEntries", cache.getMaxEntries())
+                    .put("hits", cache.getHitCount())
+                    .put("misses", cache.getMissCount())
+                    .put("evictions", cache.getEvictionCount())
+                    .put("hitRatio", cache.getHitRatio()));
+        }
+        
+        JSONArray bulkheads = new JSONArray();
+        for(Bulkhead bulkhead : this.client.getBulkheads())
+        {
+            bulkheads.put(new JSONObject()
+                    .put("operationClass", bulkhead.getOperationClass().name())
+                    .put("inUse", bulkhead.getInUse())
+                    .put("maxConcurrent", bulkhead.getMaxConcurrent())
+                    .put("queued", bulkhead.getQueuedTasks())
+                    .put("rejected", bulkhead.getRejectedCount()));
+        }
+        metrics.put("bulkheads", bulkheads);
+        return metrics;
+    }
+    
+    /**
+     * Checks the Host header and the token of a request and maps the failures of the call to status codes.
+     */
+    private abstract class SidecarHandler implements HttpHandler
+    {
+        private final String method;
+        
+        SidecarHandler(String method)
+        {
+            this.method = method;
+        }
+        
+        abstract void serve(HttpExchange exchange) throws Exception;
+        
+        @Override
+        public void handle(HttpExchange exchange) throws IOException
+        {
+            requestCount.incrementAndGet();
+            try
+            {
+                if(!isAllowedHost(exchange.getRequestHeaders().getFirst("Host")))
+                {
+                    send(exchange, 403, error("The Host header does not name this host"));
+                }
+                else if(!isAuthorized(exchange.getRequestHeaders().getFirst("Authorization")))
+                {
+                    exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                    send(exchange, 401, error("The request does not carry the sidecar token"));
+                }
+                else if(!this.method.equals(exchange.getRequestMethod()))
+                {
+                    send(exchange, 405, error("Method " + exchange.getRequestMethod() + " is not allowed"));
+                }
+                else
+                {
+                    serve(exchange);
+                }
+            }
+            catch(BodyTooLargeException e)
+            {
+                send(exchange, 413, error(e.getMessage()));
+            }
+            catch(IllegalArgumentException | JSONException e)
+            {
+                send(exchange, 400, error(e.getMessage()));
+            }
+            catch(IntuneTimeoutException e)
+            {
+                errorCount.incrementAndGet();
+                log.warn("{} timed out in phase {}", exchange.getRequestURI().getPath(), e.getPhase());
+                send(exchange, 504, error(e.getMessage()));
+            }
+            catch(IntuneConcurrencyLimitException | IntuneRequestShedException | IntuneRateLimitException | IntuneCircuitOpenException e)
+            {
+                errorCount.incrementAndGet();
+                log.warn("{} was turned away: {}", exchange.getRequestURI().getPath(), e.getMessage());
+                exchange.getResponseHeaders().set("Retry-After", Long.toString(getRetryAfterSeconds(e)));
+                send(exchange, 503, error(e.getMessage()));
+            }
+            catch(Exception e)
+            {
+                errorCount.incrementAndGet();
+                log.error("{} failed", exchange.getRequestURI().getPath(), e);
+                send(exchange, 502, error(e.getMessage()));
+            }
+        }
+    }
+    
+    /**
+     * Handles a POST of a JSON object.
+     */
+    private abstract class OperationHandler extends SidecarHandler
+    {
+        OperationHandler()
+        {
+            super("POST");
+        }
+        
+        abstract JSONObject call(JSONObject request) throws Exception;
+        
+        @Override
+        void serve(HttpExchange exchange) throws Exception
+        {
+            // A browser can only send other content types across origins without asking first
+            String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+            if(contentType == null || !contentType.split(";")[0].trim().equalsIgnoreCase("application/json"))
+            {
+                send(exchange, 415, error("The request body must be application/json"));
+                return;
+            }
+            
+            JSONObject request;
+            try
+            {
+                request = new JSONObject(readBody(exchange));
+            }
+            catch(JSONException e)
+            {
+                send(exchange, 400, error("The request body is not a JSON object"));
+                return;
+            }
+            
+            send(exchange, 200, call(request));
+        }
+    }
+    
+    /**
+     * Thrown when a request body is larger than SIDECAR_MAX_BODY_BYTES.
+     */
+    private static class BodyTooLargeException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+        
+        BodyTooLargeException(int maxBodyBytes)
+        {
+            super("The request body is larger than " + maxBodyBytes + " bytes");
+        }
+    }
+    
+    private boolean isAllowedHost(String host)
+    {
+        if(host == null)
+        {
+            return false;
+        }
+        
+        // Strip the port, an IPv6 address is in brackets
+        host = host.trim().toLowerCase(Locale.ROOT);
+        int end = host.startsWith("[") ? host.indexOf(']') + 1 : host.indexOf(':');
+        if(end > 0)
+        {
+            host = host.substring(0, end);
+        }
+        return this.allowedHosts.contains(host);
+    }
+    
+    private boolean isAuthorized(String authorization)
+    {
+        if(this.token == null)
+        {
+            return true;
+        }
+        
+        if(authorization == null || !authorization.startsWith("Bearer "))
+        {
+            return false;
+        }
+        return MessageDigest.isEqual(this.token, authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static long getRetryAfterSeconds(Exception e)
+    {
+        long millis = 1000;
+        if(e instanceof IntuneRateLimitException)
+        {
+            millis = ((IntuneRateLimitException)e).getRetryAfterMillis();
+        }
+        else if(e instanceof IntuneCircuitOpenException)
+        {
+            millis = ((IntuneCircuitOpenException)e).getRetryAfterMillis();
+        }
+        return Math.max(1, (millis + 999) / 1000);
+    }
+    
+    private String readBody(HttpExchange exchange) throws IOException
+    {
+        String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+        if(contentLength != null)
+        {
+            try
+            {
+                if(Long.parseLong(contentLength.trim()) > this.maxBodyBytes)
+                {
+                    throw new BodyTooLargeException(this.maxBodyBytes);
+                }
+            }
+            catch(NumberFormatException e)
+            {
+                throw new IllegalArgumentException("The Content-Length header is not a number");
+            }
+        }
+        
+        InputStream in = exchange.getRequestBody();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) != -1)
+        {
+            if(body.size() + read > this.maxBodyBytes)
+            {
+                throw new BodyTooLargeException(this.maxBodyBytes);
+            }
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    private static void send(HttpExchange exchange, int status, JSONObject body) throws IOException
+    {
+        byte[] bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", JSON_CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        try
+        {
+            out.write(bytes);
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private static JSONObject error(String message)
+    {
+        return new JSONObject().put("success", false).put("error", message == null ? "" : message);
+    }
+    
+    private static JSONObject toJson(ValidationOutcome outcome)
+    {
+        return new JSONObject()
+                .put("success", outcome.isSuccess())
+                .put("code", outcome.getOriginalErrorCode())
+                .put("errorDescription", outcome.getErrorDescription() == null ? JSONObject.NULL : outcome.getErrorDescription())
+                .put("transactionId", outcome.getTransactionId())
+                .put("activityId", outcome.getActivityId() == null ? JSONObject.NULL : outcome.getActivityId().toString());
+    }
+    
+    private static JSONObject toJson(IntuneScepServiceException e)
+    {
+        return new JSONObject()
+                .put("success", false)
+                .put("code", e.getOriginalErrorCode())
+                .put("errorDescription", e.getErrorDescription() == null ? JSONObject.NULL : e.getErrorDescription())
+                .put("transactionId", e.getTransactionId())
+                .put("activityId", e.getActivityId() == null ? JSONObject.NULL : e.getActivityId().toString());
+    }
+    
+    private static int getIntProperty(Properties configProperties, String name, int defaultValue, int minimum) throws IllegalArgumentException
+    {
+        String value = configProperties.getProperty(name);
+        if(value == null || value.trim().isEmpty())
+        {
+            return defaultValue;
+        }
+        
+        int result;
+        try
+        {
+            result = Integer.parseInt(value.trim());
+        }
+        catch(NumberFormatException e)
+        {
+            throw new IllegalArgumentException("The property '" + name + "' is not a number", e);
+        }
+        
+        if(result < minimum)
+        {
+            throw new IllegalArgumentException("The property '" + name + "' must be at least " + minimum);
+        }
+        return result;
+    }
+}
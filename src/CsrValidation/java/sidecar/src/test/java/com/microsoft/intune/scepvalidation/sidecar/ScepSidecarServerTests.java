@@ -0,0 +1,397 @@
+// Copyright (c) Microsoft Corporation.
+// All rights reserved.
+//
+// This code is licensed under the MIT License.
+//
+// Permission is hereby granted, free of charge, to any person obtaining a copy
+// of this software and associated documentation files(the "Software"), to deal
+// in the Software without restriction, including without limitation the rights
+// to use, copy, modify, merge, publish, distribute, sublicense, and / or sell
+// copies of the Software, and to permit persons to whom the Software is
+// furnished to do so, subject to the following conditions :
+//
+// The above copyright notice and this permission notice shall be included in
+// all copies or substantial portions of the Software.
+//
+// THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+// IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+// FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT.IN NO EVENT SHALL THE
+// AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+// LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+// OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+// THE SOFTWARE.
+
+
+package com.microsoft.intune.scepvalidation.sidecar;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.naming.ServiceUnavailableException;
+
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Before;
+
+import com.microsoft.intune.scepvalidation.IntuneScepServiceClient;
+import com.microsoft.intune.scepvalidation.IntuneScepServiceException;
+import com.microsoft.intune.scepvalidation.MSALClientWrapper;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Tests of the sidecar over HTTP, with the Intune service and its discovery answered by a local stub.
+ */
+public class ScepSidecarServerTests 
+{
+    private HttpServer intune;
+    private ExecutorService intuneExecutor;
+    private final CountDownLatch slowRequestReceived = new CountDownLatch(1);
+    
+    private ScepSidecarServer sidecar;
+    
+    /**
+     * Starts a stub of the Intune service.  A transactionId starting with "reject" fails validation and one starting 
+     * with "slow" is answered after a second.
+     */
+    @Before
+    public void StartIntune() throws IOException
+    {
+        this.intune = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        this.intuneExecutor = Executors.newCachedThreadPool();
+        this.intune.setExecutor(this.intuneExecutor);
+        this.intune.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                String body = read(exchange.getRequestBody());
+                String response;
+                if("GET".equals(exchange.getRequestMethod()))
+                {
+                    response = "{value:[{providerName:" + IntuneScepServiceClient.VALIDATION_SERVICE_NAME + ",uri:'" + getIntuneUrl() + "scep'}]}";
+                }
+                else if(body.contains("\"reject"))
+                {
+                    response = "{code:" + IntuneScepServiceException.ErrorCode.ChallengeExpired.name() + ",errorDescription:'expired'}";
+                }
+                else
+                {
+                    if(body.contains("\"slow"))
+                    {
+                        slowRequestReceived.countDown();
+                        try
+                        {
+                            Thread.sleep(1000);
+                        }
+                        catch(InterruptedException e)
+                        {
+                            Thread.currentThread().interrupt();
+                        }
+                    }
+                    response = "{code:" + IntuneScepServiceException.ErrorCode.Success.name() + ",errorDescription:''}";
+                }
+                
+                byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, bytes.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(bytes);
+                out.close();
+            }});
+        this.intune.start();
+    }
+    
+    @After
+    public void Stop()
+    {
+        if(this.sidecar != null)
+        {
+            this.sidecar.stop(0);
+        }
+        this.intune.stop(0);
+        this.intuneExecutor.shutdownNow();
+    }
+    
+    @org.junit.Test
+    public void Sidecar_ValidatesRequests() throws Exception 
+    {
+        StartSidecar(new Properties());
+        
+        Response response = Post("/validate", new JSONObject().put("transactionId", "accept").put("certificateRequest", "csr").toString());
+        assertEquals(200, response.status);
+        assertTrue(response.json().getBoolean("success"));
+        assertEquals("accept", response.json().getString("transactionId"));
+        
+        response = Post("/validate", new JSONObject().put("transactionId", "reject").put("certificateRequest", "csr").toString());
+        assertEquals(200, response.status);
+        assertFalse(response.json().getBoolean("success"));
+        assertEquals(IntuneScepServiceException.ErrorCode.ChallengeExpired.name(), response.json().getString("code"));
+    }
+    
+    @org.junit.Test
+    public void Sidecar_SendsNotifications() throws Exception 
+    {
+        StartSidecar(new Properties());
+        
+        Response response = Post("/notifySuccess", new JSONObject()
+                .put("transactionId", "success")
+                .put("certificateRequest", "csr")
+                .put("certificateThumbprint", "thumbprint")
+                .put("certificateSerialNumber", "serial")
+                .put("certificateExpirationDateUtc", "2030-01-01T00:00:00Z")
+                .put("issuingCertificateAuthority", "ca")
+                .toString());
+        assertEquals(200, response.status);
+        assertTrue(response.json().getBoolean("success"));
+        
+        response = Post("/notifyFailure", new JSONObject()
+                .put("transactionId", "reject")
+                .put("certificateRequest", "csr")
+                .put("hResult", 0x80004005L)
+                .put("errorDescription", "failed")
+                .toString());
+        assertEquals(200, response.status);
+        assertFalse(response.json().getBoolean("success"));
+        assertEquals(IntuneScepServiceException.ErrorCode.ChallengeExpired.name(), response.json().getString("code"));
+    }
+    
+    @org.junit.Test
+    public void Sidecar_RejectsMalformedRequests() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("SIDECAR_MAX_BODY_BYTES", "1024");
+        StartSidecar(properties);
+        
+        assertEquals(400, Post("/validate", "{transactionId:'missing certificateRequest'}").status);
+        assertEquals(400, Post("/validate", "not json").status);
+        assertEquals(405, Get("/validate").status);
+        assertEquals(405, Post("/metrics", "{}").status);
+        
+        char[] large = new char[4096];
+        Arrays.fill(large, 'a');
+        assertEquals(413, Post("/validate", new JSONObject().put("transactionId", "large").put("certificateRequest", new String(large)).toString()).status);
+        
+        assertEquals(415, Request("POST", "/validate", "{}", "text/plain").status);
+    }
+    
+    @org.junit.Test
+    public void Sidecar_RejectsOtherHosts() throws Exception 
+    {
+        StartSidecar(new Properties());
+        
+        // A page loaded from a rebound DNS name sends that name as the Host header
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), this.sidecar.getAddress().getPort());
+        try
+        {
+            OutputStream out = socket.getOutputStream();
+            out.write("GET /health HTTP/1.1\r\nHost: attacker.example:8450\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            assertTrue(read(socket.getInputStream()).startsWith("HTTP/1.1 403"));
+        }
+        finally
+        {
+            socket.close();
+        }
+        
+        assertEquals(200, Get("/health").status);
+    }
+    
+    @org.junit.Test
+    public void Sidecar_RequiresTokenWhenConfigured() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("SIDECAR_TOKEN", "secret");
+        StartSidecar(properties);
+        
+        assertEquals(401, Get("/health").status);
+        
+        HttpURLConnection connection = Open("GET", "/health");
+        connection.setRequestProperty("Authorization", "Bearer secret");
+        assertEquals(200, connection.getResponseCode());
+    }
+    
+    @org.junit.Test
+    public void Sidecar_MapsDeadlineToGatewayTimeout() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("SIDECAR_DEADLINE_MS", "200");
+        StartSidecar(properties);
+        
+        Response response = Post("/validate", new JSONObject().put("transactionId", "slow").put("certificateRequest", "csr").toString());
+        assertEquals(504, response.status);
+        assertFalse(response.json().getBoolean("success"));
+    }
+    
+    @org.junit.Test
+    public void Sidecar_MapsConcurrencyLimitToServiceUnavailable() throws Exception 
+    {
+        Properties properties = new Properties();
+        properties.setProperty("BULKHEAD_VALIDATION_MAX_CONCURRENT", "1");
+        properties.setProperty("BULKHEAD_VALIDATION_MAX_WAIT_MS", "1");
+        StartSidecar(properties);
+        
+        // Hold the only permit with a slow request
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try
+        {
+            Future<Response> slow = executor.submit(new java.util.concurrent.Callable<Response>() {
+                @Override
+                public Response call() throws Exception
+                {
+                    return Post("/validate", new JSONObject().put("transactionId", "slow").put("certificateRequest", "csr").toString());
+                }});
+            assertTrue(this.slowRequestReceived.await(10, TimeUnit.SECONDS));
+            
+            HttpURLConnection connection = Open("POST", "/validate");
+            Send(connection, new JSONObject().put("transactionId", "accept").put("certificateRequest", "csr").toString(), "application/json");
+            assertEquals(503, connection.getResponseCode());
+            assertEquals("1", connection.getHeaderField("Retry-After"));
+            
+            assertEquals(200, slow.get(10, TimeUnit.SECONDS).status);
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        JSONObject metrics = Get("/metrics").json();
+        assertEquals(1, metrics.getJSONArray("bulkheads").getJSONObject(0).getLong("rejected"));
+    }
+    
+    @org.junit.Test
+    public void Sidecar_ReportsMetrics() throws Exception 
+    {
+        StartSidecar(new Properties());
+        
+        Post("/validate", new JSONObject().put("transactionId", "accept").put("certificateRequest", "csr").toString());
+        Post("/validate", "not json");
+        
+        Response response = Get("/metrics");
+        assertEquals(200, response.status);
+        JSONObject metrics = response.json();
+        assertEquals(3, metrics.getLong("requests"));
+        assertEquals(0, metrics.getLong("errors"));
+        assertEquals(3, metrics.getJSONArray("bulkheads").length());
+    }
+    
+    private void StartSidecar(Properties properties) throws Exception
+    {
+        properties.setProperty("AAD_APP_ID", "sidecar");
+        properties.setProperty("AAD_APP_KEY", "sidecar");
+        properties.setProperty("TENANT", "sidecar");
+        properties.setProperty("PROVIDER_NAME_AND_VERSION", "sidecar");
+        properties.setProperty("MS_GRAPH_RESOURCE_URL", getIntuneUrl());
+        properties.setProperty("SIDECAR_PORT", "0");
+        
+        MSALClientWrapper msal = new MSALClientWrapper("sidecar", properties) {
+            @Override
+            public String getAccessToken(Set<String> scopes) throws ServiceUnavailableException
+            {
+                return "token";
+            }
+            
+            @Override
+            public String getAccessToken(Set<String> scopes, long timeoutMillis) throws ServiceUnavailableException
+            {
+                return "token";
+            }
+        };
+        
+        this.sidecar = new ScepSidecarServer(properties, new IntuneScepServiceClient(properties, msal, null, null));
+        this.sidecar.start();
+    }
+    
+    private String getIntuneUrl()
+    {
+        return "http://127.0.0.1:" + this.intune.getAddress().getPort() + "/";
+    }
+    
+    private HttpURLConnection Open(String method, String path) throws IOException
+    {
+        URL url = new URL("http://127.0.0.1:" + this.sidecar.getAddress().getPort() + path);
+        HttpURLConnection connection = (HttpURLConnection)url.openConnection();
+        connection.setRequestMethod(method);
+        return connection;
+    }
+    
+    private static void Send(HttpURLConnection connection, String body, String contentType) throws IOException
+    {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        connection.setRequestProperty("Content-Type", contentType);
+        connection.setDoOutput(true);
+        connection.setFixedLengthStreamingMode(bytes.length);
+        OutputStream out = connection.getOutputStream();
+        out.write(bytes);
+        out.close();
+    }
+    
+    private Response Get(String path) throws IOException
+    {
+        return Request("GET", path, null, null);
+    }
+    
+    private Response Post(String path, String body) throws IOException
+    {
+        return Request("POST", path, body, "application/json");
+    }
+    
+    private Response Request(String method, String path, String body, String contentType) throws IOException
+    {
+        HttpURLConnection connection = Open(method, path);
+        if(body != null)
+        {
+            Send(connection, body, contentType);
+        }
+        
+        int status = connection.getResponseCode();
+        InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        return new Response(status, in == null ? "" : read(in));
+    }
+    
+    private static String read(InputStream in) throws IOException
+    {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int read;
+        while((read = in.read(buffer)) >= 0)
+        {
+            body.write(buffer, 0, read);
+        }
+        return new String(body.toByteArray(), StandardCharsets.UTF_8);
+    }
+    
+    private static class Response
+    {
+        final int status;
+        final String body;
+        
+        Response(int status, String body)
+        {
+            this.status = status;
+            this.body = body;
+        }
+        
+        JSONObject json()
+        {
+            return new JSONObject(this.body);
+        }
+    }
+}